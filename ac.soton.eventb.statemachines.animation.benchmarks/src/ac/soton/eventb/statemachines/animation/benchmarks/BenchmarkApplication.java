@@ -0,0 +1,52 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.benchmarks;
+
+import org.eclipse.equinox.app.IApplication;
+import org.eclipse.equinox.app.IApplicationContext;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * An Eclipse application that runs the JMH benchmarks of the statemachine animation, e.g.
+ *
+ * 	eclipse -application ac.soton.eventb.statemachines.animation.benchmarks.run SmFunctionParser -p instances=10000 -rf csv
+ *
+ * The application arguments are passed to JMH as its command line options.
+ * The benchmarks are run in this JVM (i.e. with no forks) as the benchmarked classes
+ * can only be loaded by the OSGi framework.
+ *
+ * @author cfsnook
+ *
+ */
+public class BenchmarkApplication implements IApplication {
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.equinox.app.IApplication#start(org.eclipse.equinox.app.IApplicationContext)
+	 */
+	@Override
+	public Object start(IApplicationContext context) throws Exception {
+		String[] args = (String[]) context.getArguments().get(IApplicationContext.APPLICATION_ARGS);
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args == null ? new String[0] : args))
+				.forks(0)
+				.build();
+		new Runner(options).run();
+		return IApplication.EXIT_OK;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.equinox.app.IApplication#stop()
+	 */
+	@Override
+	public void stop() {
+	}
+
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eventb.emf.core.machine.Event;
+import org.eventb.emf.core.machine.MachineFactory;
+import org.eventb.emf.core.machine.Variable;
+
+import ac.soton.eventb.probsupport.data.Operation_;
+import ac.soton.eventb.statemachines.State;
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.StatemachinesFactory;
+import ac.soton.eventb.statemachines.Transition;
+import ac.soton.eventb.statemachines.TranslationKind;
+import ac.soton.eventb.statemachines.animation.engine.ActiveInstances;
+
+/**
+ * A synthetic in-memory statemachine together with the animation inputs (variable values and
+ * enabled operations) of two alternating animation steps.
+ *
+ * Each statemachine has the given number of states, arranged in a ring of transitions that each elaborate
+ * their own event. The first state of each statemachine contains a nested statemachine of the same shape,
+ * down to the given nesting depth. If the number of instances is not zero the statemachine is lifted and
+ * the instances are spread over the states, moving on by one state at each step.
+ * At each step the events of alternate transitions are enabled.
+ *
+ * @author cfsnook
+ *
+ */
+public final class SyntheticModel {
+
+	private static final char MAPLET = '\u21a6';
+
+	private final int states;
+	private final int instances;
+	private final int operationsPerEvent;
+	private final TranslationKind translation;
+	private final Statemachine statemachine;
+	private final List<Statemachine> statemachines = new ArrayList<Statemachine>();
+	private final List<String> events = new ArrayList<String>();
+	private final Map<String, String>[] variables;
+	private final List<Operation_>[] operations;
+
+	/**
+	 * @param states the number of states in each statemachine
+	 * @param transitions the number of transitions in each statemachine
+	 * @param depth the number of levels of nested statemachines
+	 * @param instances the number of instances of a lifted statemachine (0 for not lifted)
+	 * @param operationsPerEvent the number of enabled operations (parameterisations) of each enabled event
+	 * @param translation SINGLEVAR or MULTIVAR
+	 */
+	@SuppressWarnings("unchecked")
+	public SyntheticModel(int states, int transitions, int depth, int instances, int operationsPerEvent, TranslationKind translation) {
+		this.states = states;
+		this.instances = instances;
+		this.operationsPerEvent = operationsPerEvent;
+		this.translation = translation;
+		Variable instanceSet = null;
+		if (instances > 0) {
+			instanceSet = MachineFactory.eINSTANCE.createVariable();
+			instanceSet.setName("INSTANCES");
+		}
+		this.statemachine = build("sm", states, transitions, depth, instanceSet);
+		this.variables = new Map[] {buildVariables(0), buildVariables(1)};
+		this.operations = new List[] {buildOperations(0), buildOperations(1)};
+	}
+
+	public Statemachine getStatemachine() {
+		return statemachine;
+	}
+
+	/**
+	 * @param step 0 or 1
+	 * @return the values of the variables of the statemachine at the given step
+	 */
+	public Map<String, String> getVariables(int step) {
+		return variables[step];
+	}
+
+	/**
+	 * @param step 0 or 1
+	 * @return the enabled operations at the given step
+	 */
+	public List<Operation_> getOperations(int step) {
+		return operations[step];
+	}
+
+	/**
+	 * Builds the value of a lifted statemachine variable, e.g. {(i0&#x21a6;sm_S0),(i1&#x21a6;sm_S1)}
+	 *
+	 * @param name the name of the statemachine
+	 * @param states the number of states
+	 * @param instances the number of instances
+	 * @param step
+	 * @return
+	 */
+	public static String functionValue(String name, int states, int instances, int step) {
+		StringBuilder sb = new StringBuilder(instances * (name.length() + 16)).append('{');
+		for (int j = 0; j < instances; j++) {
+			if (j > 0) sb.append(',');
+			sb.append("(i").append(j).append(MAPLET).append(stateName(name, (j + step) % states)).append(')');
+		}
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * Builds a set of the instances that are in the given state, e.g. {i0,i3,i6}
+	 *
+	 * @param state the position of the state
+	 * @param states the number of states
+	 * @param instances the number of instances
+	 * @param step
+	 * @return
+	 */
+	public static String setValue(int state, int states, int instances, int step) {
+		StringBuilder sb = new StringBuilder().append('{');
+		int count = 0;
+		for (int j = 0; j < instances; j++) {
+			if ((j + step) % states == state) {
+				if (count++ > 0) sb.append(',');
+				sb.append('i').append(j);
+			}
+		}
+		return count == 0 ? ActiveInstances.EMPTY_SET : sb.append('}').toString();
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	private static String stateName(String statemachineName, int i) {
+		return statemachineName + "_S" + i;
+	}
+
+	private Statemachine build(String name, int states, int transitions, int depth, Variable instanceSet) {
+		Statemachine sm = StatemachinesFactory.eINSTANCE.createStatemachine();
+		sm.setName(name);
+		sm.setTranslation(translation);
+		if (instanceSet != null) {
+			sm.setInstances(instanceSet);
+		}
+		statemachines.add(sm);
+		State[] nodes = new State[states];
+		for (int i = 0; i < states; i++) {
+			nodes[i] = StatemachinesFactory.eINSTANCE.createState();
+			nodes[i].setName(stateName(name, i));
+			sm.getNodes().add(nodes[i]);
+		}
+		for (int t = 0; t < transitions; t++) {
+			Transition transition = StatemachinesFactory.eINSTANCE.createTransition();
+			transition.setSource(nodes[t % states]);
+			transition.setTarget(nodes[(t + 1) % states]);
+			Event event = MachineFactory.eINSTANCE.createEvent();
+			event.setName(name + "_e" + t);
+			events.add(event.getName());
+			transition.getElaborates().add(event);
+			sm.getTransitions().add(transition);
+		}
+		if (depth > 0 && states > 0) {
+			nodes[0].getStatemachines().add(build(name + "_n", states, transitions, depth - 1, instanceSet));
+		}
+		return sm;
+	}
+
+	private Map<String, String> buildVariables(int step) {
+		Map<String, String> values = new HashMap<String, String>();
+		for (Statemachine sm : statemachines) {
+			if (translation == TranslationKind.MULTIVAR) {
+				for (int i = 0; i < states; i++) {
+					String value;
+					if (instances > 0) {
+						value = setValue(i, states, instances, step);
+					} else {
+						value = i == step % states ? "TRUE" : "FALSE";
+					}
+					values.put(stateName(sm.getName(), i), value);
+				}
+			} else {
+				if (instances > 0) {
+					values.put(sm.getName(), functionValue(sm.getName(), states, instances, step));
+				} else {
+					values.put(sm.getName(), stateName(sm.getName(), step % states));
+				}
+			}
+		}
+		return Collections.unmodifiableMap(values);
+	}
+
+	private List<Operation_> buildOperations(int step) {
+		List<Operation_> ops = new ArrayList<Operation_>();
+		for (int e = step; e < events.size(); e += 2) {
+			for (int k = 0; k < operationsPerEvent; k++) {
+				String argument = instances > 0 ? "i" + ((k + step) % instances) : String.valueOf(k + step);
+				ops.add(new Operation_(events.get(e), Arrays.asList(argument)));
+			}
+		}
+		return Collections.unmodifiableList(ops);
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.engine;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ac.soton.eventb.probsupport.data.Operation_;
+import ac.soton.eventb.statemachines.TranslationKind;
+import ac.soton.eventb.statemachines.animation.benchmarks.SyntheticModel;
+
+/**
+ * Measures the computation of the active states of a synthetic statemachine
+ * from the values of its variables: a snapshot is mapped with no enabled operations
+ * and no previous snapshot, so it is computed in full each time.
+ *
+ * @author cfsnook
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class ActiveStatesBenchmark {
+
+	@Param({"10", "100"})
+	public int states;
+
+	@Param({"0", "3"})
+	public int depth;
+
+	@Param({"0", "100", "10000"})
+	public int instances;
+
+	@Param({"SINGLEVAR", "MULTIVAR"})
+	public String translation;
+
+	private StatemachineAnimationEngine engine;
+	private Map<String, String> variables;
+	private final List<Operation_> operations = Collections.<Operation_>emptyList();
+
+	@Setup
+	public void setUp() {
+		SyntheticModel model = new SyntheticModel(states, states, depth, instances, 1, TranslationKind.valueOf(translation));
+		engine = new StatemachineAnimationEngine(model.getStatemachine());
+		variables = model.getVariables(0);
+	}
+
+	@TearDown
+	public void tearDown() {
+		engine.dispose();
+	}
+
+	@Benchmark
+	public StatemachineSnapshot map() {
+		return engine.map(variables, operations, null, null);
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.engine;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ac.soton.eventb.statemachines.animation.benchmarks.SyntheticModel;
+
+/**
+ * Measures the parsing of the values of lifted statemachine variables
+ * (a function from instances to states, or a set of instances).
+ *
+ * @author cfsnook
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class SmFunctionParserBenchmark {
+
+	@Param({"10", "1000", "100000"})
+	public int instances;
+
+	@Param({"10", "100"})
+	public int states;
+
+	private String function;
+	private String set;
+
+	@Setup
+	public void setUp() {
+		function = SyntheticModel.functionValue("sm", states, instances, 0);
+		set = SyntheticModel.setValue(0, 1, instances, 0);
+	}
+
+	@Benchmark
+	public Object parseFunction() {
+		return SmFunctionParser.parse(function);
+	}
+
+	@Benchmark
+	public Object parseSet() {
+		return SmFunctionParser.parseSet(set);
+	}
+
+	/**
+	 * Parses the function and renders the label shown in each state
+	 */
+	@Benchmark
+	public void parseFunctionAndLabel(Blackhole blackhole) {
+		Map<String, ActiveInstances> parsed = SmFunctionParser.parse(function);
+		for (ActiveInstances activeInstances : parsed.values()) {
+			blackhole.consume(activeInstances.getLabel(ActiveInstances.DEFAULT_PREVIEW_LENGTH, ActiveInstances.DEFAULT_COUNT_THRESHOLD));
+		}
+	}
+}
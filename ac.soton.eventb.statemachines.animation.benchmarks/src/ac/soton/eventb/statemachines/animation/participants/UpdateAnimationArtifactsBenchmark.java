@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.participants;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ac.soton.eventb.statemachines.TranslationKind;
+import ac.soton.eventb.statemachines.animation.benchmarks.SyntheticModel;
+import ac.soton.eventb.statemachines.animation.engine.StatemachineAnimationEngine;
+import ac.soton.eventb.statemachines.animation.engine.StatemachineSnapshot;
+
+/**
+ * Measures the update of the animation artifacts of a synthetic statemachine for one animation step,
+ * i.e. computing the snapshot of its active states and enabled transitions and writing the changes
+ * to the statemachine. (The statemachine is not in an editing domain so no transaction is used
+ * and there is no diagram to be refreshed.)
+ *
+ * @author cfsnook
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class UpdateAnimationArtifactsBenchmark {
+
+	@Param({"10", "100"})
+	public int states;
+
+	@Param({"20", "200"})
+	public int transitions;
+
+	@Param({"0", "3"})
+	public int depth;
+
+	@Param({"0", "1000"})
+	public int instances;
+
+	@Param({"1", "100"})
+	public int operationsPerEvent;
+
+	@Param({"SINGLEVAR"})
+	public String translation;
+
+	private SyntheticModel model;
+	private StatemachineAnimationEngine engine;
+	private StatemachineSnapshot applied = null;
+	private AnimationArtifactWriter writer;
+	private final IProgressMonitor monitor = new NullProgressMonitor();
+	private int step = 0;
+
+	@Setup
+	public void setUp() {
+		model = new SyntheticModel(states, transitions, depth, instances, operationsPerEvent, TranslationKind.valueOf(translation));
+		engine = new StatemachineAnimationEngine(model.getStatemachine());
+		writer = new AnimationArtifactWriter(model.getStatemachine());
+		update(0);
+	}
+
+	@TearDown
+	public void tearDown() {
+		engine.dispose();
+	}
+
+	/**
+	 * An update with no previous snapshot (e.g. when the animation is started or restarted)
+	 */
+	@Benchmark
+	public void fullRefresh() {
+		applied = null;
+		update(step);
+	}
+
+	/**
+	 * An update to the next animation step, where only the changes are written
+	 */
+	@Benchmark
+	public void nextStep() {
+		step = 1 - step;
+		update(step);
+	}
+
+	/**
+	 * An update where nothing relevant to the statemachine has changed
+	 */
+	@Benchmark
+	public void unchanged() {
+		update(step);
+	}
+
+	private void update(int s) {
+		StatemachineSnapshot snapshot = engine.map(model.getVariables(s), model.getOperations(s), applied, monitor);
+		if (snapshot != null && snapshot != applied) {
+			StatemachineAnimationParticipant.writeSnapshot(engine, applied, snapshot, writer);
+			writer.apply();
+			applied = snapshot;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.driver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.eventb.emf.core.machine.Event;
+import org.eventb.emf.core.machine.MachineFactory;
+import org.junit.Test;
+
+import ac.soton.eventb.probsupport.data.Operation_;
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.TranslationKind;
+import ac.soton.eventb.statemachines.animation.tests.TestStatemachines;
+
+/**
+ * Tests the choice of the operations of a random walk by transition.
+ *
+ * @author cfsnook
+ *
+ */
+public class TransitionWeightingTest {
+
+	@Test
+	public void operationsAreGroupedByTransition() {
+		TransitionWeighting weighting = weighting(TestStatemachines.ring("sm", 3, TranslationKind.MULTIVAR, false)); //$NON-NLS-1$
+		List<Operation_> operations = TestStatemachines.operations("sm_e0:1", "sm_e0:2", "sm_e0:3", "sm_e1"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		List<List<Operation_>> groups = weighting.group(operations);
+		assertEquals(2, groups.size());
+		assertEquals(operations.subList(0, 3), groups.get(0));
+		assertEquals(operations.subList(3, 4), groups.get(1));
+	}
+
+	@Test
+	public void eventsWithoutTransitionsAreTheirOwnGroups() {
+		TransitionWeighting weighting = weighting(TestStatemachines.ring("sm", 3, TranslationKind.MULTIVAR, false)); //$NON-NLS-1$
+		List<Operation_> operations = TestStatemachines.operations("other:1", "other:2", "init", "sm_e2"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		List<List<Operation_>> groups = weighting.group(operations);
+		assertEquals(3, groups.size());
+		assertEquals(operations.subList(0, 2), groups.get(0));
+		assertEquals(operations.subList(2, 3), groups.get(1));
+		assertEquals(operations.subList(3, 4), groups.get(2));
+	}
+
+	@Test
+	public void eventsOfSeveralTransitionsAreInEachGroup() {
+		Statemachine sm = TestStatemachines.ring("sm", 3, TranslationKind.MULTIVAR, false); //$NON-NLS-1$
+		Event event = MachineFactory.eINSTANCE.createEvent();
+		event.setName("sm_e0"); //$NON-NLS-1$
+		sm.getTransitions().get(1).getElaborates().add(event);
+		List<Operation_> operations = TestStatemachines.operations("sm_e0", "sm_e1"); //$NON-NLS-1$ //$NON-NLS-2$
+		List<List<Operation_>> groups = weighting(sm).group(operations);
+		assertEquals(2, groups.size());
+		assertEquals(operations.subList(0, 1), groups.get(0));
+		assertEquals(operations, groups.get(1));
+	}
+
+	@Test
+	public void transitionsOfAllTheStatemachinesAreNumbered() {
+		Statemachine sm = TestStatemachines.ring("sm", 2, TranslationKind.MULTIVAR, false); //$NON-NLS-1$
+		Statemachine nested = TestStatemachines.nest(sm, 0, TestStatemachines.ring("n", 2, TranslationKind.MULTIVAR, false)); //$NON-NLS-1$
+		Event event = MachineFactory.eINSTANCE.createEvent();
+		event.setName("sm_e0"); //$NON-NLS-1$
+		nested.getTransitions().get(0).getElaborates().add(event);
+		Statemachine other = TestStatemachines.ring("other", 2, TranslationKind.MULTIVAR, false); //$NON-NLS-1$
+		TransitionWeighting weighting = new TransitionWeighting(Arrays.asList(sm, other));
+		// sm_e0 is elaborated by a transition of sm and one of the nested statemachine, other_e0 by neither
+		List<Operation_> operations = TestStatemachines.operations("sm_e0", "other_e0"); //$NON-NLS-1$ //$NON-NLS-2$
+		List<List<Operation_>> groups = weighting.group(operations);
+		assertEquals(3, groups.size());
+		assertEquals(operations.subList(0, 1), groups.get(0));
+		assertEquals(operations.subList(0, 1), groups.get(1));
+		assertEquals(operations.subList(1, 2), groups.get(2));
+	}
+
+	@Test
+	public void transitionsAreChosenUniformly() {
+		TransitionWeighting weighting = weighting(TestStatemachines.ring("sm", 3, TranslationKind.MULTIVAR, false)); //$NON-NLS-1$
+		List<Operation_> operations = TestStatemachines.operations(
+				"sm_e0:1", "sm_e0:2", "sm_e0:3", "sm_e0:4", "sm_e0:5", "sm_e0:6", "sm_e0:7", "sm_e0:8", "sm_e0:9", "sm_e1"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$ //$NON-NLS-9$ //$NON-NLS-10$
+		Operation_ single = operations.get(9);
+		Random random = new Random(42);
+		int chosen = 0;
+		int n = 10000;
+		for (int i = 0; i < n; i++) {
+			if (weighting.choose(operations, random) == single) {
+				chosen++;
+			}
+		}
+		// half the steps execute the transition with one operation (not a tenth)
+		assertTrue(String.valueOf(chosen), chosen > n * 0.45 && chosen < n * 0.55);
+	}
+
+	@Test
+	public void aSingleOperationIsAlwaysChosen() {
+		TransitionWeighting weighting = weighting(TestStatemachines.ring("sm", 3, TranslationKind.MULTIVAR, false)); //$NON-NLS-1$
+		List<Operation_> operations = TestStatemachines.operations("sm_e2"); //$NON-NLS-1$
+		assertSame(operations.get(0), weighting.choose(operations, new Random(1)));
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	private static TransitionWeighting weighting(Statemachine statemachine) {
+		return new TransitionWeighting(Collections.singletonList(statemachine));
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Compares the SmFunctionParser with the string splitting parser (parseSmFn) that the
+ * animation participant used before it.
+ *
+ * Where the old parser was right the two must give the same sets of instances.
+ * Where an instance contains a comma the old parser split it, so for those values
+ * the expected result is given explicitly.
+ *
+ * @author cfsnook
+ *
+ */
+public class SmFunctionParserTest {
+
+	private static final String M = "\u21a6";
+
+	@Test
+	public void scalarInstances() {
+		assertSameAsBefore("{(a" + M + "S1),(b" + M + "S2),(c" + M + "S1)}"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		assertSameAsBefore("{a" + M + "S1,b" + M + "S2}"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		assertSameAsBefore("{(1" + M + "S1),(2" + M + "S1),(3" + M + "S1)}"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	}
+
+	@Test
+	public void nestedMaplets() {
+		assertSameAsBefore("{((a" + M + "b)" + M + "S1),((c" + M + "d)" + M + "S2)}"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+		assertSameAsBefore("{(a" + M + "b" + M + "S1)}"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		assertSameAsBefore("{(((a" + M + "b)" + M + "c)" + M + "S1)}"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	}
+
+	@Test
+	public void quotedStrings() {
+		assertSameAsBefore("{(\"a\"" + M + "S1),(\"b c\"" + M + "S2)}"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+		// the old parser split strings at commas and maplets
+		String value = "{(\"a,b\"" + M + "S1),(\"c" + M + "d\"" + M + "S2)}"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		Map<String, String> expected = new HashMap<String, String>();
+		expected.put("S1", "{\"a,b\"}"); //$NON-NLS-1$ //$NON-NLS-2$
+		expected.put("S2", "{\"c" + M + "d\"}"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		assertEquals(expected, parse(value));
+		assertNotEquals(expected, parseSmFn(value));
+	}
+
+	@Test
+	public void escapedQuotes() {
+		String value = "{(\"a\\\"\"" + M + "S1),(b" + M + "S2)}"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		Map<String, String> expected = new HashMap<String, String>();
+		expected.put("S1", "{\"a\\\"\"}"); //$NON-NLS-1$ //$NON-NLS-2$
+		expected.put("S2", "{b}"); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(expected, parse(value));
+
+		// an escaped backslash does not escape the closing quote
+		value = "{(\"a\\\\\"" + M + "S1),(b" + M + "S2)}"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		expected.put("S1", "{\"a\\\\\"}"); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(expected, parse(value));
+	}
+
+	@Test
+	public void setInstances() {
+		assertSameAsBefore("{({1}" + M + "S1),({}" + M + "S2)}"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+		// the old parser split sets and tuples at their commas
+		String value = "{({1,2}" + M + "S1),((3,4)" + M + "S1),([5,6]" + M + "S2)}"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		Map<String, String> expected = new HashMap<String, String>();
+		expected.put("S1", "{{1,2},(3,4)}"); //$NON-NLS-1$ //$NON-NLS-2$
+		expected.put("S2", "{[5,6]}"); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(expected, parse(value));
+		assertNotEquals(expected, parseSmFn(value));
+	}
+
+	@Test
+	public void emptyFunction() {
+		assertSameAsBefore("{}"); //$NON-NLS-1$
+		assertSameAsBefore(""); //$NON-NLS-1$
+		assertSameAsBefore(ActiveInstances.EMPTY_SET);
+		assertTrue(parse("{}").isEmpty()); //$NON-NLS-1$
+	}
+
+	@Test
+	public void instanceCounts() {
+		Map<String, ActiveInstances> active = SmFunctionParser.parse("{(a" + M + "S1),({1,2}" + M + "S1),(b" + M + "S2)}"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		assertEquals(2, active.get("S1").getCount()); //$NON-NLS-1$
+		assertEquals(1, active.get("S2").getCount()); //$NON-NLS-1$
+	}
+
+	@Test
+	public void sets() {
+		assertEquals("{a,{1,2},(b,c)}", SmFunctionParser.parseSet("{a,{1,2},(b,c)}").getText()); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(3, SmFunctionParser.parseSet("{a,{1,2},(b,c)}").getCount()); //$NON-NLS-1$
+		assertEquals(0, SmFunctionParser.parseSet("{}").getCount()); //$NON-NLS-1$
+		assertEquals(0, SmFunctionParser.parseSet(ActiveInstances.EMPTY_SET).getCount());
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	private static void assertSameAsBefore(String value) {
+		assertEquals(value, parseSmFn(value), parse(value));
+	}
+
+	/**
+	 * @return the new parse as a map from state names to the text of their sets of instances
+	 */
+	private static Map<String, String> parse(String value) {
+		Map<String, String> ret = new HashMap<String, String>();
+		for (Map.Entry<String, ActiveInstances> entry : SmFunctionParser.parse(value).entrySet()) {
+			ret.put(entry.getKey(), entry.getValue().getText());
+		}
+		return ret;
+	}
+
+	/**
+	 * The parser of function values used by StatemachineAnimationParticipant before SmFunctionParser
+	 */
+	private static Map<String, String> parseSmFn(String smValue) {
+		Map<String,String> ret = new HashMap<String,String>();
+		if (smValue.startsWith("{")) smValue = smValue.substring(1); //$NON-NLS-1$
+		if (smValue.startsWith("}",smValue.length()-1)) smValue = smValue.substring(0,smValue.length()-1); //$NON-NLS-1$
+		String[] result = smValue.split(","); //$NON-NLS-1$
+		for (int x=0; x<result.length; x++){
+			if (result[x].startsWith("(")) result[x] = result[x].substring(1); //$NON-NLS-1$
+			if (result[x].startsWith(")",result[x].length()-1)) result[x] = result[x].substring(0,result[x].length()-1); //$NON-NLS-1$
+			int i = result[x].lastIndexOf("\u21a6"); //$NON-NLS-1$
+			if (i<0) continue;
+			String ins = result[x].substring(0,i);
+			String stateName = result[x].substring(i+1);
+			String instances = ret.get(stateName);
+			if (instances==null){
+				instances = "{"+ins+"}"; //$NON-NLS-1$ //$NON-NLS-2$
+			}else{
+				instances = instances.substring(0, instances.length()-1);
+				instances = instances+","+ins+"}"; //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			ret.put(stateName, instances);
+		}
+		return ret;
+	}
+}
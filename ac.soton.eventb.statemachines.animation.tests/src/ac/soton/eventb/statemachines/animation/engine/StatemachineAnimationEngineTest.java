@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.engine;
+
+import static ac.soton.eventb.statemachines.animation.tests.TestStatemachines.function;
+import static ac.soton.eventb.statemachines.animation.tests.TestStatemachines.nest;
+import static ac.soton.eventb.statemachines.animation.tests.TestStatemachines.operations;
+import static ac.soton.eventb.statemachines.animation.tests.TestStatemachines.ring;
+import static ac.soton.eventb.statemachines.animation.tests.TestStatemachines.variables;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ac.soton.eventb.statemachines.State;
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.TranslationKind;
+
+/**
+ * Tests the snapshots computed by the animation engine and how they differ from step to step.
+ *
+ * @author cfsnook
+ *
+ */
+public class StatemachineAnimationEngineTest {
+
+	private StatemachineAnimationEngine engine;
+
+	@After
+	public void tearDown() {
+		if (engine != null) {
+			engine.dispose();
+		}
+	}
+
+	@Test
+	public void activeStateAndEnabledTransitions() {
+		engine = new StatemachineAnimationEngine(ring("sm", 3, TranslationKind.SINGLEVAR, false)); //$NON-NLS-1$
+		StatemachineSnapshot snapshot = engine.map(variables("sm", "sm_S1"), operations("sm_e1:1", "sm_e1:2", "other"), null, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+
+		assertEquals(1, snapshot.getActiveCount());
+		assertEquals(1, snapshot.getActive(0));
+		assertFalse(snapshot.isActive(0));
+		assertTrue(snapshot.isActive(1));
+		assertEquals(1, snapshot.getEnabledCount());
+		assertEquals(1, snapshot.getEnabled(0));
+		assertEquals(2, snapshot.getOperations(1).size());
+		assertNull(snapshot.getOperations(0));
+		assertTrue(snapshot.getOperations(engine.getTransitions().get(2)).isEmpty());
+	}
+
+	@Test
+	public void refinedVarStatemachinesHaveNoActiveStates() {
+		engine = new StatemachineAnimationEngine(ring("sm", 3, TranslationKind.REFINEDVAR, false)); //$NON-NLS-1$
+		StatemachineSnapshot snapshot = engine.map(variables("sm", "sm_S1", "sm_S1", "TRUE"), operations("sm_e1"), null, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+
+		assertEquals(0, snapshot.getActiveCount());
+		assertEquals(1, snapshot.getEnabledCount());
+	}
+
+	@Test
+	public void unchangedInputsReturnThePreviousSnapshot() {
+		engine = new StatemachineAnimationEngine(ring("sm", 3, TranslationKind.SINGLEVAR, false)); //$NON-NLS-1$
+		StatemachineSnapshot first = engine.map(variables("sm", "sm_S0", "x", "1"), operations("sm_e0:1", "other"), null, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+
+		// new operation objects and changes to variables and events that the statemachine does not depend on
+		StatemachineSnapshot second = engine.map(variables("sm", "sm_S0", "x", "2"), operations("sm_e0:1", "another"), first, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+		assertSame(first, second);
+
+		// a different argument of a relevant operation
+		StatemachineSnapshot third = engine.map(variables("sm", "sm_S0"), operations("sm_e0:2"), second, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		assertNotSame(second, third);
+	}
+
+	@Test
+	public void differencesAreLimitedToTheChangedElements() {
+		engine = new StatemachineAnimationEngine(ring("sm", 4, TranslationKind.SINGLEVAR, false)); //$NON-NLS-1$
+		StatemachineSnapshot first = engine.map(variables("sm", "sm_S0"), operations("sm_e0", "sm_e2"), null, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		StatemachineSnapshot second = engine.map(variables("sm", "sm_S1"), operations("sm_e1", "sm_e2"), first, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+
+		assertFalse(second.sameState(first, 0));
+		assertFalse(second.sameState(first, 1));
+		assertTrue(second.sameState(first, 2));
+		assertTrue(second.sameState(first, 3));
+		assertFalse(second.sameOperations(first, 0));
+		assertFalse(second.sameOperations(first, 1));
+		assertTrue(second.sameOperations(first, 2));
+		assertTrue(second.sameOperations(first, 3));
+	}
+
+	@Test
+	public void returnToAnEarlierStateIsNotSkippedAgainstALaterSnapshot() {
+		engine = new StatemachineAnimationEngine(ring("sm", 3, TranslationKind.SINGLEVAR, false)); //$NON-NLS-1$
+		StatemachineSnapshot a = engine.map(variables("sm", "sm_S0"), operations("sm_e0"), null, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		StatemachineSnapshot b = engine.map(variables("sm", "sm_S1"), operations("sm_e1"), a, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+		// the same inputs as a, compared with the later snapshot b
+		StatemachineSnapshot c = engine.map(variables("sm", "sm_S0"), operations("sm_e0"), b, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		assertNotSame(b, c);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(c.sameState(a, i));
+			assertTrue(c.sameOperations(a, i));
+		}
+	}
+
+	@Test
+	public void snapshotOfAnotherEngineIsNotReused() {
+		Statemachine sm = ring("sm", 3, TranslationKind.SINGLEVAR, false); //$NON-NLS-1$
+		StatemachineAnimationEngine other = new StatemachineAnimationEngine(sm);
+		try {
+			StatemachineSnapshot previous = other.map(variables("sm", "sm_S0"), operations(), null, null); //$NON-NLS-1$ //$NON-NLS-2$
+			engine = new StatemachineAnimationEngine(sm);
+			assertNotSame(previous, engine.map(variables("sm", "sm_S0"), operations(), previous, null)); //$NON-NLS-1$ //$NON-NLS-2$
+			assertTrue(engine.matches(other));
+		} finally {
+			other.dispose();
+		}
+	}
+
+	@Test
+	public void nestedStatesAreOnlyActiveInActiveParents() {
+		Statemachine sm = ring("sm", 2, TranslationKind.SINGLEVAR, false); //$NON-NLS-1$
+		nest(sm, 0, ring("n", 2, TranslationKind.SINGLEVAR, false)); //$NON-NLS-1$
+		engine = new StatemachineAnimationEngine(sm);
+		int n1 = stateId("n_S1"); //$NON-NLS-1$
+
+		StatemachineSnapshot inParent = engine.map(variables("sm", "sm_S0", "n", "n_S1"), operations(), null, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		assertTrue(inParent.isActive(n1));
+		assertEquals(2, inParent.getActiveCount());
+
+		// the nested statemachine keeps its value when its parent state is left
+		StatemachineSnapshot outOfParent = engine.map(variables("sm", "sm_S1", "n", "n_S1"), operations(), inParent, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		assertFalse(outOfParent.isActive(n1));
+		assertEquals(1, outOfParent.getActiveCount());
+		assertFalse(outOfParent.sameState(inParent, n1));
+	}
+
+	@Test
+	public void liftedInstances() {
+		engine = new StatemachineAnimationEngine(ring("sm", 3, TranslationKind.SINGLEVAR, true)); //$NON-NLS-1$
+		StatemachineSnapshot first = engine.map(variables("sm", function("a", "sm_S0", "b", "sm_S0", "c", "sm_S2")), operations(), null, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$
+
+		assertEquals("{a,b}", first.getInstances(0).getText()); //$NON-NLS-1$
+		assertEquals(0, first.getInstances(1).getCount());
+		assertEquals(ActiveInstances.EMPTY_SET, first.getLabel(1));
+		assertEquals("{c}", first.getInstances(2).getText()); //$NON-NLS-1$
+		assertFalse(first.isActive(1));
+
+		// b moves on to S1, so S2 is unchanged
+		StatemachineSnapshot second = engine.map(variables("sm", function("a", "sm_S0", "b", "sm_S1", "c", "sm_S2")), operations(), first, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$
+		assertFalse(second.sameState(first, 0));
+		assertFalse(second.sameState(first, 1));
+		assertTrue(second.sameState(first, 2));
+	}
+
+	@Test
+	public void multivarStates() {
+		engine = new StatemachineAnimationEngine(ring("sm", 3, TranslationKind.MULTIVAR, false)); //$NON-NLS-1$
+		StatemachineSnapshot snapshot = engine.map(variables("sm_S0", "FALSE", "sm_S1", "TRUE", "sm_S2", "FALSE"), operations(), null, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+		assertFalse(snapshot.isActive(0));
+		assertTrue(snapshot.isActive(1));
+		assertFalse(snapshot.isActive(2));
+
+		Map<String, String> lifted = variables("sm_S0", "{a,b}", "sm_S1", ActiveInstances.EMPTY_SET, "sm_S2", "{c}"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+		engine.dispose();
+		engine = new StatemachineAnimationEngine(ring("sm", 3, TranslationKind.MULTIVAR, true)); //$NON-NLS-1$
+		snapshot = engine.map(lifted, operations(), null, null);
+		assertEquals(2, snapshot.getInstances(0).getCount());
+		assertFalse(snapshot.isActive(1));
+		assertEquals("{c}", snapshot.getInstances(2).getText()); //$NON-NLS-1$
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	/**
+	 * @return the position of the named state in the engine's list of states
+	 */
+	private int stateId(String name) {
+		for (State state : engine.getStates()) {
+			if (name.equals(state.getName())) {
+				return engine.getStateId(state);
+			}
+		}
+		throw new IllegalArgumentException(name);
+	}
+}
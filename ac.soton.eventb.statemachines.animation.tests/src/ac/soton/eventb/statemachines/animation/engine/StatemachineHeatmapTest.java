@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.engine;
+
+import static ac.soton.eventb.statemachines.animation.tests.TestStatemachines.function;
+import static ac.soton.eventb.statemachines.animation.tests.TestStatemachines.operations;
+import static ac.soton.eventb.statemachines.animation.tests.TestStatemachines.ring;
+import static ac.soton.eventb.statemachines.animation.tests.TestStatemachines.variables;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ac.soton.eventb.statemachines.TranslationKind;
+
+/**
+ * Tests the counting of the steps and firings of an animation in a heatmap.
+ *
+ * @author cfsnook
+ *
+ */
+public class StatemachineHeatmapTest {
+
+	private StatemachineAnimationEngine engine;
+
+	@After
+	public void tearDown() {
+		if (engine != null) {
+			engine.dispose();
+		}
+	}
+
+	@Test
+	public void activeStatesAndEnabledTransitionsAreCounted() {
+		engine = new StatemachineAnimationEngine(ring("sm", 3, TranslationKind.SINGLEVAR, false)); //$NON-NLS-1$
+		StatemachineHeatmap heatmap = new StatemachineHeatmap(engine);
+		StatemachineSnapshot first = engine.map(variables("sm", "sm_S0"), operations("sm_e0"), null, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		StatemachineSnapshot second = engine.map(variables("sm", "sm_S1"), operations("sm_e1"), first, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		heatmap.countStep(first);
+		heatmap.countStep(second);
+		// a step that changes nothing is counted again with the same snapshot
+		heatmap.countStep(second);
+
+		assertEquals(3, heatmap.getStepCount());
+		assertEquals(1, heatmap.getOccupancy(0));
+		assertEquals(2, heatmap.getOccupancy(1));
+		assertEquals(0, heatmap.getOccupancy(2));
+		assertEquals(2.0 / 3, heatmap.getOccupancyRatio(1), 1e-9);
+		assertEquals(2, heatmap.getInstanceOccupancy(1));
+		assertEquals(1, heatmap.getEnabledSteps(0));
+		assertEquals(2, heatmap.getEnabledSteps(1));
+		assertEquals(0, heatmap.getEnabledSteps(2));
+	}
+
+	@Test
+	public void instancesOfLiftedStatesAreSummed() {
+		engine = new StatemachineAnimationEngine(ring("sm", 3, TranslationKind.SINGLEVAR, true)); //$NON-NLS-1$
+		StatemachineHeatmap heatmap = new StatemachineHeatmap(engine);
+		StatemachineSnapshot first = engine.map(variables("sm", function("a", "sm_S0", "b", "sm_S0", "c", "sm_S2")), operations(), null, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$
+		StatemachineSnapshot second = engine.map(variables("sm", function("a", "sm_S0", "b", "sm_S1", "c", "sm_S2")), operations(), first, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$
+		heatmap.countStep(first);
+		heatmap.countStep(second);
+
+		assertEquals(2, heatmap.getOccupancy(0));
+		assertEquals(3, heatmap.getInstanceOccupancy(0));
+		assertEquals(1, heatmap.getOccupancy(1));
+		assertEquals(1, heatmap.getInstanceOccupancy(1));
+		assertEquals(2, heatmap.getOccupancy(2));
+		assertEquals(2, heatmap.getInstanceOccupancy(2));
+	}
+
+	@Test
+	public void firingsAreCountedByEvent() {
+		engine = new StatemachineAnimationEngine(ring("sm", 3, TranslationKind.MULTIVAR, false)); //$NON-NLS-1$
+		StatemachineHeatmap heatmap = new StatemachineHeatmap(engine);
+		heatmap.countFiring("sm_e1"); //$NON-NLS-1$
+		heatmap.countFiring("other"); //$NON-NLS-1$
+		heatmap.countFiring("sm_e1"); //$NON-NLS-1$
+		heatmap.countFiring("sm_e2"); //$NON-NLS-1$
+
+		assertEquals(0, heatmap.getFirings(0));
+		assertEquals(2, heatmap.getFirings(1));
+		assertEquals(1, heatmap.getFirings(2));
+		assertEquals(2, heatmap.getMaxFirings());
+		assertEquals(0, heatmap.getStepCount());
+	}
+
+	@Test
+	public void releasedHeatmapsKeepTheirCounters() {
+		engine = new StatemachineAnimationEngine(ring("sm", 3, TranslationKind.SINGLEVAR, false)); //$NON-NLS-1$
+		StatemachineHeatmap heatmap = new StatemachineHeatmap(engine);
+		StatemachineSnapshot snapshot = engine.map(variables("sm", "sm_S2"), operations("sm_e2"), null, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		heatmap.countStep(snapshot);
+		heatmap.countFiring("sm_e2"); //$NON-NLS-1$
+		heatmap.release();
+		heatmap.countStep(snapshot);
+		heatmap.countFiring("sm_e2"); //$NON-NLS-1$
+
+		assertNull(heatmap.getEngine());
+		assertEquals(1, heatmap.getStepCount());
+		assertEquals(1, heatmap.getOccupancy(2));
+		assertEquals(1, heatmap.getFirings(2));
+	}
+
+	@Test
+	public void resetClearsTheCounters() {
+		engine = new StatemachineAnimationEngine(ring("sm", 3, TranslationKind.SINGLEVAR, true)); //$NON-NLS-1$
+		StatemachineHeatmap heatmap = new StatemachineHeatmap(engine);
+		heatmap.countStep(engine.map(variables("sm", function("a", "sm_S1")), operations("sm_e1"), null, null)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		heatmap.countFiring("sm_e1"); //$NON-NLS-1$
+		heatmap.reset();
+
+		assertEquals(0, heatmap.getStepCount());
+		assertEquals(0, heatmap.getOccupancy(1));
+		assertEquals(0, heatmap.getInstanceOccupancy(1));
+		assertEquals(0, heatmap.getEnabledSteps(1));
+		assertEquals(0, heatmap.getMaxFirings());
+		assertEquals(0, heatmap.getOccupancyRatio(1), 0);
+	}
+
+	@Test
+	public void countingContinuesWithAMatchingEngine() {
+		engine = new StatemachineAnimationEngine(ring("sm", 3, TranslationKind.SINGLEVAR, false)); //$NON-NLS-1$
+		StatemachineHeatmap heatmap = new StatemachineHeatmap(engine);
+		StatemachineAnimationEngine copy = new StatemachineAnimationEngine(ring("sm", 3, TranslationKind.SINGLEVAR, false)); //$NON-NLS-1$
+		StatemachineAnimationEngine larger = new StatemachineAnimationEngine(ring("sm", 4, TranslationKind.SINGLEVAR, false)); //$NON-NLS-1$
+		try {
+			heatmap.setEngine(copy);
+			assertSame(copy, heatmap.getEngine());
+			heatmap.countStep(copy.map(variables("sm", "sm_S1"), operations(), null, null)); //$NON-NLS-1$ //$NON-NLS-2$
+			assertEquals(1, heatmap.getOccupancy(1));
+			try {
+				heatmap.setEngine(larger);
+				fail("an engine with a different structure was accepted"); //$NON-NLS-1$
+			} catch (IllegalArgumentException e) {
+				assertSame(copy, heatmap.getEngine());
+			}
+		} finally {
+			copy.dispose();
+			larger.dispose();
+		}
+	}
+
+	@Test
+	public void countersAreWrittenAsCsv() throws IOException {
+		engine = new StatemachineAnimationEngine(ring("sm", 2, TranslationKind.SINGLEVAR, false)); //$NON-NLS-1$
+		StatemachineHeatmap heatmap = new StatemachineHeatmap(engine);
+		heatmap.countStep(engine.map(variables("sm", "sm_S0"), operations("sm_e0"), null, null)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		heatmap.countFiring("sm_e0"); //$NON-NLS-1$
+		StringWriter writer = new StringWriter();
+		heatmap.writeCsv(writer);
+
+		assertEquals(
+				"\"sm\",state,\"sm.sm_S0\",1,1,1.0000,,,\n" + //$NON-NLS-1$
+				"\"sm\",state,\"sm.sm_S1\",1,0,0.0000,,,\n" + //$NON-NLS-1$
+				"\"sm\",transition,\"sm_S0->sm_S1 sm_e0\",1,,,,1,1\n" + //$NON-NLS-1$
+				"\"sm\",transition,\"sm_S1->sm_S0 sm_e1\",1,,,,0,0\n", //$NON-NLS-1$
+				writer.toString());
+	}
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.engine;
+
+import static ac.soton.eventb.statemachines.animation.tests.TestStatemachines.function;
+import static ac.soton.eventb.statemachines.animation.tests.TestStatemachines.operations;
+import static ac.soton.eventb.statemachines.animation.tests.TestStatemachines.ring;
+import static ac.soton.eventb.statemachines.animation.tests.TestStatemachines.variables;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ac.soton.eventb.statemachines.State;
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.TranslationKind;
+
+/**
+ * Records animation steps with the trace recorder and checks that the trace reader gives them back.
+ *
+ * @author cfsnook
+ *
+ */
+public class StatemachineTraceRecorderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private StatemachineAnimationEngine engine;
+
+	@After
+	public void tearDown() {
+		if (engine != null) {
+			engine.dispose();
+		}
+	}
+
+	@Test
+	public void header() throws IOException {
+		engine = new StatemachineAnimationEngine(ring("sm", 3, TranslationKind.SINGLEVAR, false)); //$NON-NLS-1$
+		File file = folder.newFile();
+		new StatemachineTraceRecorder(file, engine).close();
+
+		StatemachineTraceReader reader = new StatemachineTraceReader(file);
+		assertEquals("sm", reader.getStatemachineName()); //$NON-NLS-1$
+		assertFalse(reader.isLifted());
+		assertEquals(Arrays.asList("sm_S0", "sm_S1", "sm_S2"), reader.getStateNames()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		assertEquals(Arrays.asList("sm_e0", "sm_e1", "sm_e2"), reader.getTransitionLabels()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		assertEquals(0, reader.getStepCount());
+		assertFalse(reader.next());
+	}
+
+	@Test
+	public void traceMatchesTheSameStatesAndTransitions() throws IOException {
+		engine = new StatemachineAnimationEngine(ring("sm", 3, TranslationKind.SINGLEVAR, false)); //$NON-NLS-1$
+		File file = folder.newFile();
+		new StatemachineTraceRecorder(file, engine).close();
+		StatemachineTraceReader reader = new StatemachineTraceReader(file);
+		assertTrue(engine.matches(reader));
+
+		Statemachine other = ring("sm", 3, TranslationKind.SINGLEVAR, false); //$NON-NLS-1$
+		other.getTransitions().get(1).getElaborates().get(0).setName("renamed"); //$NON-NLS-1$
+		assertNoMatch(other, reader);
+		other = ring("sm", 3, TranslationKind.SINGLEVAR, false); //$NON-NLS-1$
+		((State) other.getNodes().get(2)).setName("renamed"); //$NON-NLS-1$
+		assertNoMatch(other, reader);
+		assertNoMatch(ring("sm", 4, TranslationKind.SINGLEVAR, false), reader); //$NON-NLS-1$
+	}
+
+	@Test
+	public void statesAndTransitions() throws IOException {
+		engine = new StatemachineAnimationEngine(ring("sm", 5, TranslationKind.SINGLEVAR, false)); //$NON-NLS-1$
+		List<StatemachineSnapshot> steps = new ArrayList<StatemachineSnapshot>();
+		StatemachineSnapshot previous = null;
+		for (int i = 0; i < 12; i++) {
+			// a step where nothing changes every third step
+			int s = i - i / 3;
+			previous = engine.map(variables("sm", "sm_S" + s % 5), operations("sm_e" + s % 5, "sm_e" + (s + 2) % 5), previous, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			steps.add(previous);
+		}
+		File file = record(steps);
+
+		StatemachineTraceReader reader = new StatemachineTraceReader(file);
+		assertEquals(steps.size(), reader.getStepCount());
+		for (StatemachineSnapshot snapshot : steps) {
+			assertTrue(reader.next());
+			assertSameStep(snapshot, reader);
+		}
+		assertFalse(reader.next());
+	}
+
+	@Test
+	public void liftedInstances() throws IOException {
+		engine = new StatemachineAnimationEngine(ring("sm", 3, TranslationKind.SINGLEVAR, true)); //$NON-NLS-1$
+		String[][] values = {
+				{"a", "sm_S0", "b", "sm_S0", "c", "sm_S0", "d", "sm_S1"}, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$
+				// one instance moves (written as a change to the instances)
+				{"a", "sm_S0", "b", "sm_S1", "c", "sm_S0", "d", "sm_S1"}, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$
+				// instances added before, between and after the others
+				{"a", "sm_S0", "b", "sm_S1", "c", "sm_S0", "d", "sm_S1", "e", "sm_S0", "f", "sm_S0", "g", "sm_S0"}, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$ //$NON-NLS-9$ //$NON-NLS-10$ //$NON-NLS-11$ //$NON-NLS-12$ //$NON-NLS-13$ //$NON-NLS-14$
+				{"0", "sm_S0", "a", "sm_S0", "b", "sm_S1", "c", "sm_S0", "d", "sm_S1", "e", "sm_S0", "f", "sm_S0", "g", "sm_S0"}, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$ //$NON-NLS-9$ //$NON-NLS-10$ //$NON-NLS-11$ //$NON-NLS-12$ //$NON-NLS-13$ //$NON-NLS-14$ //$NON-NLS-15$ //$NON-NLS-16$
+				// the same instances in a different order (written in full)
+				{"g", "sm_S0", "f", "sm_S0", "e", "sm_S0", "c", "sm_S0", "a", "sm_S0", "0", "sm_S0", "b", "sm_S1", "d", "sm_S1"}, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$ //$NON-NLS-9$ //$NON-NLS-10$ //$NON-NLS-11$ //$NON-NLS-12$ //$NON-NLS-13$ //$NON-NLS-14$ //$NON-NLS-15$ //$NON-NLS-16$
+				// a state is left by all its instances and another is entered
+				{"b", "sm_S2", "d", "sm_S2", "g", "sm_S0", "a", "sm_S0"}, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$
+				{}
+		};
+		List<StatemachineSnapshot> steps = new ArrayList<StatemachineSnapshot>();
+		StatemachineSnapshot previous = null;
+		for (String[] value : values) {
+			previous = engine.map(variables("sm", function(value)), operations(), previous, null); //$NON-NLS-1$
+			steps.add(previous);
+		}
+		File file = record(steps);
+
+		StatemachineTraceReader reader = new StatemachineTraceReader(file);
+		assertTrue(reader.isLifted());
+		for (StatemachineSnapshot snapshot : steps) {
+			assertTrue(reader.next());
+			assertSameStep(snapshot, reader);
+			for (int i = 0; i < engine.getStates().size(); i++) {
+				assertEquals(snapshot.getInstances(i).getText(), reader.getInstances(i));
+			}
+		}
+	}
+
+	@Test
+	public void seek() throws IOException {
+		engine = new StatemachineAnimationEngine(ring("sm", 4, TranslationKind.SINGLEVAR, true)); //$NON-NLS-1$
+		List<StatemachineSnapshot> steps = new ArrayList<StatemachineSnapshot>();
+		StatemachineSnapshot previous = null;
+		for (int i = 0; i < 50; i++) {
+			previous = engine.map(variables("sm", function("a", "sm_S" + i % 4, "b", "sm_S" + i / 3 % 4, "c", "sm_S0")), operations("sm_e" + i % 4), previous, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$
+			steps.add(previous);
+		}
+		File file = record(steps);
+
+		StatemachineTraceReader reader = new StatemachineTraceReader(file, 8);
+		for (int target : new int[] {20, 3, 49, 0, 17, 16, 41}) {
+			reader.seek(target);
+			assertEquals(target, reader.getStep());
+			assertSameStep(steps.get(target), reader);
+		}
+		reader.indexKeyframes();
+		assertEquals(41, reader.getStep());
+		reader.seek(9);
+		assertSameStep(steps.get(9), reader);
+	}
+
+	@Test
+	public void canceledIndexingLeavesTheReaderAtItsStep() throws IOException {
+		engine = new StatemachineAnimationEngine(ring("sm", 4, TranslationKind.SINGLEVAR, false)); //$NON-NLS-1$
+		List<StatemachineSnapshot> steps = new ArrayList<StatemachineSnapshot>();
+		for (int i = 0; i < 50; i++) {
+			steps.add(engine.map(variables("sm", "sm_S" + i % 4), operations("sm_e" + i % 4), null, null)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+		File file = record(steps);
+
+		StatemachineTraceReader reader = new StatemachineTraceReader(file, 8);
+		reader.seek(5);
+		boolean indexed = reader.indexKeyframes(new NullProgressMonitor() {
+			@Override
+			public boolean isCanceled() {
+				return true;
+			}
+		});
+		assertFalse(indexed);
+		assertEquals(5, reader.getStep());
+		assertSameStep(steps.get(5), reader);
+		assertTrue(reader.indexKeyframes(new NullProgressMonitor()));
+		reader.seek(45);
+		assertSameStep(steps.get(45), reader);
+	}
+
+	@Test
+	public void flushedStepsCanBeReadBeforeClosing() throws IOException {
+		engine = new StatemachineAnimationEngine(ring("sm", 3, TranslationKind.SINGLEVAR, false)); //$NON-NLS-1$
+		File file = folder.newFile();
+		StatemachineTraceRecorder recorder = new StatemachineTraceRecorder(file, engine);
+		try {
+			recorder.record(variables("sm", "sm_S0"), operations("sm_e0")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			recorder.record(variables("sm", "sm_S1"), operations("sm_e1")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			recorder.flush();
+			recorder.record(variables("sm", "sm_S2"), operations("sm_e2")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+			StatemachineTraceReader reader = new StatemachineTraceReader(file);
+			assertEquals(2, reader.getStepCount());
+			reader.seek(1);
+			assertTrue(reader.isActive(1));
+			assertTrue(reader.isEnabled(1));
+		} finally {
+			recorder.close();
+		}
+		StatemachineTraceReader reader = new StatemachineTraceReader(file);
+		assertEquals(3, reader.getStepCount());
+		reader.seek(2);
+		assertTrue(reader.isActive(2));
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	private File record(List<StatemachineSnapshot> steps) throws IOException {
+		File file = folder.newFile();
+		StatemachineTraceRecorder recorder = new StatemachineTraceRecorder(file, engine);
+		try {
+			for (StatemachineSnapshot snapshot : steps) {
+				recorder.record(snapshot);
+			}
+			assertEquals(steps.size(), recorder.getStepCount());
+		} finally {
+			recorder.close();
+		}
+		return file;
+	}
+
+	private static void assertNoMatch(Statemachine statemachine, StatemachineTraceReader reader) {
+		StatemachineAnimationEngine other = new StatemachineAnimationEngine(statemachine);
+		try {
+			assertFalse(other.matches(reader));
+		} finally {
+			other.dispose();
+		}
+	}
+
+	/**
+	 * Checks that the reader is at the recorded step, by comparing the snapshot that the engine computes from it
+	 */
+	private void assertSameStep(StatemachineSnapshot expected, StatemachineTraceReader reader) {
+		StatemachineSnapshot replayed = engine.map(reader);
+		for (int i = 0; i < engine.getStates().size(); i++) {
+			assertTrue("state " + i + " at step " + reader.getStep(), replayed.sameState(expected, i)); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		for (int i = 0; i < engine.getTransitions().size(); i++) {
+			assertEquals("transition " + i + " at step " + reader.getStep(), expected.getOperations(i) != null, reader.isEnabled(i)); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+}
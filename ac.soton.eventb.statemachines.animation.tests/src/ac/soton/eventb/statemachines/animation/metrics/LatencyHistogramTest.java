@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the buckets and statistics of the latency histogram.
+ *
+ * @author cfsnook
+ *
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void empty() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getMean(), 0);
+		assertEquals(0, h.getMax());
+		assertEquals(0, h.getPercentile(99));
+	}
+
+	@Test
+	public void smallDurationsAreExact() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (long nanos = 0; nanos < 8; nanos++) {
+			h.record(nanos);
+		}
+		h.record(1000);
+		// (the percentile of rank k of the 9 durations)
+		for (int k = 1; k <= 8; k++) {
+			assertEquals(k - 1, h.getPercentile((100.0 * k - 50) / 9));
+		}
+		assertEquals(1000, h.getPercentile(100));
+	}
+
+	@Test
+	public void bucketsAreWithinAnEighth() {
+		for (long nanos = 8; nanos > 0 && nanos < Long.MAX_VALUE / 3; nanos = nanos * 3 + 1) {
+			LatencyHistogram h = new LatencyHistogram();
+			h.record(nanos);
+			h.record(Long.MAX_VALUE);
+			// the median is the upper bound of the bucket of nanos
+			long median = h.getPercentile(50);
+			assertTrue(nanos + " in " + median, median >= nanos && median - nanos <= nanos / 8); //$NON-NLS-1$
+		}
+	}
+
+	@Test
+	public void percentilesOfAUniformDistribution() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (int micros = 1; micros <= 1000; micros++) {
+			h.record(micros * 1000L);
+		}
+		assertEquals(1000, h.getCount());
+		assertEquals(500500000L, h.getTotal());
+		assertEquals(500500, h.getMean(), 0.001);
+		assertEquals(1000000, h.getMax());
+		assertWithinAnEighth(500000, h.getPercentile(50));
+		assertWithinAnEighth(900000, h.getPercentile(90));
+		assertWithinAnEighth(990000, h.getPercentile(99));
+		assertEquals(1000000, h.getPercentile(100));
+	}
+
+	@Test
+	public void negativeDurationsAreZero() {
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(-5);
+		assertEquals(1, h.getCount());
+		assertEquals(0, h.getTotal());
+		assertEquals(0, h.getPercentile(50));
+	}
+
+	@Test
+	public void reset() {
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(100);
+		h.record(Long.MAX_VALUE);
+		h.reset();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getMax());
+		assertEquals(0, h.getPercentile(100));
+		h.record(3);
+		assertEquals(3, h.getPercentile(100));
+	}
+
+	@Test
+	public void concurrentRecording() throws InterruptedException {
+		final LatencyHistogram h = new LatencyHistogram();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final long nanos = 1000L * (t + 1);
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						h.record(nanos);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(40000, h.getCount());
+		assertEquals(10000L * (1000 + 2000 + 3000 + 4000), h.getTotal());
+		assertEquals(4000, h.getMax());
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	private static void assertWithinAnEighth(long expected, long actual) {
+		assertTrue(expected + " ~ " + actual, Math.abs(actual - expected) <= expected / 8); //$NON-NLS-1$
+	}
+}
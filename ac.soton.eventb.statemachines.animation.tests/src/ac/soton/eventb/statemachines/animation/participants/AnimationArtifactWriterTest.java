@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.participants;
+
+import static ac.soton.eventb.statemachines.animation.tests.TestStatemachines.operations;
+import static ac.soton.eventb.statemachines.animation.tests.TestStatemachines.ring;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.ecore.resource.impl.ResourceImpl;
+import org.eclipse.emf.transaction.RecordingCommand;
+import org.eclipse.emf.transaction.TransactionalEditingDomain;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ac.soton.eventb.statemachines.State;
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.Transition;
+import ac.soton.eventb.statemachines.TranslationKind;
+
+/**
+ * Tests that the animation attributes are written without leaving an undo history
+ * and without making the resource of the statemachine dirty.
+ *
+ * The resource tracks its modification, as the resources of the statemachine diagram editors do.
+ *
+ * @author cfsnook
+ *
+ */
+public class AnimationArtifactWriterTest {
+
+	private TransactionalEditingDomain editingDomain;
+	private Resource resource;
+	private Statemachine statemachine;
+
+	@Before
+	public void setUp() {
+		editingDomain = TransactionalEditingDomain.Factory.INSTANCE.createEditingDomain();
+		resource = new ResourceImpl(URI.createURI("test:/statemachine")); //$NON-NLS-1$
+		resource.setTrackingModification(true);
+		statemachine = ring("sm", 3, TranslationKind.SINGLEVAR, false); //$NON-NLS-1$
+		editingDomain.getCommandStack().execute(new RecordingCommand(editingDomain) {
+			@Override
+			protected void doExecute() {
+				editingDomain.getResourceSet().getResources().add(resource);
+				resource.getContents().add(statemachine);
+			}
+		});
+		editingDomain.getCommandStack().flush();
+		resource.setModified(false);
+	}
+
+	@After
+	public void tearDown() {
+		editingDomain.dispose();
+	}
+
+	@Test
+	public void writesWithoutUndoHistory() {
+		AnimationArtifactWriter writer = new AnimationArtifactWriter(editingDomain);
+		writer.setActive(getState(0), true);
+		writer.setOperations(getTransition(0), operations("sm_e0")); //$NON-NLS-1$
+		writer.apply();
+
+		assertTrue(getState(0).isActive());
+		assertEquals(1, getTransition(0).getOperations().size());
+		assertFalse(editingDomain.getCommandStack().canUndo());
+		assertTrue(writer.isEmpty());
+	}
+
+	@Test
+	public void leavesTheResourceClean() {
+		AnimationArtifactWriter writer = new AnimationArtifactWriter(editingDomain);
+		writer.setActive(getState(1), true);
+		writer.apply();
+		assertFalse(resource.isModified());
+
+		writer.unsetState(getState(1));
+		writer.unsetOperations(getTransition(1));
+		writer.apply();
+		assertFalse(resource.isModified());
+	}
+
+	@Test
+	public void leavesAnEditedResourceDirty() {
+		resource.setModified(true);
+		AnimationArtifactWriter writer = new AnimationArtifactWriter(editingDomain);
+		writer.setActive(getState(2), true);
+		writer.apply();
+		assertTrue(resource.isModified());
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	private State getState(int i) {
+		return (State) statemachine.getNodes().get(i);
+	}
+
+	private Transition getTransition(int i) {
+		return statemachine.getTransitions().get(i);
+	}
+}
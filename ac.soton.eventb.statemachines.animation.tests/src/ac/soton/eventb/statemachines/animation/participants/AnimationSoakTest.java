@@ -0,0 +1,529 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.participants;
+
+import static ac.soton.eventb.statemachines.animation.tests.TestStatemachines.function;
+import static ac.soton.eventb.statemachines.animation.tests.TestStatemachines.nest;
+import static ac.soton.eventb.statemachines.animation.tests.TestStatemachines.operations;
+import static ac.soton.eventb.statemachines.animation.tests.TestStatemachines.ring;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.eclipse.core.commands.IExecutionListener;
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.ecore.resource.impl.ResourceImpl;
+import org.eclipse.emf.transaction.RecordingCommand;
+import org.eclipse.emf.transaction.TransactionalEditingDomain;
+import org.eclipse.gmf.runtime.notation.Diagram;
+import org.eclipse.gmf.runtime.notation.NotationFactory;
+import org.eclipse.ui.IPartListener2;
+import org.eclipse.ui.IWorkbenchPartReference;
+import org.eventb.core.IMachineRoot;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rodinp.core.IRodinProject;
+
+import ac.soton.eventb.probsupport.data.Operation_;
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.TranslationKind;
+import ac.soton.eventb.statemachines.animation.engine.StatemachineHeatmap;
+import ac.soton.eventb.statemachines.animation.engine.StatemachineTraceReader;
+import ac.soton.eventb.statemachines.animation.metrics.LatencyHistogram;
+import ac.soton.eventb.statemachines.diagram.part.StatemachinesDiagramEditor;
+
+/**
+ * Runs a long animation of several statemachine editors through the animation participant, with a stand-in
+ * for the animator and the workbench, to catch leaks and slowdowns that only show after many steps
+ * (e.g. growing buffers, an undo history that grows with every step, engines left listening to their statemachines
+ * or editors retained after they have been closed).
+ *
+ * Each editor has its own copy of its statemachine in its own transactional editing domain, as real editors do,
+ * and one statemachine is shown by two editors. The participant is started, updated at every step (its traces
+ * and heatmaps are on) and stopped as the prob support plugin does. The test waits for each step to be processed
+ * and then runs the diagram updates that the participant has passed to the UI thread. The second editor of the
+ * statemachine is closed during the warm-up. The used heap is sampled after a garbage collection every sample
+ * interval, and the step latencies of each interval are kept in a histogram. The samples are written to
+ * soak-samples.csv in the output directory.
+ * The test fails if, after the warm-up, the used heap grows by more than the limit or the median or 99th percentile
+ * step latency of the last interval exceeds that of the first by more than the limit, if a step is missing from the
+ * traces or heatmaps, if the animation leaves an undo history, listeners or adapters behind, or if an editor cannot be
+ * garbage collected once it has been closed (or the animation has stopped).
+ *
+ * This is only run by the soak profile (mvn -Psoak verify). The sizes and limits are system properties:
+ * soak.steps, soak.warmup, soak.sampleInterval, soak.statemachines, soak.states, soak.instances,
+ * soak.maxHeapGrowthMB, soak.maxMedianDrift, soak.maxTailDrift and soak.outputDirectory.
+ *
+ * @author cfsnook
+ *
+ */
+public class AnimationSoakTest {
+
+	private static final long MB = 1024 * 1024;
+
+	private final long steps = Long.getLong("soak.steps", 200000); //$NON-NLS-1$
+	private final long warmup = Long.getLong("soak.warmup", 20000); //$NON-NLS-1$
+	private final long sampleInterval = Math.max(1, Long.getLong("soak.sampleInterval", 10000)); //$NON-NLS-1$
+	private final int statemachineCount = Integer.getInteger("soak.statemachines", 4); //$NON-NLS-1$
+	private final int states = Integer.getInteger("soak.states", 50); //$NON-NLS-1$
+	private final int instances = Integer.getInteger("soak.instances", 100); //$NON-NLS-1$
+	private final long maxHeapGrowth = Long.getLong("soak.maxHeapGrowthMB", 16) * MB; //$NON-NLS-1$
+	private final double maxMedianDrift = Double.parseDouble(System.getProperty("soak.maxMedianDrift", "1.5")); //$NON-NLS-1$ //$NON-NLS-2$
+	private final double maxTailDrift = Double.parseDouble(System.getProperty("soak.maxTailDrift", "3.0")); //$NON-NLS-1$ //$NON-NLS-2$
+	private final File outputDirectory = new File(System.getProperty("soak.outputDirectory", "target")); //$NON-NLS-1$ //$NON-NLS-2$
+
+	private final SoakHost host = new SoakHost();
+	private final IMachineRoot mchRoot = createMachineRoot("soak"); //$NON-NLS-1$
+	private StatemachineAnimationParticipant participant;
+	private File traceDirectory;
+	// the editing domain of each editor (which outlive the editors) and the number of adapters on its statemachine
+	private final List<TransactionalEditingDomain> editingDomains = new ArrayList<TransactionalEditingDomain>();
+	private final List<Statemachine> statemachines = new ArrayList<Statemachine>();
+	private final List<Integer> adapters = new ArrayList<Integer>();
+
+	@Before
+	public void setUp() throws IOException {
+		traceDirectory = new File(outputDirectory, "soak-traces"); //$NON-NLS-1$
+		deleteTraces();
+		for (int i = 0; i < statemachineCount; i++) {
+			host.editors.add(createEditor(i));
+		}
+		// a second editor of the first statemachine
+		host.editors.add(createEditor(0));
+		participant = new StatemachineAnimationParticipant(host);
+		participant.setFrameInterval(0);
+		participant.setHeatmapEnabled(true);
+		participant.setTraceDirectory(traceDirectory);
+	}
+
+	@After
+	public void tearDown() {
+		if (participant != null) {
+			participant.stopAnimation(mchRoot);
+		}
+		host.editors.clear();
+		for (TransactionalEditingDomain editingDomain : editingDomains) {
+			editingDomain.dispose();
+		}
+		deleteTraces();
+	}
+
+	@Test
+	public void longAnimationDoesNotLeakOrSlowDown() throws Exception {
+		StringBuilder samples = new StringBuilder(String.format(Locale.ROOT,
+				"# %d steps of %d statemachines (%d states, %d instances)%n", steps, statemachineCount, states, instances)); //$NON-NLS-1$
+		samples.append("step,heap_mb,p50_us,p99_us").append(System.lineSeparator()); //$NON-NLS-1$
+		List<WeakReference<StatemachinesDiagramEditor>> editors = getEditorReferences();
+		WeakReference<StatemachinesDiagramEditor> closed = editors.get(editors.size() - 1);
+		LatencyHistogram latencies = new LatencyHistogram();
+		long firstHeap = -1;
+		long firstP50 = -1;
+		long firstP99 = -1;
+		long lastHeap = -1;
+		long lastP50 = -1;
+		long lastP99 = -1;
+
+		host.setState(0);
+		participant.startAnimation(mchRoot);
+		assertEquals(statemachineCount + 1, participant.getAttachedEditorCount());
+		awaitStep();
+		for (long step = 1; step <= steps; step++) {
+			// (the animator gives new values at each step)
+			host.setState(step);
+			long start = System.nanoTime();
+			participant.updateAnimation(mchRoot);
+			awaitStep();
+			latencies.record(System.nanoTime() - start);
+			if (step == Math.max(1, warmup / 2)) {
+				closeEditor(closed.get());
+			}
+			if (step == warmup) {
+				latencies.reset();
+			} else if (step > warmup && (step - warmup) % sampleInterval == 0) {
+				lastHeap = collectGarbage();
+				lastP50 = latencies.getPercentile(50);
+				lastP99 = latencies.getPercentile(99);
+				if (firstHeap < 0) {
+					firstHeap = lastHeap;
+					firstP50 = lastP50;
+					firstP99 = lastP99;
+				}
+				samples.append(String.format(Locale.ROOT, "%d,%.1f,%.1f,%.1f%n", //$NON-NLS-1$
+						step, (double) lastHeap / MB, lastP50 / 1000.0, lastP99 / 1000.0));
+				latencies.reset();
+			}
+		}
+		writeSamples(samples);
+
+		assertTrue("Too few steps after the warm-up to compare samples", steps - warmup >= 2 * sampleInterval); //$NON-NLS-1$
+		assertTrue(String.format(Locale.ROOT, "The used heap grew by %.1f MB%n%s", (double) (lastHeap - firstHeap) / MB, samples), //$NON-NLS-1$
+				lastHeap - firstHeap <= maxHeapGrowth);
+		assertDrift("median", firstP50, lastP50, maxMedianDrift, samples); //$NON-NLS-1$
+		assertDrift("99th percentile", firstP99, lastP99, maxTailDrift, samples); //$NON-NLS-1$
+		assertEquals(statemachineCount, participant.getAttachedEditorCount());
+		collectGarbage();
+		assertNull("The closed editor is retained by the animation", closed.get()); //$NON-NLS-1$
+
+		participant.stopAnimation(mchRoot);
+		assertEquals(0, participant.getAttachedEditorCount());
+		assertNull("The part listener was not removed", host.partListener); //$NON-NLS-1$
+		assertNull("The command listener was not removed", host.commandListener); //$NON-NLS-1$
+		for (int i = 0; i < editingDomains.size(); i++) {
+			assertFalse("The animation left an undo history", editingDomains.get(i).getCommandStack().canUndo()); //$NON-NLS-1$
+			assertEquals("Adapters left on " + statemachines.get(i).getName(), adapters.get(i).intValue(), statemachines.get(i).eAdapters().size()); //$NON-NLS-1$
+		}
+		// (the start of the animation is its first step)
+		List<StatemachineHeatmap> heatmaps = participant.getHeatmaps(mchRoot);
+		assertEquals(statemachineCount, heatmaps.size());
+		for (StatemachineHeatmap heatmap : heatmaps) {
+			assertEquals("Steps counted in " + heatmap.getStatemachineName(), steps + 1, heatmap.getStepCount()); //$NON-NLS-1$
+		}
+		Map<String, Long> traced = getTracedSteps();
+		assertEquals(statemachineCount, traced.size());
+		for (Map.Entry<String, Long> trace : traced.entrySet()) {
+			assertEquals("Steps recorded for " + trace.getKey(), steps + 1, trace.getValue().longValue()); //$NON-NLS-1$
+		}
+		host.editors.clear();
+		collectGarbage();
+		for (WeakReference<StatemachinesDiagramEditor> editor : editors) {
+			assertNull("An editor is retained after the animation stopped", editor.get()); //$NON-NLS-1$
+		}
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	/**
+	 * Waits until the participant has processed the latest step and then runs the diagram updates
+	 * that it has passed to the UI thread (the test thread stands in for the UI thread)
+	 */
+	private void awaitStep() throws InterruptedException {
+		participant.join(mchRoot);
+		Runnable runnable;
+		while ((runnable = host.ui.poll()) != null) {
+			runnable.run();
+		}
+	}
+
+	/**
+	 * @return weak references to the open editors (so that the test itself does not retain them)
+	 */
+	private List<WeakReference<StatemachinesDiagramEditor>> getEditorReferences() {
+		List<WeakReference<StatemachinesDiagramEditor>> editors = new ArrayList<WeakReference<StatemachinesDiagramEditor>>();
+		for (StatemachinesDiagramEditor editor : host.getOpenEditors()) {
+			editors.add(new WeakReference<StatemachinesDiagramEditor>(editor));
+		}
+		return editors;
+	}
+
+	/**
+	 * Closes an editor as the workbench does, and drops it
+	 */
+	private void closeEditor(final StatemachinesDiagramEditor editor) {
+		host.editors.remove(editor);
+		IWorkbenchPartReference partRef = (IWorkbenchPartReference) Proxy.newProxyInstance(IWorkbenchPartReference.class.getClassLoader(),
+				new Class<?>[] {IWorkbenchPartReference.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if ("getPart".equals(method.getName())) { //$NON-NLS-1$
+					return editor;
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+		host.partListener.partClosed(partRef);
+	}
+
+	/**
+	 * Creates an editor with a new copy of a statemachine in its own editing domain:
+	 * alternately a ring with a nested ring in its first state, and a lifted ring
+	 */
+	private StatemachinesDiagramEditor createEditor(int i) {
+		Statemachine statemachine;
+		if (i % 2 == 0) {
+			statemachine = ring("sm" + i, states, TranslationKind.SINGLEVAR, false); //$NON-NLS-1$
+			nest(statemachine, 0, ring("sm" + i + "n", states, TranslationKind.SINGLEVAR, false)); //$NON-NLS-1$ //$NON-NLS-2$
+		} else {
+			statemachine = ring("sm" + i, states, TranslationKind.SINGLEVAR, true); //$NON-NLS-1$
+		}
+		final TransactionalEditingDomain editingDomain = TransactionalEditingDomain.Factory.INSTANCE.createEditingDomain();
+		final Resource resource = new ResourceImpl(URI.createURI("soak:/statemachine" + i)); //$NON-NLS-1$
+		final Statemachine contents = statemachine;
+		editingDomain.getCommandStack().execute(new RecordingCommand(editingDomain) {
+			@Override
+			protected void doExecute() {
+				editingDomain.getResourceSet().getResources().add(resource);
+				resource.getContents().add(contents);
+			}
+		});
+		editingDomain.getCommandStack().flush();
+		editingDomains.add(editingDomain);
+		statemachines.add(statemachine);
+		adapters.add(statemachine.eAdapters().size());
+		Diagram diagram = NotationFactory.eINSTANCE.createDiagram();
+		diagram.setElement(statemachine);
+		return new SoakEditor(diagram);
+	}
+
+	/**
+	 * @return the values of the variables at a step: each ring is in its next state, and the instances
+	 * 			of the lifted rings are spread over the states, each moving on by one state at each step
+	 */
+	private Map<String, String> getVariables(long step) {
+		Map<String, String> variables = new HashMap<String, String>();
+		int s = (int) (step % states);
+		for (int i = 0; i < statemachineCount; i++) {
+			if (i % 2 == 0) {
+				variables.put("sm" + i, "sm" + i + "_S" + s); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				variables.put("sm" + i + "n", "sm" + i + "n_S" + s); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			} else {
+				String[] instancesAndStates = new String[2 * instances];
+				for (int k = 0; k < instances; k++) {
+					instancesAndStates[2 * k] = "i" + k; //$NON-NLS-1$
+					instancesAndStates[2 * k + 1] = "sm" + i + "_S" + (k + s) % states; //$NON-NLS-1$ //$NON-NLS-2$
+				}
+				variables.put("sm" + i, function(instancesAndStates)); //$NON-NLS-1$
+			}
+		}
+		return variables;
+	}
+
+	/**
+	 * @return the enabled operations at a step: the event of the transition out of the current state
+	 * 			of each ring, with two parameter values
+	 */
+	private List<Operation_> getOperations(long step) {
+		int s = (int) (step % states);
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < statemachineCount; i++) {
+			names.add("sm" + i + "_e" + s + ":1"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			names.add("sm" + i + "_e" + s + ":2"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			if (i % 2 == 0) {
+				names.add("sm" + i + "n_e" + s + ":1"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			}
+		}
+		return operations(names.toArray(new String[names.size()]));
+	}
+
+	/**
+	 * @return the largest number of steps recorded in a trace of each statemachine
+	 * 			(the closed editor's trace of the first statemachine ends early)
+	 */
+	private Map<String, Long> getTracedSteps() throws IOException {
+		Map<String, Long> traced = new HashMap<String, Long>();
+		File[] files = traceDirectory.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			StatemachineTraceReader reader = new StatemachineTraceReader(file);
+			Long count = traced.get(reader.getStatemachineName());
+			traced.put(reader.getStatemachineName(), Math.max(count == null ? 0 : count, reader.getStepCount()));
+		}
+		return traced;
+	}
+
+	private void writeSamples(StringBuilder samples) throws IOException {
+		outputDirectory.mkdirs();
+		Files.write(new File(outputDirectory, "soak-samples.csv").toPath(), samples.toString().getBytes(StandardCharsets.UTF_8)); //$NON-NLS-1$
+	}
+
+	private void deleteTraces() {
+		File[] files = traceDirectory.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			file.delete();
+		}
+	}
+
+	private static void assertDrift(String percentile, long first, long last, double maxDrift, StringBuilder samples) {
+		double drift = (double) last / Math.max(1, first);
+		assertTrue(String.format(Locale.ROOT, "The %s step latency drifted from %.1f us to %.1f us (x%.2f)%n%s", //$NON-NLS-1$
+				percentile, first / 1000.0, last / 1000.0, drift, samples), drift <= maxDrift);
+	}
+
+	/**
+	 * Collects garbage until the used heap stops shrinking
+	 *
+	 * @return the used heap in bytes
+	 */
+	private static long collectGarbage() {
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 10; i++) {
+			System.gc();
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			long now = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			if (now >= used) {
+				return now;
+			}
+			used = now;
+		}
+		return used;
+	}
+
+	/**
+	 * @return a machine root that only has a name (and a project of the same name)
+	 */
+	private static IMachineRoot createMachineRoot(final String name) {
+		final IRodinProject project = (IRodinProject) Proxy.newProxyInstance(IRodinProject.class.getClassLoader(),
+				new Class<?>[] {IRodinProject.class}, new NamedElement(name));
+		return (IMachineRoot) Proxy.newProxyInstance(IMachineRoot.class.getClassLoader(),
+				new Class<?>[] {IMachineRoot.class}, new NamedElement(name) {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return "getRodinProject".equals(method.getName()) ? project : super.invoke(proxy, method, args); //$NON-NLS-1$
+			}
+		});
+	}
+
+	/**
+	 * Answers the name and identity of a stand-in Rodin element
+	 */
+	private static class NamedElement implements InvocationHandler {
+
+		private final String name;
+
+		NamedElement(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String methodName = method.getName();
+			if ("getElementName".equals(methodName) || "getComponentName".equals(methodName) || "toString".equals(methodName)) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				return name;
+			} else if ("equals".equals(methodName)) { //$NON-NLS-1$
+				return proxy == args[0];
+			} else if ("hashCode".equals(methodName)) { //$NON-NLS-1$
+				return System.identityHashCode(proxy);
+			}
+			throw new UnsupportedOperationException(methodName);
+		}
+	}
+
+	/**
+	 * A statemachine editor that only has a diagram (and never has unsaved changes)
+	 */
+	private static class SoakEditor extends StatemachinesDiagramEditor {
+
+		private final Diagram diagram;
+
+		SoakEditor(Diagram diagram) {
+			this.diagram = diagram;
+		}
+
+		@Override
+		public Diagram getDiagram() {
+			return diagram;
+		}
+
+		@Override
+		public boolean isDirty() {
+			return false;
+		}
+
+		@Override
+		public void startAnimating() {
+		}
+
+		@Override
+		public void stopAnimating() {
+		}
+	}
+
+	/**
+	 * Stands in for the animator, whose state is set by the test at each step, and for the workbench,
+	 * whose UI thread is the test thread
+	 */
+	private class SoakHost implements AnimationHost {
+
+		private final List<StatemachinesDiagramEditor> editors = Collections.synchronizedList(new ArrayList<StatemachinesDiagramEditor>());
+		private final Queue<Runnable> ui = new ConcurrentLinkedQueue<Runnable>();
+		private volatile Map<String, String> variables;
+		private volatile List<Operation_> operations;
+		private volatile IPartListener2 partListener;
+		private volatile IExecutionListener commandListener;
+
+		void setState(long step) {
+			variables = AnimationSoakTest.this.getVariables(step);
+			operations = AnimationSoakTest.this.getOperations(step);
+		}
+
+		@Override
+		public Map<String, String> getVariables(IMachineRoot mchRoot) {
+			return variables;
+		}
+
+		@Override
+		public List<Operation_> getEnabledOperations(IMachineRoot mchRoot) {
+			return operations;
+		}
+
+		@Override
+		public IMachineRoot getTranslationTarget(Statemachine statemachine) {
+			return mchRoot;
+		}
+
+		@Override
+		public List<StatemachinesDiagramEditor> getOpenEditors() {
+			synchronized (editors) {
+				return new ArrayList<StatemachinesDiagramEditor>(editors);
+			}
+		}
+
+		@Override
+		public void addListeners(IPartListener2 partListener, IExecutionListener commandListener) {
+			this.partListener = partListener;
+			this.commandListener = commandListener;
+		}
+
+		@Override
+		public void removeListeners(IPartListener2 partListener, IExecutionListener commandListener) {
+			this.partListener = null;
+			this.commandListener = null;
+		}
+
+		@Override
+		public boolean asyncExec(Runnable runnable) {
+			ui.add(runnable);
+			return true;
+		}
+
+		@Override
+		public boolean syncExec(Runnable runnable) {
+			runnable.run();
+			return true;
+		}
+
+		@Override
+		public void timerExec(int delay, Runnable runnable) {
+			// (changes are not deferred, so there is no idle flush)
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eventb.emf.core.machine.Event;
+import org.eventb.emf.core.machine.MachineFactory;
+import org.eventb.emf.core.machine.Variable;
+
+import ac.soton.eventb.probsupport.data.Operation_;
+import ac.soton.eventb.statemachines.State;
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.StatemachinesFactory;
+import ac.soton.eventb.statemachines.Transition;
+import ac.soton.eventb.statemachines.TranslationKind;
+
+/**
+ * Builds small in-memory statemachines and animation inputs for the tests.
+ *
+ * A ring statemachine called name has the states name_S0 .. name_Sn-1 and a transition from each state
+ * to the next that elaborates its own event name_e0 .. name_en-1.
+ *
+ * @author cfsnook
+ *
+ */
+public final class TestStatemachines {
+
+	private static final char MAPLET = '\u21a6';
+
+	private TestStatemachines() {
+		//static utility
+	}
+
+	/**
+	 * @param name
+	 * @param states the number of states (and transitions)
+	 * @param translation
+	 * @param lifted true for a statemachine with instances
+	 * @return a ring statemachine
+	 */
+	public static Statemachine ring(String name, int states, TranslationKind translation, boolean lifted) {
+		Statemachine sm = StatemachinesFactory.eINSTANCE.createStatemachine();
+		sm.setName(name);
+		sm.setTranslation(translation);
+		if (lifted) {
+			Variable instances = MachineFactory.eINSTANCE.createVariable();
+			instances.setName("INSTANCES"); //$NON-NLS-1$
+			sm.setInstances(instances);
+		}
+		State[] nodes = new State[states];
+		for (int i = 0; i < states; i++) {
+			nodes[i] = StatemachinesFactory.eINSTANCE.createState();
+			nodes[i].setName(name + "_S" + i); //$NON-NLS-1$
+			sm.getNodes().add(nodes[i]);
+		}
+		for (int i = 0; i < states; i++) {
+			Transition transition = StatemachinesFactory.eINSTANCE.createTransition();
+			transition.setSource(nodes[i]);
+			transition.setTarget(nodes[(i + 1) % states]);
+			Event event = MachineFactory.eINSTANCE.createEvent();
+			event.setName(name + "_e" + i); //$NON-NLS-1$
+			transition.getElaborates().add(event);
+			sm.getTransitions().add(transition);
+		}
+		return sm;
+	}
+
+	/**
+	 * Nests a statemachine in a state
+	 *
+	 * @param parent
+	 * @param state the position of the state in the nodes of the parent
+	 * @param nested
+	 * @return the nested statemachine
+	 */
+	public static Statemachine nest(Statemachine parent, int state, Statemachine nested) {
+		((State) parent.getNodes().get(state)).getStatemachines().add(nested);
+		return nested;
+	}
+
+	/**
+	 * @param namesAndValues pairs of variable names and values
+	 * @return the values of the variables
+	 */
+	public static Map<String, String> variables(String... namesAndValues) {
+		Map<String, String> values = new HashMap<String, String>();
+		for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+			values.put(namesAndValues[i], namesAndValues[i + 1]);
+		}
+		return values;
+	}
+
+	/**
+	 * @param names the names of the enabled events, each optionally followed by its arguments after a colon, e.g. sm_e0:1,2
+	 * @return new operations (the animator gives new objects at each step)
+	 */
+	public static List<Operation_> operations(String... names) {
+		List<Operation_> ops = new ArrayList<Operation_>();
+		for (String name : names) {
+			int colon = name.indexOf(':');
+			List<String> arguments = colon < 0 ?
+					Collections.<String>emptyList() :
+					Arrays.asList(name.substring(colon + 1).split(",")); //$NON-NLS-1$
+			ops.add(new Operation_(colon < 0 ? name : name.substring(0, colon), arguments));
+		}
+		return ops;
+	}
+
+	/**
+	 * Builds the value of a lifted SINGLEVAR statemachine variable, e.g. {(a&#x21a6;sm_S0),(b&#x21a6;sm_S1)}
+	 *
+	 * @param instancesAndStates pairs of instances and state names
+	 * @return
+	 */
+	public static String function(String... instancesAndStates) {
+		StringBuilder sb = new StringBuilder().append('{');
+		for (int i = 0; i + 1 < instancesAndStates.length; i += 2) {
+			if (i > 0) sb.append(',');
+			sb.append('(').append(instancesAndStates[i]).append(MAPLET).append(instancesAndStates[i + 1]).append(')');
+		}
+		return sb.append('}').toString();
+	}
+}
@@ -12,6 +12,8 @@ import org.eclipse.core.runtime.Status;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
 
+import ac.soton.eventb.statemachines.animation.metrics.AnimationMetricsRegistry;
+
 
 /**
  * The activator class controls the plug-in life cycle
@@ -45,6 +47,7 @@ public class StatemachineAnimationPlugin extends AbstractUIPlugin {
 	 * @see org.eclipse.ui.plugin.AbstractUIPlugin#stop(org.osgi.framework.BundleContext)
 	 */
 	public void stop(BundleContext context) throws Exception {
+		AnimationMetricsRegistry.getDefault().dispose();
 		plugin = null;
 		super.stop(context);
 	}
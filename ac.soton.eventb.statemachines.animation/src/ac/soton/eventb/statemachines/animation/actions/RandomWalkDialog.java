@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.actions;
+
+import org.eclipse.jface.dialogs.Dialog;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.layout.GridData;
+import org.eclipse.swt.layout.GridLayout;
+import org.eclipse.swt.widgets.Button;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Control;
+import org.eclipse.swt.widgets.Label;
+import org.eclipse.swt.widgets.Shell;
+import org.eclipse.swt.widgets.Spinner;
+
+/**
+ * Asks for the parameters of a random walk: the number of steps, the number of steps between
+ * diagram updates and whether the operations are chosen by transition.
+ * The values are kept for the next walk.
+ *
+ * @author cfsnook
+ *
+ */
+class RandomWalkDialog extends Dialog {
+
+	private static int steps = 10000;
+	private static int updateInterval = 100;
+	private static boolean weighted = false;
+
+	private Spinner stepsSpinner;
+	private Spinner intervalSpinner;
+	private Button weightedButton;
+
+	/**
+	 * @param parentShell
+	 */
+	RandomWalkDialog(Shell parentShell) {
+		super(parentShell);
+	}
+
+	int getSteps() {
+		return steps;
+	}
+
+	int getUpdateInterval() {
+		return updateInterval;
+	}
+
+	/**
+	 * @return true if an enabled transition is chosen first and then one of its operations
+	 */
+	boolean isWeighted() {
+		return weighted;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.jface.window.Window#configureShell(org.eclipse.swt.widgets.Shell)
+	 */
+	@Override
+	protected void configureShell(Shell shell) {
+		super.configureShell(shell);
+		shell.setText("Random Walk"); //$NON-NLS-1$
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.jface.dialogs.Dialog#createDialogArea(org.eclipse.swt.widgets.Composite)
+	 */
+	@Override
+	protected Control createDialogArea(Composite parent) {
+		Composite area = (Composite) super.createDialogArea(parent);
+		area.setLayout(new GridLayout(2, false));
+
+		new Label(area, SWT.NONE).setText("Steps:"); //$NON-NLS-1$
+		stepsSpinner = new Spinner(area, SWT.BORDER);
+		stepsSpinner.setValues(steps, 1, Integer.MAX_VALUE, 0, 100, 10000);
+		stepsSpinner.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+
+		new Label(area, SWT.NONE).setText("Update the diagrams every:"); //$NON-NLS-1$
+		intervalSpinner = new Spinner(area, SWT.BORDER);
+		intervalSpinner.setValues(updateInterval, 1, 1000000, 0, 1, 100);
+		intervalSpinner.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+
+		weightedButton = new Button(area, SWT.CHECK);
+		weightedButton.setText("Choose a transition first (instead of any enabled operation)"); //$NON-NLS-1$
+		weightedButton.setSelection(weighted);
+		weightedButton.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false, 2, 1));
+		return area;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.jface.dialogs.Dialog#okPressed()
+	 */
+	@Override
+	protected void okPressed() {
+		steps = stepsSpinner.getSelection();
+		updateInterval = intervalSpinner.getSelection();
+		weighted = weightedButton.getSelection();
+		super.okPressed();
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.actions;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.core.commands.AbstractHandler;
+import org.eclipse.core.commands.ExecutionEvent;
+import org.eclipse.core.commands.ExecutionException;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.jface.dialogs.MessageDialog;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.widgets.FileDialog;
+import org.eclipse.swt.widgets.Shell;
+import org.eclipse.ui.IEditorPart;
+import org.eclipse.ui.handlers.HandlerUtil;
+import org.eventb.core.IMachineRoot;
+import org.eventb.emf.core.EventBObject;
+import org.eventb.emf.core.machine.Machine;
+import org.eventb.emf.persistence.EventBEMFUtils;
+
+import ac.soton.eventb.emf.diagrams.util.custom.DiagramUtils;
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.animation.participants.StatemachineAnimationParticipant;
+import ac.soton.eventb.statemachines.diagram.part.StatemachinesDiagramEditor;
+
+/**
+ * Exports the state occupancy and transition firing heatmaps of the statemachines of the machine
+ * of the active statemachine diagram to a CSV file (while it is animated or after its animation has stopped)
+ *
+ * @author cfsnook
+ *
+ */
+public class StatemachineHeatmapExportHandler extends AbstractHandler {
+
+	private static final String TITLE = "Export Heatmap"; //$NON-NLS-1$
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.core.commands.IHandler#execute(org.eclipse.core.commands.ExecutionEvent)
+	 */
+	@Override
+	public Object execute(ExecutionEvent event) throws ExecutionException {
+
+		IEditorPart activeEditor = HandlerUtil.getActiveEditorChecked(event);
+		if (!(activeEditor instanceof StatemachinesDiagramEditor)) return null;
+
+		EObject element = ((StatemachinesDiagramEditor)activeEditor).getDiagram().getElement();
+		if (!(element instanceof Statemachine)) return null;
+
+		Shell shell = HandlerUtil.getActiveShell(event);
+		EventBObject target = DiagramUtils.getTranslationTarget((Statemachine)element);
+		if (!(target instanceof Machine)) return null;
+		IMachineRoot mchRoot = EventBEMFUtils.getRoot((Machine)target);
+		StatemachineAnimationParticipant participant = StatemachineAnimationParticipant.getDefault();
+		if (participant == null || participant.getHeatmaps(mchRoot).isEmpty()) {
+			MessageDialog.openInformation(shell, TITLE, "No heatmap has been counted for " + ((Machine)target).getName() + ". Show the heatmap while animating the machine."); //$NON-NLS-1$ //$NON-NLS-2$
+			return null;
+		}
+
+		FileDialog dialog = new FileDialog(shell, SWT.SAVE);
+		dialog.setText(TITLE);
+		dialog.setFilterExtensions(new String[] {"*.csv"}); //$NON-NLS-1$
+		dialog.setFileName(mchRoot.getComponentName() + "-heatmap.csv"); //$NON-NLS-1$
+		dialog.setOverwrite(true);
+		String path = dialog.open();
+		if (path == null) return null;
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8);
+			try {
+				participant.writeHeatmapCsv(mchRoot, writer);
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			MessageDialog.openError(shell, TITLE, e.getMessage());
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.actions;
+
+import org.eclipse.core.commands.AbstractHandler;
+import org.eclipse.core.commands.ExecutionEvent;
+import org.eclipse.core.commands.ExecutionException;
+import org.eclipse.jface.dialogs.MessageDialog;
+import org.eclipse.ui.IEditorPart;
+import org.eclipse.ui.handlers.HandlerUtil;
+
+import ac.soton.eventb.statemachines.animation.participants.StatemachineAnimationParticipant;
+import ac.soton.eventb.statemachines.diagram.part.StatemachinesDiagramEditor;
+
+/**
+ * Shows or hides the state occupancy and transition firing heatmap over the active statemachine diagram
+ * (which must be animated). Showing a heatmap starts counting if heatmaps were not already being counted.
+ *
+ * @author cfsnook
+ *
+ */
+public class StatemachineHeatmapToggleHandler extends AbstractHandler {
+
+	private static final String TITLE = "Show Heatmap"; //$NON-NLS-1$
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.core.commands.IHandler#execute(org.eclipse.core.commands.ExecutionEvent)
+	 */
+	@Override
+	public Object execute(ExecutionEvent event) throws ExecutionException {
+
+		IEditorPart activeEditor = HandlerUtil.getActiveEditorChecked(event);
+		if (!(activeEditor instanceof StatemachinesDiagramEditor)) return null;
+		StatemachinesDiagramEditor editor = (StatemachinesDiagramEditor) activeEditor;
+
+		StatemachineAnimationParticipant participant = StatemachineAnimationParticipant.getDefault();
+		if (participant == null || !participant.setHeatmapShown(editor, !participant.isHeatmapShown(editor))) {
+			MessageDialog.openInformation(HandlerUtil.getActiveShell(event), TITLE, "Start the animation of the statemachine before showing its heatmap."); //$NON-NLS-1$
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.actions;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.eclipse.core.commands.AbstractHandler;
+import org.eclipse.core.commands.ExecutionEvent;
+import org.eclipse.core.commands.ExecutionException;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.jobs.IJobChangeEvent;
+import org.eclipse.core.runtime.jobs.JobChangeAdapter;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.eclipse.jface.dialogs.MessageDialog;
+import org.eclipse.jface.window.Window;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Shell;
+import org.eclipse.ui.IEditorPart;
+import org.eclipse.ui.IEditorReference;
+import org.eclipse.ui.handlers.HandlerUtil;
+import org.eventb.core.IMachineRoot;
+import org.eventb.emf.core.EventBObject;
+import org.eventb.emf.core.machine.Machine;
+import org.eventb.emf.persistence.EventBEMFUtils;
+
+import ac.soton.eventb.emf.diagrams.util.custom.DiagramUtils;
+import ac.soton.eventb.probsupport.AnimationManager;
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.animation.driver.RandomWalk;
+import ac.soton.eventb.statemachines.diagram.part.StatemachinesDiagramEditor;
+
+/**
+ * Runs a random walk of the animation of the machine of the active statemachine diagram
+ * and reports the number of steps per second when it ends
+ *
+ * @author cfsnook
+ *
+ */
+public class StatemachineRandomWalkHandler extends AbstractHandler {
+
+	private static final String TITLE = "Random Walk"; //$NON-NLS-1$
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.core.commands.IHandler#execute(org.eclipse.core.commands.ExecutionEvent)
+	 */
+	@Override
+	public Object execute(ExecutionEvent event) throws ExecutionException {
+
+		IEditorPart activeEditor = HandlerUtil.getActiveEditorChecked(event);
+		if (!(activeEditor instanceof StatemachinesDiagramEditor)) return null;
+
+		EObject element = ((StatemachinesDiagramEditor)activeEditor).getDiagram().getElement();
+		if (!(element instanceof Statemachine)) return null;
+
+		Shell shell = HandlerUtil.getActiveShell(event);
+		EventBObject target = DiagramUtils.getTranslationTarget((Statemachine)element);
+		if (!(target instanceof Machine)) return null;
+		final IMachineRoot mchRoot = EventBEMFUtils.getRoot((Machine)target);
+		if (!AnimationManager.isRunning(mchRoot)) {
+			MessageDialog.openInformation(shell, TITLE, "Start the animation of " + ((Machine)target).getName() + " before running a random walk."); //$NON-NLS-1$ //$NON-NLS-2$
+			return null;
+		}
+
+		RandomWalkDialog dialog = new RandomWalkDialog(shell);
+		if (dialog.open() != Window.OK) return null;
+
+		List<Statemachine> statemachines = dialog.isWeighted() ? getStatemachines(activeEditor, mchRoot) : null;
+		final RandomWalk walk = new RandomWalk(mchRoot, dialog.getSteps(), dialog.getUpdateInterval(), statemachines, new Random());
+		final Display display = shell.getDisplay();
+		walk.setUser(true);
+		walk.addJobChangeListener(new JobChangeAdapter() {
+			@Override
+			public void done(IJobChangeEvent jobEvent) {
+				if (jobEvent.getResult().getSeverity() == IStatus.ERROR) return;	// reported by the job framework
+				display.asyncExec(new Runnable() {
+					@Override
+					public void run() {
+						MessageDialog.openInformation(display.getActiveShell(), TITLE, mchRoot.getComponentName() + ": " + walk.getSummary()); //$NON-NLS-1$
+					}
+				});
+			}
+		});
+		walk.schedule();
+		return null;
+	}
+
+	/**
+	 * Gets the statemachines of the open diagrams that translate to the machine
+	 * (each statemachine once, even if it is open in several editors or is nested in another one)
+	 */
+	private static List<Statemachine> getStatemachines(IEditorPart activeEditor, IMachineRoot mchRoot) {
+		List<Statemachine> statemachines = new ArrayList<Statemachine>();
+		Set<String> uris = new HashSet<String>();
+		for (IEditorReference editorRef : activeEditor.getSite().getPage().getEditorReferences()) {
+			IEditorPart editor = editorRef.getEditor(false);
+			if (!(editor instanceof StatemachinesDiagramEditor) || ((StatemachinesDiagramEditor)editor).getDiagram() == null) continue;
+			EObject element = ((StatemachinesDiagramEditor)editor).getDiagram().getElement();
+			if (!(element instanceof Statemachine)) continue;
+			EventBObject target = DiagramUtils.getTranslationTarget((Statemachine)element);
+			if (target instanceof Machine && mchRoot.equals(EventBEMFUtils.getRoot((Machine)target))
+					&& uris.add(EcoreUtil.getURI(element).toString())) {
+				statemachines.add((Statemachine)element);
+			}
+		}
+		// the transitions of nested statemachines are already included in the statemachines that contain them
+		List<Statemachine> roots = new ArrayList<Statemachine>(statemachines.size());
+		for (Statemachine statemachine : statemachines) {
+			boolean nested = false;
+			for (Statemachine other : statemachines) {
+				nested |= other != statemachine && EcoreUtil.isAncestor(other, statemachine);
+			}
+			if (!nested) {
+				roots.add(statemachine);
+			}
+		}
+		return roots;
+	}
+}
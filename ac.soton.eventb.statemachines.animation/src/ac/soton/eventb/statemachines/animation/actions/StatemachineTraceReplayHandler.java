@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.actions;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.core.commands.AbstractHandler;
+import org.eclipse.core.commands.ExecutionEvent;
+import org.eclipse.core.commands.ExecutionException;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.jface.dialogs.MessageDialog;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.widgets.FileDialog;
+import org.eclipse.swt.widgets.Shell;
+import org.eclipse.ui.IEditorPart;
+import org.eclipse.ui.handlers.HandlerUtil;
+import org.eventb.emf.core.EventBObject;
+import org.eventb.emf.core.machine.Machine;
+import org.eventb.emf.persistence.EventBEMFUtils;
+
+import ac.soton.eventb.emf.diagrams.util.custom.DiagramUtils;
+import ac.soton.eventb.probsupport.AnimationManager;
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.animation.participants.AnimationTraceReplay;
+import ac.soton.eventb.statemachines.diagram.part.StatemachinesDiagramEditor;
+
+/**
+ * Replays a recorded animation trace in the active statemachine diagram editor
+ *  (the machine of the statemachine must not be animated at the same time)
+ *
+ * @author cfsnook
+ *
+ */
+public class StatemachineTraceReplayHandler extends AbstractHandler {
+
+	private static final String TITLE = "Replay Animation Trace"; //$NON-NLS-1$
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.core.commands.IHandler#execute(org.eclipse.core.commands.ExecutionEvent)
+	 */
+	@Override
+	public Object execute(ExecutionEvent event) throws ExecutionException {
+
+		IEditorPart activeEditor = HandlerUtil.getActiveEditorChecked(event);
+		if (!(activeEditor instanceof StatemachinesDiagramEditor)) return null;
+		StatemachinesDiagramEditor editor = (StatemachinesDiagramEditor) activeEditor;
+
+		EObject element = editor.getDiagram().getElement();
+		if (!(element instanceof Statemachine)) return null;
+
+		if (TraceReplayDialog.activate(editor)) return null;	//already replaying
+
+		Shell shell = HandlerUtil.getActiveShell(event);
+		EventBObject target = DiagramUtils.getTranslationTarget((Statemachine)element);
+		if (target instanceof Machine && AnimationManager.isRunning(EventBEMFUtils.getRoot((Machine)target))) {
+			MessageDialog.openInformation(shell, TITLE, "Stop the animation of " + ((Machine)target).getName() + " before replaying a trace."); //$NON-NLS-1$ //$NON-NLS-2$
+			return null;
+		}
+
+		FileDialog fileDialog = new FileDialog(shell, SWT.OPEN);
+		fileDialog.setText(TITLE);
+		fileDialog.setFilterExtensions(new String[] {"*.smtrace", "*.*"}); //$NON-NLS-1$ //$NON-NLS-2$
+		String traceDirectory = System.getProperty("ac.soton.eventb.statemachines.animation.traceDirectory"); //$NON-NLS-1$
+		if (traceDirectory != null) {
+			fileDialog.setFilterPath(traceDirectory);
+		}
+		String path = fileDialog.open();
+		if (path == null) return null;
+
+		AnimationTraceReplay replay;
+		try {
+			replay = new AnimationTraceReplay(editor, new File(path));
+		} catch (IOException e) {
+			MessageDialog.openError(shell, TITLE, e.getMessage());
+			return null;
+		}
+		new TraceReplayDialog(replay).open(shell);
+		return null;
+	}
+
+}
@@ -0,0 +1,282 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.actions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.dialogs.MessageDialog;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.layout.GridData;
+import org.eclipse.swt.layout.GridLayout;
+import org.eclipse.swt.widgets.Button;
+import org.eclipse.swt.widgets.Control;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Label;
+import org.eclipse.swt.widgets.Listener;
+import org.eclipse.swt.widgets.Shell;
+import org.eclipse.swt.widgets.Slider;
+import org.eclipse.swt.widgets.Spinner;
+
+import ac.soton.eventb.statemachines.animation.StatemachineAnimationPlugin;
+import ac.soton.eventb.statemachines.animation.participants.AnimationTraceReplay;
+import ac.soton.eventb.statemachines.diagram.part.StatemachinesDiagramEditor;
+
+/**
+ * A modeless window for moving through the steps of a trace replay.
+ *
+ * The keyframes of the trace are built by a job when the window is opened (so that a long trace does
+ * not block the UI), and the slider and buttons are enabled when they have been built.
+ * Dragging the slider shows the step at the slider position. While the slider is being dragged,
+ * only the latest position is shown when the diagram has caught up, so the diagram does not fall
+ * behind the slider. The replay ends when the window is closed.
+ *
+ * @author cfsnook
+ *
+ */
+class TraceReplayDialog {
+
+	private static final String TITLE = "Replay Animation Trace"; //$NON-NLS-1$
+
+	// the open replay window of each editor
+	private static final Map<StatemachinesDiagramEditor, TraceReplayDialog> openDialogs = new HashMap<StatemachinesDiagramEditor, TraceReplayDialog>();
+
+	private final AnimationTraceReplay replay;
+	private final int lastStep;
+	private Shell shell;
+	private Slider slider;
+	private Spinner spinner;
+	private Label countLabel;
+	// the controls that move through the steps, enabled when the keyframes have been built
+	private final List<Control> controls = new ArrayList<Control>();
+	private Job indexJob = null;
+	private int pendingStep = -1;		// the step waiting to be shown, or -1 if none
+
+	/**
+	 * @param replay
+	 */
+	TraceReplayDialog(AnimationTraceReplay replay) {
+		this.replay = replay;
+		this.lastStep = (int) Math.min(Integer.MAX_VALUE - 1, replay.getStepCount() - 1);
+	}
+
+	/**
+	 * Brings the replay window of the editor to the front, if there is one
+	 *
+	 * @param editor
+	 * @return true if there is a replay window for the editor
+	 */
+	static boolean activate(StatemachinesDiagramEditor editor) {
+		TraceReplayDialog dialog = openDialogs.get(editor);
+		if (dialog == null || dialog.shell == null || dialog.shell.isDisposed()) {
+			return false;
+		}
+		dialog.shell.setActive();
+		return true;
+	}
+
+	/**
+	 * Opens the window (without waiting for it to be closed), builds the keyframes of the trace
+	 * and then shows the first step
+	 *
+	 * @param parent
+	 */
+	void open(Shell parent) {
+		shell = new Shell(parent, SWT.TITLE | SWT.CLOSE | SWT.RESIZE);
+		shell.setText(TITLE + " - " + replay.getEditor().getTitle()); //$NON-NLS-1$
+		shell.setLayout(new GridLayout(5, false));
+
+		Button first = new Button(shell, SWT.PUSH);
+		first.setText("|<"); //$NON-NLS-1$
+		first.setToolTipText("First step"); //$NON-NLS-1$
+		Button previous = new Button(shell, SWT.PUSH);
+		previous.setText("<"); //$NON-NLS-1$
+		previous.setToolTipText("Previous step"); //$NON-NLS-1$
+
+		slider = new Slider(shell, SWT.HORIZONTAL);
+		slider.setValues(0, 0, lastStep + 1, 1, 1, Math.max(1, (lastStep + 1) / 100));
+		GridData sliderData = new GridData(SWT.FILL, SWT.CENTER, true, false);
+		sliderData.widthHint = 400;
+		slider.setLayoutData(sliderData);
+
+		Button next = new Button(shell, SWT.PUSH);
+		next.setText(">"); //$NON-NLS-1$
+		next.setToolTipText("Next step"); //$NON-NLS-1$
+		Button last = new Button(shell, SWT.PUSH);
+		last.setText(">|"); //$NON-NLS-1$
+		last.setToolTipText("Last step"); //$NON-NLS-1$
+
+		Label stepLabel = new Label(shell, SWT.NONE);
+		stepLabel.setText("Step"); //$NON-NLS-1$
+		spinner = new Spinner(shell, SWT.BORDER);
+		spinner.setValues(0, 0, lastStep, 0, 1, Math.max(1, (lastStep + 1) / 100));
+		countLabel = new Label(shell, SWT.NONE);
+		countLabel.setText("of " + (lastStep + 1) + " steps (indexing the trace...)"); //$NON-NLS-1$ //$NON-NLS-2$
+		countLabel.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false, 3, 1));
+
+		slider.addListener(SWT.Selection, new Listener() {
+			@Override
+			public void handleEvent(Event event) {
+				requestStep(slider.getSelection());
+			}
+		});
+		spinner.addListener(SWT.Selection, new Listener() {
+			@Override
+			public void handleEvent(Event event) {
+				requestStep(spinner.getSelection());
+			}
+		});
+		first.addListener(SWT.Selection, new Listener() {
+			@Override
+			public void handleEvent(Event event) {
+				requestStep(0);
+			}
+		});
+		previous.addListener(SWT.Selection, new Listener() {
+			@Override
+			public void handleEvent(Event event) {
+				requestStep(Math.max(0, slider.getSelection() - 1));
+			}
+		});
+		next.addListener(SWT.Selection, new Listener() {
+			@Override
+			public void handleEvent(Event event) {
+				requestStep(Math.min(lastStep, slider.getSelection() + 1));
+			}
+		});
+		last.addListener(SWT.Selection, new Listener() {
+			@Override
+			public void handleEvent(Event event) {
+				requestStep(lastStep);
+			}
+		});
+		shell.addListener(SWT.Dispose, new Listener() {
+			@Override
+			public void handleEvent(Event event) {
+				openDialogs.remove(replay.getEditor());
+				if (indexJob != null) {
+					indexJob.cancel();
+				}
+				replay.dispose();
+			}
+		});
+
+		controls.addAll(Arrays.asList(first, previous, slider, next, last, spinner));
+		for (Control control : controls) {
+			control.setEnabled(false);
+		}
+		openDialogs.put(replay.getEditor(), this);
+		shell.pack();
+		shell.open();
+		indexJob = new IndexJob(shell.getDisplay());
+		indexJob.schedule();
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	/**
+	 * A job that builds the keyframes of the trace and then enables the controls and shows the first step
+	 */
+	private class IndexJob extends Job {
+
+		private final Display display;
+
+		IndexJob(Display display) {
+			super("Indexing animation trace for " + replay.getEditor().getTitle()); //$NON-NLS-1$
+			this.display = display;
+			setPriority(Job.LONG);
+		}
+
+		/* (non-Javadoc)
+		 * @see org.eclipse.core.runtime.jobs.Job#run(org.eclipse.core.runtime.IProgressMonitor)
+		 */
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			Runnable done;
+			try {
+				if (!replay.indexKeyframes(monitor)) {
+					return Status.CANCEL_STATUS;
+				}
+				done = new Runnable() {
+					@Override
+					public void run() {
+						indexJob = null;
+						if (shell.isDisposed()) return;
+						countLabel.setText("of " + (lastStep + 1) + " steps"); //$NON-NLS-1$ //$NON-NLS-2$
+						for (Control control : controls) {
+							control.setEnabled(true);
+						}
+						requestStep(0);
+					}
+				};
+			} catch (final IOException e) {
+				done = new Runnable() {
+					@Override
+					public void run() {
+						indexJob = null;
+						if (shell.isDisposed()) return;
+						StatemachineAnimationPlugin.logError("Trace replay failed", e); //$NON-NLS-1$
+						MessageDialog.openError(shell, TITLE, e.getMessage());
+						shell.close();
+					}
+				};
+			}
+			if (!display.isDisposed()) {
+				display.asyncExec(done);
+			}
+			return Status.OK_STATUS;
+		}
+	}
+
+	/**
+	 * Shows the step when the UI is next idle. If another step is requested before then,
+	 * only the latest one is shown.
+	 *
+	 * @param step
+	 */
+	private void requestStep(int step) {
+		slider.setSelection(step);
+		spinner.setSelection(step);
+		boolean scheduled = pendingStep >= 0;
+		pendingStep = step;
+		if (!scheduled) {
+			Display.getCurrent().asyncExec(new Runnable() {
+				@Override
+				public void run() {
+					int target = pendingStep;
+					pendingStep = -1;
+					showStep(target);
+				}
+			});
+		}
+	}
+
+	private void showStep(int step) {
+		if (shell.isDisposed()) return;
+		if (replay.getEditor().getDiagram() == null) {
+			shell.close();		// the editor has been closed
+			return;
+		}
+		try {
+			replay.showStep(step);
+		} catch (IOException e) {
+			StatemachineAnimationPlugin.logError("Trace replay failed", e); //$NON-NLS-1$
+			MessageDialog.openError(shell, TITLE, e.getMessage());
+			shell.close();
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.driver;
+
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eventb.core.IMachineRoot;
+
+import ac.soton.eventb.probsupport.AnimationManager;
+import ac.soton.eventb.probsupport.data.Operation_;
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.animation.StatemachineAnimationPlugin;
+import ac.soton.eventb.statemachines.animation.participants.StatemachineAnimationParticipant;
+
+/**
+ * A job that drives the animation of a machine by executing randomly chosen enabled operations,
+ * e.g. to soak test a model.
+ *
+ * The operation of each step is chosen either uniformly from all the enabled operations, or weighted
+ * by transition: an enabled transition is chosen uniformly and then one of its enabled operations, so that
+ * transitions with many parameter values are not chosen more often than the others. (Each enabled event
+ * that is not elaborated by a transition counts as a transition of its own)
+ *
+ * The diagrams of the machine are only updated every few steps during the walk, so that the walk runs at
+ * the speed of the animator, and its previous update interval is restored at the end of the walk.
+ * The walk ends when the given number of steps have been executed, when no operation is enabled,
+ * when the animation is stopped or when the job is canceled.
+ *
+ * @author cfsnook
+ *
+ */
+public class RandomWalk extends Job {
+
+	private final IMachineRoot mchRoot;
+	private final long steps;
+	private final int updateInterval;
+	private final TransitionWeighting weighting;
+	private final Random random;
+
+	private volatile long executed = 0;
+	private volatile long elapsed = 0;
+	private volatile boolean deadlocked = false;
+
+	/**
+	 * Creates a walk that chooses uniformly from the enabled operations
+	 *
+	 * @param mchRoot an animated machine
+	 * @param steps the number of steps to execute
+	 * @param updateInterval the number of steps between updates of the diagrams
+	 */
+	public RandomWalk(IMachineRoot mchRoot, long steps, int updateInterval) {
+		this(mchRoot, steps, updateInterval, null, new Random());
+	}
+
+	/**
+	 * Creates a walk that chooses an enabled transition of the given statemachines and then one of its enabled operations.
+	 * The statemachines are read now (they should be read in an exclusive transaction of their editing domain).
+	 *
+	 * @param mchRoot an animated machine
+	 * @param steps the number of steps to execute
+	 * @param updateInterval the number of steps between updates of the diagrams
+	 * @param statemachines the statemachines whose transitions weight the choice of operation, or null to choose uniformly
+	 * @param random the source of random choices (e.g. with a seed so that a walk can be repeated)
+	 */
+	public RandomWalk(IMachineRoot mchRoot, long steps, int updateInterval, List<Statemachine> statemachines, Random random) {
+		super("Random walk of " + mchRoot.getComponentName()); //$NON-NLS-1$
+		this.mchRoot = mchRoot;
+		this.steps = steps;
+		this.updateInterval = Math.max(1, updateInterval);
+		this.random = random;
+		this.weighting = statemachines == null ? null : new TransitionWeighting(statemachines);
+		setPriority(Job.LONG);
+	}
+
+	public IMachineRoot getMachineRoot() {
+		return mchRoot;
+	}
+
+	/**
+	 * @return the number of steps that have been executed
+	 */
+	public long getExecutedSteps() {
+		return executed;
+	}
+
+	/**
+	 * @return the number of steps executed per second (up to now if the walk is still running)
+	 */
+	public double getStepsPerSecond() {
+		long nanos = elapsed;
+		return nanos == 0 ? 0 : executed * 1e9 / nanos;
+	}
+
+	/**
+	 * @return true if the walk ended because no operation was enabled
+	 */
+	public boolean isDeadlocked() {
+		return deadlocked;
+	}
+
+	/**
+	 * @return a summary of the walk, e.g. for reporting it to the user
+	 */
+	public String getSummary() {
+		return String.format("%d steps in %.1f s (%.1f steps/s)%s", //$NON-NLS-1$
+				executed, elapsed / 1e9, getStepsPerSecond(), deadlocked ? ", ended in a deadlock" : ""); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.core.runtime.jobs.Job#run(org.eclipse.core.runtime.IProgressMonitor)
+	 */
+	@Override
+	protected IStatus run(IProgressMonitor monitor) {
+		StatemachineAnimationParticipant participant = StatemachineAnimationParticipant.getDefault();
+		monitor.beginTask(getName(), steps > Integer.MAX_VALUE ? IProgressMonitor.UNKNOWN : (int) steps);
+		long start = System.nanoTime();
+		long reported = start;
+		int previousInterval = 1;
+		if (participant != null) {
+			previousInterval = participant.getUpdateInterval(mchRoot);
+			participant.setUpdateInterval(mchRoot, updateInterval);
+		}
+		try {
+			while (executed < steps && !monitor.isCanceled() && AnimationManager.isRunning(mchRoot)) {
+				List<Operation_> operations = AnimationManager.getEnabledOperations(mchRoot);
+				if (operations == null || operations.isEmpty()) {
+					deadlocked = true;
+					break;
+				}
+				StatemachineAnimationParticipant.executeOperation(mchRoot, choose(operations));
+				executed++;
+				monitor.worked(1);
+				long now = System.nanoTime();
+				elapsed = now - start;
+				if (now - reported > 1000000000L) {
+					monitor.subTask(getSummary());
+					reported = now;
+				}
+			}
+		} catch (RuntimeException e) {
+			return new Status(IStatus.ERROR, StatemachineAnimationPlugin.PLUGIN_ID, "Random walk failed after " + executed + " steps", e); //$NON-NLS-1$ //$NON-NLS-2$
+		} finally {
+			elapsed = System.nanoTime() - start;
+			// restore the previous interval (showing the final state if it was 1)
+			if (participant != null) {
+				participant.setUpdateInterval(mchRoot, previousInterval);
+			}
+			monitor.done();
+		}
+		return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	private Operation_ choose(List<Operation_> operations) {
+		if (weighting == null) {
+			return operations.get(random.nextInt(operations.size()));
+		}
+		return weighting.choose(operations, random);
+	}
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.driver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.emf.ecore.EObject;
+import org.eventb.emf.core.machine.Event;
+
+import ac.soton.eventb.probsupport.data.Operation_;
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.StatemachinesPackage;
+import ac.soton.eventb.statemachines.Transition;
+
+/**
+ * Chooses an enabled operation by transition: an enabled transition is chosen uniformly
+ * and then one of its enabled operations. Each enabled event that is not elaborated by a transition
+ * counts as a transition of its own, and an operation of an event that is elaborated by several
+ * enabled transitions belongs to each of them.
+ *
+ * @author cfsnook
+ *
+ */
+class TransitionWeighting {
+
+	// the numbers of the transitions that elaborate each event
+	private final Map<String, List<Integer>> transitionsByEvent = new HashMap<String, List<Integer>>();
+
+	/**
+	 * Numbers the transitions of the statemachines (including those of nested statemachines).
+	 * The statemachines are read now.
+	 *
+	 * @param statemachines
+	 */
+	TransitionWeighting(List<Statemachine> statemachines) {
+		int t = 0;
+		for (Statemachine statemachine : statemachines) {
+			for (EObject object : statemachine.getAllContained(StatemachinesPackage.Literals.TRANSITION, true)) {
+				if (object == null) continue;
+				for (Event event : ((Transition) object).getElaborates()) {
+					List<Integer> ids = transitionsByEvent.get(event.getName());
+					if (ids == null) {
+						ids = new ArrayList<Integer>(2);
+						transitionsByEvent.put(event.getName(), ids);
+					}
+					ids.add(t);
+				}
+				t++;
+			}
+		}
+	}
+
+	/**
+	 * Groups the enabled operations by the transitions that they belong to
+	 *
+	 * @param operations the enabled operations
+	 * @return the enabled operations of each enabled transition (or of each event without a transition)
+	 */
+	List<List<Operation_>> group(List<Operation_> operations) {
+		Map<Object, List<Operation_>> groups = new LinkedHashMap<Object, List<Operation_>>();
+		for (Operation_ operation : operations) {
+			List<Integer> ids = transitionsByEvent.get(operation.getName());
+			List<?> keys = ids == null ? Collections.singletonList(operation.getName()) : ids;
+			for (Object key : keys) {
+				List<Operation_> group = groups.get(key);
+				if (group == null) {
+					group = new ArrayList<Operation_>(2);
+					groups.put(key, group);
+				}
+				group.add(operation);
+			}
+		}
+		return new ArrayList<List<Operation_>>(groups.values());
+	}
+
+	/**
+	 * @param operations the enabled operations (not empty)
+	 * @param random
+	 * @return an operation of a uniformly chosen enabled transition
+	 */
+	Operation_ choose(List<Operation_> operations, Random random) {
+		List<List<Operation_>> enabled = group(operations);
+		List<Operation_> group = enabled.get(random.nextInt(enabled.size()));
+		return group.get(random.nextInt(group.size()));
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.engine;
+
+/**
+ * The set of instances of a lifted statemachine that are in a particular state.
+ *
+ * The instances are held as ranges of the value string that they were parsed from,
+ * so no new string is built for each state at each animation step. The number of instances
+ * is known immediately, a length-limited label can be rendered cheaply and the full
+ * set is only rendered if it is asked for.
+ *
+ * @author cfsnook
+ *
+ */
+public final class ActiveInstances {
+
+	/**
+	 * System property that can be used to set the default number of characters of the instances shown in a state
+	 */
+	static final String PREVIEW_LENGTH_PROPERTY = "ac.soton.eventb.statemachines.animation.instancePreviewLength"; //$NON-NLS-1$
+
+	/**
+	 * System property that can be used to set the default number of instances above which only the count is shown
+	 */
+	static final String COUNT_THRESHOLD_PROPERTY = "ac.soton.eventb.statemachines.animation.instanceCountThreshold"; //$NON-NLS-1$
+
+	static final int DEFAULT_PREVIEW_LENGTH = 80;
+
+	static final int DEFAULT_COUNT_THRESHOLD = 1000;
+
+	/**
+	 * The label shown when there are no instances
+	 */
+	public static final String EMPTY_SET = "\u2205";
+
+	static final ActiveInstances EMPTY = new ActiveInstances("", new int[0], 0);
+
+	private final String source;
+	private final int[] ranges;		// start and end (exclusive) of each instance in the source
+	private final int count;
+	private String text = null;
+
+	ActiveInstances(String source, int[] ranges, int count) {
+		this.source = source;
+		this.ranges = ranges;
+		this.count = count;
+	}
+
+	/**
+	 * @return the number of instances
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the full set of instances, e.g. {a,b,c}
+	 */
+	public String getText() {
+		if (text == null) {
+			if (count == 0) {
+				text = EMPTY_SET;
+			} else {
+				int length = count + 1;
+				for (int i = 0; i < count; i++) {
+					length += ranges[2*i+1] - ranges[2*i];
+				}
+				StringBuilder sb = new StringBuilder(length).append('{');
+				for (int i = 0; i < count; i++) {
+					if (i > 0) sb.append(',');
+					sb.append(source, ranges[2*i], ranges[2*i+1]);
+				}
+				text = sb.append('}').toString();
+			}
+		}
+		return text;
+	}
+
+	/**
+	 * Renders a label for the instances.
+	 * If there are more than countThreshold instances only the number of instances is shown, e.g. #1234.
+	 * Otherwise the instances are listed up to roughly previewLength characters, e.g. {a,b,c,&#x2026;} (1234).
+	 *
+	 * @param previewLength
+	 * @param countThreshold
+	 * @return
+	 */
+	public String getLabel(int previewLength, int countThreshold) {
+		if (count == 0) {
+			return EMPTY_SET;
+		}
+		if (count > countThreshold) {
+			return "#" + count;
+		}
+		if (text != null && text.length() <= previewLength) {
+			return text;
+		}
+		StringBuilder sb = new StringBuilder().append('{');
+		for (int i = 0; i < count; i++) {
+			if (i > 0) sb.append(',');
+			if (sb.length() + ranges[2*i+1] - ranges[2*i] > previewLength) {
+				return sb.append("\u2026} (").append(count).append(')').toString();
+			}
+			sb.append(source, ranges[2*i], ranges[2*i+1]);
+		}
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * @return the n'th instance
+	 */
+	String getInstance(int n) {
+		return source.substring(ranges[2*n], ranges[2*n+1]);
+	}
+
+	/**
+	 * @return true if the other set has the same instances in the same order (compared without building their text)
+	 */
+	boolean sameInstances(ActiveInstances other) {
+		if (other == this) return true;
+		if (other == null || other.count != count) return false;
+		for (int i = 0; i < count; i++) {
+			int length = ranges[2*i+1] - ranges[2*i];
+			if (other.ranges[2*i+1] - other.ranges[2*i] != length
+					|| !source.regionMatches(ranges[2*i], other.source, other.ranges[2*i], length)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return getText();
+	}
+
+	/**
+	 * Accumulates instance ranges while parsing
+	 */
+	static final class Builder {
+
+		private final String source;
+		private int[] ranges = new int[8];
+		private int count = 0;
+
+		Builder(String source) {
+			this.source = source;
+		}
+
+		void add(int start, int end) {
+			if (2 * count + 2 > ranges.length) {
+				int[] grown = new int[ranges.length * 2];
+				System.arraycopy(ranges, 0, grown, 0, ranges.length);
+				ranges = grown;
+			}
+			ranges[2*count] = start;
+			ranges[2*count+1] = end;
+			count++;
+		}
+
+		ActiveInstances build() {
+			return count == 0 ? EMPTY : new ActiveInstances(source, ranges, count);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.engine;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses the string value of a lifted statemachine variable (a function from instances to states)
+ * into a map from state names to the set of instances in that state.
+ *
+ * The value is scanned once. Maplets and commas are only significant at the top level of each
+ * element of the set, so instances can be tuples, sets, sequences or strings containing
+ * commas and maplets. The instances are accumulated in a builder for each state.
+ *
+ * ASSUMES that the state part is a simple string (i.e. contains no maplet).
+ *
+ * @author cfsnook
+ *
+ */
+final class SmFunctionParser {
+
+	private static final char MAPLET = '\u21a6';
+
+	private SmFunctionParser() {
+		//static utility
+	}
+
+	/**
+	 * Parses a function value such as {(a&#x21a6;S1),(b&#x21a6;S2),(c&#x21a6;S1)}
+	 * into a map such as {S1={a,c}, S2={b}}
+	 *
+	 * @param smValue
+	 * @return
+	 */
+	static Map<String, ActiveInstances> parse(String smValue) {
+		Map<String, ActiveInstances.Builder> builders = new HashMap<String, ActiveInstances.Builder>();
+		scan(smValue, builders, null);
+		Map<String, ActiveInstances> ret = new HashMap<String, ActiveInstances>();
+		for (Map.Entry<String, ActiveInstances.Builder> entry : builders.entrySet()) {
+			ret.put(entry.getKey(), entry.getValue().build());
+		}
+		return ret;
+	}
+
+	/**
+	 * Parses a set value such as {a,b,c} (as used for the state variables of lifted MULTIVAR statemachines)
+	 *
+	 * @param setValue
+	 * @return
+	 */
+	static ActiveInstances parseSet(String setValue) {
+		ActiveInstances.Builder builder = new ActiveInstances.Builder(setValue);
+		scan(setValue, null, builder);
+		return builder.build();
+	}
+
+	/**
+	 * Scans the elements of a set value.
+	 * If builders is given, the elements are treated as maplets and each instance is added to the builder for its state.
+	 * Otherwise each element is added to the set builder.
+	 */
+	private static void scan(String value, Map<String, ActiveInstances.Builder> builders, ActiveInstances.Builder set) {
+		int start = 0;
+		int end = value.length();
+		while (start < end && Character.isWhitespace(value.charAt(start))) start++;
+		while (end > start && Character.isWhitespace(value.charAt(end - 1))) end--;
+		if (start < end && value.charAt(start) == '{' && value.charAt(end - 1) == '}') {
+			start++;
+			end--;
+		} else if (set != null) {
+			return;		// not a set literal (e.g. the empty set)
+		}
+
+		int depth = 0;
+		boolean inString = false;
+		int elementStart = start;
+		int topMaplet = -1;		// last maplet at the top level of the element
+		int innerMaplet = -1;	// last maplet one level down (used if the element is enclosed in brackets)
+		int firstClose = -1;	// position where the first bracket of the element is closed
+		for (int i = start; i < end; i++) {
+			char c = value.charAt(i);
+			if (inString) {
+				if (c == '\\') i++;		// an escaped character (e.g. \") does not end the string
+				else if (c == '"') inString = false;
+				continue;
+			}
+			switch (c) {
+			case '"':
+				inString = true;
+				break;
+			case '(':
+			case '{':
+			case '[':
+				depth++;
+				break;
+			case ')':
+			case '}':
+			case ']':
+				depth--;
+				if (depth == 0 && firstClose < 0) firstClose = i;
+				break;
+			case MAPLET:
+				if (depth == 0) topMaplet = i;
+				else if (depth == 1) innerMaplet = i;
+				break;
+			case ',':
+				if (depth == 0) {
+					addElement(value, elementStart, i, topMaplet, innerMaplet, firstClose, builders, set);
+					elementStart = i + 1;
+					topMaplet = innerMaplet = firstClose = -1;
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		addElement(value, elementStart, end, topMaplet, innerMaplet, firstClose, builders, set);
+	}
+
+	/**
+	 * Adds the element between from and to into the set builder
+	 * or, if it is a maplet, adds its instance into the builder for its state
+	 */
+	private static void addElement(String value, int from, int to, int topMaplet, int innerMaplet, int firstClose,
+			Map<String, ActiveInstances.Builder> builders, ActiveInstances.Builder set) {
+		while (from < to && Character.isWhitespace(value.charAt(from))) from++;
+		while (to > from && Character.isWhitespace(value.charAt(to - 1))) to--;
+		if (from >= to) return;
+		if (set != null) {
+			set.add(from, to);
+			return;
+		}
+		int maplet = topMaplet;
+		if (maplet < 0 && value.charAt(from) == '(' && firstClose == to - 1) {
+			// the whole element is enclosed in brackets
+			maplet = innerMaplet;
+			from++;
+			to--;
+		}
+		if (maplet < 0) return;
+		String stateName = value.substring(maplet + 1, to).trim();
+		ActiveInstances.Builder instances = builders.get(stateName);
+		if (instances == null) {
+			instances = new ActiveInstances.Builder(value);
+			builders.put(stateName, instances);
+		}
+		int instanceEnd = maplet;
+		while (instanceEnd > from && Character.isWhitespace(value.charAt(instanceEnd - 1))) instanceEnd--;
+		instances.add(from, instanceEnd);
+	}
+}
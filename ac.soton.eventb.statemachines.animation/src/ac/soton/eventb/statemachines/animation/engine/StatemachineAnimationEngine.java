@@ -0,0 +1,411 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+
+import org.eventb.emf.core.machine.Event;
+
+import ac.soton.eventb.probsupport.data.Operation_;
+import ac.soton.eventb.probsupport.data.State_;
+import ac.soton.eventb.statemachines.State;
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.Transition;
+import ac.soton.eventb.statemachines.TranslationKind;
+import ac.soton.eventb.statemachines.animation.metrics.AnimationMetrics;
+
+/**
+ * Maps the state of an animation (the values of the machine variables and the enabled operations)
+ * to the active states and enabled transitions of a statemachine.
+ *
+ * The engine does not depend on the workbench or a display, and does not change the statemachine,
+ * so it can be used by batch tools as well as by the diagram animation.
+ * The structure of the statemachine is indexed when the engine is created. The engine listens to
+ * the statemachine and becomes invalid if its structure is changed; a new engine is then needed.
+ * An engine may be used by several threads, provided that the statemachine is not being changed.
+ *
+ * @author cfsnook
+ *
+ */
+public class StatemachineAnimationEngine {
+
+	private final StatemachineIndex index;
+	private final List<State> states;
+	private final List<Transition> transitions;
+	
+	// limits on the rendering of the instances in the states of lifted statemachines
+	private volatile int instancePreviewLength = Integer.getInteger(ActiveInstances.PREVIEW_LENGTH_PROPERTY, ActiveInstances.DEFAULT_PREVIEW_LENGTH);
+	private volatile int instanceCountThreshold = Integer.getInteger(ActiveInstances.COUNT_THRESHOLD_PROPERTY, ActiveInstances.DEFAULT_COUNT_THRESHOLD);
+	
+	// the metrics in which the computation of active states is timed (or null)
+	private volatile AnimationMetrics metrics = null;
+
+	/**
+	 * Creates an engine for the given statemachine
+	 * 
+	 * @param statemachine
+	 */
+	public StatemachineAnimationEngine(Statemachine statemachine) {
+		this.index = new StatemachineIndex(statemachine);
+		this.states = Collections.unmodifiableList(Arrays.asList(index.getStates()));
+		this.transitions = Collections.unmodifiableList(Arrays.asList(index.getTransitions()));
+	}
+	
+	public Statemachine getStatemachine() {
+		return index.getStatemachine();
+	}
+	
+	/**
+	 * @return all states contained in the statemachine (at any depth) in the order used for positions in snapshots
+	 */
+	public List<State> getStates() {
+		return states;
+	}
+	
+	/**
+	 * @return all transitions contained in the statemachine (at any depth) in the order used for positions in snapshots
+	 */
+	public List<Transition> getTransitions() {
+		return transitions;
+	}
+	
+	/**
+	 * @return the position of the state in the list of states, or -1 if it is not a state of this engine's statemachine
+	 */
+	public int getStateId(State state) {
+		return index.getStateId(state);
+	}
+	
+	/**
+	 * @return the position of the transition in the list of transitions, or -1 if it is not a transition of this engine's statemachine
+	 */
+	public int getTransitionId(Transition transition) {
+		return index.getTransitionId(transition);
+	}
+	
+	/**
+	 * @return the positions, in the list of transitions, of the transitions that elaborate the named event
+	 * 			(an empty array if there are none; the array must not be changed)
+	 */
+	public int[] getTransitionIds(String eventName) {
+		return index.getTransitionIds(eventName);
+	}
+	
+	/**
+	 * @return true if the other engine's statemachine has the same structure as this one's (e.g. it is another copy
+	 * 			of the same statemachine), so that the snapshots computed by either engine can be written
+	 * 			with the states and transitions of the other. (The statemachines are not read)
+	 */
+	public boolean matches(StatemachineAnimationEngine other) {
+		return index.hasSameStructure(other.index);
+	}
+	
+	/**
+	 * @return false if the structure of the statemachine has changed since the engine was created, or it has been disposed
+	 */
+	public boolean isValid() {
+		return index.isValid();
+	}
+	
+	/**
+	 * Stops listening to the statemachine. The engine is invalid after this.
+	 */
+	public void dispose() {
+		index.dispose();
+	}
+	
+	/**
+	 * Sets the limits used when labelling the instances that are in a state of a lifted statemachine.
+	 * The instances are listed up to about previewLength characters.
+	 * When there are more than countThreshold instances only the number of instances is shown.
+	 * 
+	 * @param previewLength
+	 * @param countThreshold
+	 */
+	public void setInstanceLimits(int previewLength, int countThreshold) {
+		instancePreviewLength = previewLength;
+		instanceCountThreshold = countThreshold;
+	}
+	
+	/**
+	 * Sets the metrics in which the computation of the active states and the parsing of variable values are timed
+	 * 
+	 * @param metrics the metrics or null for no timing
+	 */
+	public void setMetrics(AnimationMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Computes the active states and enabled transitions of the statemachine in the given state of the animation
+	 * 
+	 * @param state the current state of the animation
+	 * @param operations the enabled operations in the current state of the animation
+	 * @return the snapshot
+	 */
+	public StatemachineSnapshot map(State_ state, List<Operation_> operations) {
+		return map(state.getAllValues(), operations, null, null);
+	}
+	
+	/**
+	 * Computes the active states and enabled transitions of the statemachine.
+	 * (REFINEDVAR statemachines are not supported: none of their states is active)
+	 * If neither the variables that the statemachine depends on nor the enabled operations
+	 * of its transitions have changed since the previous snapshot, nothing is computed and
+	 * the previous snapshot is returned.
+	 * 
+	 * @param variables the values of the variables in the current state of the animation
+	 * @param operations the enabled operations in the current state of the animation
+	 * @param previous the latest snapshot previously computed by this engine, or null.
+	 * 		(If the snapshots are written to the statemachine later, this must be the latest snapshot that
+	 * 		has been passed on to be written, not the one that was last written, otherwise a return to the
+	 * 		written state would be skipped while a different snapshot is still waiting to be written)
+	 * @param monitor a monitor to abandon the computation, or null
+	 * @return the snapshot, or null if the monitor was canceled
+	 */
+	public StatemachineSnapshot map(Map<String, String> variables, List<Operation_> operations, StatemachineSnapshot previous, IProgressMonitor monitor) {
+		if (monitor == null) {
+			monitor = new NullProgressMonitor();
+		}
+		Statemachine statemachine = index.getStatemachine();
+		
+		// check whether anything relevant to this statemachine has changed since the previous snapshot
+		String[] variableNames = index.getVariables();
+		String[] values = new String[variableNames.length];
+		for (int i=0; i<variableNames.length; i++) {
+			values[i] = variables.get(variableNames[i]);
+		}
+		List<Operation_> relevantOperations = new ArrayList<Operation_>();
+		for (Operation_ op : operations) {
+			if (index.hasTransitions(op.getName())) {
+				relevantOperations.add(op);
+			}
+		}
+		if (previous != null && previous.getIndex() == index && previous.sameInputs(values, relevantOperations)) {
+			return previous;
+		}
+
+		boolean lifted = statemachine.getInstances()!=null;
+		StatemachineSnapshot snapshot;
+		if (statemachine.getTranslation() == TranslationKind.SINGLEVAR) {
+			// only the states on the active paths of the hierarchy are visited, all others are inactive
+			snapshot = lifted ?
+					new StatemachineSnapshot(index, ActiveInstances.EMPTY, ActiveInstances.EMPTY.getLabel(instancePreviewLength, instanceCountThreshold)) :
+					new StatemachineSnapshot(index);
+			AnimationMetrics metrics = this.metrics;
+			long start = metrics == null ? 0 : System.nanoTime();
+			activate(index.getHierarchy(), variables, lifted, snapshot, metrics);
+			if (metrics != null) {
+				metrics.stop(AnimationMetrics.Timer.ACTIVE_STATES, start);
+			}
+		} else {
+			snapshot = new StatemachineSnapshot(index);
+			setStates(getActiveStates(variables), lifted, snapshot);
+		}
+		if (monitor.isCanceled()) {
+			return null;
+		}
+		snapshot.setInputs(values, relevantOperations);
+
+		// transitions - collect the enabled operations of the transitions that elaborate them
+		for (Operation_ op : relevantOperations) {
+			for (int i : index.getTransitionIds(op.getName())) {
+				snapshot.addOperation(i, op);
+			}
+		}
+		return monitor.isCanceled() ? null : snapshot;
+	}
+	
+	/**
+	 * Sets the active states of a SINGLEVAR statemachine, and of the nested statemachines of its active states
+	 * (so nested statemachines of inactive states are not looked at)
+	 * 
+	 * @param level a statemachine of the hierarchy
+	 * @param variables the values of the machine variables
+	 * @param lifted
+	 * @param snapshot
+	 * @param metrics
+	 */
+	private void activate(StatemachineIndex.Level level, Map<String, String> variables, boolean lifted, StatemachineSnapshot snapshot, AnimationMetrics metrics) {
+		String value = variables.get(level.name);
+		if (value == null) {
+			return;
+		}
+		if (lifted) {
+			for (Map.Entry<String, ActiveInstances> entry : parse(value, metrics).entrySet()) {
+				int s = level.getState(entry.getKey());
+				ActiveInstances instances = entry.getValue();
+				if (s < 0 || instances.getCount() == 0) continue;
+				snapshot.setState(level.stateIds[s], true, instances.getLabel(instancePreviewLength, instanceCountThreshold), instances);
+				for (StatemachineIndex.Level nested : level.nested[s]) {
+					activate(nested, variables, lifted, snapshot, metrics);
+				}
+			}
+		} else {
+			int s = level.getState(value);
+			if (s < 0) {
+				return;
+			}
+			snapshot.setState(level.stateIds[s], true, null, null);
+			for (StatemachineIndex.Level nested : level.nested[s]) {
+				activate(nested, variables, lifted, snapshot, metrics);
+			}
+		}
+	}
+	
+	/**
+	 * Sets the values of every state from a map of active states
+	 * 
+	 * @param activeStates map of active states - with instances currently in that state if lifted, or just TRUE if not lifted
+	 * @param lifted
+	 * @param snapshot
+	 */
+	private void setStates(Map<String, Object> activeStates, boolean lifted, StatemachineSnapshot snapshot) {
+		State[] stateArray = index.getStates();
+		for (int i=0; i<stateArray.length; i++) {
+			String name = stateArray[i].getName();
+			ActiveInstances instances = null;
+			String label = null;
+			boolean active;
+			if (lifted){
+				if (activeStates.get(name) instanceof ActiveInstances){
+					instances = (ActiveInstances)activeStates.get(name);
+				}else{
+					instances = ActiveInstances.EMPTY;	// default to empty
+				}
+				label = instances.getLabel(instancePreviewLength, instanceCountThreshold);
+				active = instances.getCount() > 0;
+			}else{
+				active = activeStates.containsKey(name) && !"FALSE".equals(activeStates.get(name)) && !"\u2205".equals(activeStates.get(name));
+			}
+			snapshot.setState(i, active, label, instances);
+		}
+	}
+	
+	/**
+	 * @return true if the trace was recorded from a statemachine with the same states and transitions as this one
+	 * 			(so that the positions in the trace are the positions in this engine's lists),
+	 * 			i.e. the states have the same names and the transitions elaborate the same events
+	 */
+	public boolean matches(StatemachineTraceReader trace) {
+		if (trace.getStateNames().size() != states.size() || trace.getTransitionLabels().size() != transitions.size()) {
+			return false;
+		}
+		for (int i=0; i<states.size(); i++) {
+			String name = states.get(i).getName();
+			if (name == null ? trace.getStateNames().get(i).length() > 0 : !name.equals(trace.getStateNames().get(i))) {
+				return false;
+			}
+		}
+		for (int i=0; i<transitions.size(); i++) {
+			if (!StatemachineTraceRecorder.getLabel(transitions.get(i)).equals(trace.getTransitionLabels().get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Computes the snapshot of the statemachine at the current step of a recorded trace.
+	 * The operations of the enabled transitions are not recorded, so each enabled transition
+	 * is given an operation, with no arguments, for each event that it elaborates.
+	 * 
+	 * @param trace a trace recorded from this statemachine
+	 * @return the snapshot
+	 * @throws IllegalArgumentException if the trace does not match this statemachine
+	 */
+	public StatemachineSnapshot map(StatemachineTraceReader trace) {
+		if (!matches(trace)) {
+			throw new IllegalArgumentException("The trace of " + trace.getStatemachineName() + " does not match statemachine " + getStatemachine().getName()); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		boolean lifted = getStatemachine().getInstances()!=null;
+		StatemachineSnapshot snapshot = new StatemachineSnapshot(index);
+		for (int i=0; i<states.size(); i++) {
+			ActiveInstances instances = null;
+			String label = null;
+			if (lifted) {
+				String text = trace.getInstances(i);
+				instances = text == null ? ActiveInstances.EMPTY : SmFunctionParser.parseSet(text);
+				label = instances.getLabel(instancePreviewLength, instanceCountThreshold);
+			}
+			snapshot.setState(i, trace.isActive(i), label, instances);
+		}
+		for (int i=0; i<transitions.size(); i++) {
+			if (trace.isEnabled(i)) {
+				for (Event event : transitions.get(i).getElaborates()) {
+					snapshot.addOperation(i, new Operation_(event.getName(), Collections.<String>emptyList()));
+				}
+			}
+		}
+		return snapshot;
+	}
+	
+	//////////////////////////////// private ///////////////////////////////
+	
+	/**
+	 * Gets the active states as a Map from state name to {@link ActiveInstances} (or the state value if not lifted).
+	 * (Snapshots of SINGLEVAR statemachines are computed by a pass over the hierarchy of active states instead)
+	 * 
+	 * @param variables
+	 * @return
+	 */
+	private Map<String,Object> getActiveStates(Map<String, String> variables) {
+		AnimationMetrics metrics = this.metrics;
+		long start = metrics == null ? 0 : System.nanoTime();
+		//retrieve a map of active states to instances for all state-machine states	
+		Map<String,Object> activeStates = new HashMap<String,Object>();
+		Statemachine statemachine = index.getStatemachine();
+		TranslationKind type = statemachine.getTranslation();
+		boolean lifted = statemachine.getInstances()!=null; 
+		
+		if (type == TranslationKind.MULTIVAR) {
+			for (State object : index.getStates()) {
+				String stateName = object.getName();	
+				String stateStatusVar = variables.get(stateName);
+				if (stateStatusVar != null){
+					activeStates.put(stateName, lifted ? parseSet(stateStatusVar, metrics) : stateStatusVar);					
+				}
+			}
+		} else {
+			//un-supported translation kind (i.e. REFINEDVAR) - no state is active
+		}
+		if (metrics != null) {
+			metrics.stop(AnimationMetrics.Timer.ACTIVE_STATES, start);
+		}
+		return activeStates;
+	}
+	
+	private static Map<String, ActiveInstances> parse(String smValue, AnimationMetrics metrics) {
+		if (metrics == null) {
+			return SmFunctionParser.parse(smValue);
+		}
+		long start = System.nanoTime();
+		Map<String, ActiveInstances> parsed = SmFunctionParser.parse(smValue);
+		metrics.stop(AnimationMetrics.Timer.PARSE_VALUE, start);
+		return parsed;
+	}
+	
+	private static ActiveInstances parseSet(String setValue, AnimationMetrics metrics) {
+		if (metrics == null) {
+			return SmFunctionParser.parseSet(setValue);
+		}
+		long start = System.nanoTime();
+		ActiveInstances parsed = SmFunctionParser.parseSet(setValue);
+		metrics.stop(AnimationMetrics.Timer.PARSE_VALUE, start);
+		return parsed;
+	}
+
+}
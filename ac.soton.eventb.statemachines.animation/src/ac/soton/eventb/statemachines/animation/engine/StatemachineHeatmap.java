@@ -0,0 +1,281 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.engine;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.eclipse.emf.ecore.EObject;
+import org.eventb.emf.core.EventBNamed;
+import org.eventb.emf.core.machine.Event;
+
+import ac.soton.eventb.statemachines.State;
+import ac.soton.eventb.statemachines.Transition;
+
+/**
+ * Counts, over the steps of an animation, how often each state of a statemachine is active
+ * and how often each transition is enabled and fired.
+ *
+ * The counters are primitive arrays indexed by the positions of the states and transitions in the engine
+ * that the heatmap was created for. A step is counted from the snapshot that was computed for it, and only
+ * its active states and enabled transitions are visited, so counting costs little more than the mapping.
+ * In a lifted statemachine, the number of instances in each active state is also summed.
+ * The firings are counted separately, for each operation that the caller knows to have been executed,
+ * so they may not add up to the steps.
+ *
+ * The names of the states and transitions are taken when the heatmap is created,
+ * so the counters can still be exported after the statemachine has been closed
+ * or the heatmap has been released.
+ *
+ * @author cfsnook
+ *
+ */
+public class StatemachineHeatmap {
+
+	/**
+	 * The header of the values written by {@link #writeCsv(Writer)}: a comment line explaining the firings,
+	 * which are not counted for every step, followed by the column names
+	 */
+	public static final String CSV_HEADER = "# steps, active_steps, instance_steps and enabled_steps count every animation step;" + //$NON-NLS-1$
+			" firings only counts the operations executed from the statemachine diagrams and by random walks," + //$NON-NLS-1$
+			" not those executed in the views of the animator\n" + //$NON-NLS-1$
+			"statemachine,kind,name,steps,active_steps,occupancy,instance_steps,enabled_steps,firings\n"; //$NON-NLS-1$
+
+	private StatemachineAnimationEngine engine;
+	private final String statemachine;
+	private final boolean lifted;
+	private final String[] stateNames;
+	private final String[] transitionNames;
+
+	// the number of counted steps in which each state was active
+	private final long[] occupancy;
+	// the sum over the counted steps of the number of instances in each state (lifted statemachines only)
+	private final long[] instanceOccupancy;
+	// the number of counted steps in which each transition was enabled
+	private final long[] enabled;
+	// the number of times each transition was fired
+	private final long[] firings;
+	private long steps = 0;
+
+	/**
+	 * Creates a heatmap of the statemachine of an engine.
+	 * This reads the statemachine, so it should be called in an exclusive transaction of its editing domain.
+	 *
+	 * @param engine
+	 */
+	public StatemachineHeatmap(StatemachineAnimationEngine engine) {
+		this.engine = engine;
+		this.statemachine = engine.getStatemachine().getName();
+		this.lifted = engine.getStatemachine().getInstances() != null;
+		List<State> states = engine.getStates();
+		stateNames = new String[states.size()];
+		for (int i=0; i<stateNames.length; i++) {
+			stateNames[i] = getName(states.get(i).eContainer()) + "." + states.get(i).getName(); //$NON-NLS-1$
+		}
+		List<Transition> transitions = engine.getTransitions();
+		transitionNames = new String[transitions.size()];
+		for (int i=0; i<transitionNames.length; i++) {
+			transitionNames[i] = getName(transitions.get(i));
+		}
+		occupancy = new long[stateNames.length];
+		instanceOccupancy = new long[lifted ? stateNames.length : 0];
+		enabled = new long[transitionNames.length];
+		firings = new long[transitionNames.length];
+	}
+
+	/**
+	 * @return the engine whose state and transition positions index the counters, or null if the heatmap has been released
+	 */
+	public synchronized StatemachineAnimationEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Continues counting with the engine of another copy of the statemachine
+	 * (e.g. when the editor whose copy was counted has been closed)
+	 *
+	 * @param engine an engine that matches the current engine of the heatmap
+	 * @throws IllegalArgumentException if the engine does not match (or the heatmap has been released)
+	 */
+	public synchronized void setEngine(StatemachineAnimationEngine engine) {
+		if (this.engine == null || !engine.matches(this.engine)) {
+			throw new IllegalArgumentException("The statemachine has a different structure"); //$NON-NLS-1$
+		}
+		this.engine = engine;
+	}
+
+	/**
+	 * @return the name of the statemachine
+	 */
+	public String getStatemachineName() {
+		return statemachine;
+	}
+
+	/**
+	 * @return true if the statemachine is lifted, so that the instances in each state are counted
+	 */
+	public boolean isLifted() {
+		return lifted;
+	}
+
+	/**
+	 * Counts a step of the animation whose snapshot has already been computed
+	 *
+	 * @param snapshot a snapshot computed by the engine of the heatmap (or an engine that matches it)
+	 */
+	public synchronized void countStep(StatemachineSnapshot snapshot) {
+		if (engine == null) return;
+		steps++;
+		for (int n=0; n<snapshot.getActiveCount(); n++) {
+			int i = snapshot.getActive(n);
+			occupancy[i]++;
+			if (lifted) {
+				ActiveInstances instances = snapshot.getInstances(i);
+				if (instances != null) {
+					instanceOccupancy[i] += instances.getCount();
+				}
+			}
+		}
+		for (int n=0; n<snapshot.getEnabledCount(); n++) {
+			enabled[snapshot.getEnabled(n)]++;
+		}
+	}
+
+	/**
+	 * Counts the execution of an operation as a firing of each transition that elaborates its event
+	 *
+	 * @param eventName the name of the executed operation
+	 */
+	public synchronized void countFiring(String eventName) {
+		if (engine == null) return;
+		for (int i : engine.getTransitionIds(eventName)) {
+			firings[i]++;
+		}
+	}
+
+	/**
+	 * Stops counting and releases the engine (and so the statemachine) that the heatmap refers to.
+	 * The counters can still be read and exported.
+	 */
+	public synchronized void release() {
+		engine = null;
+	}
+
+	/**
+	 * @return the number of counted steps
+	 */
+	public synchronized long getStepCount() {
+		return steps;
+	}
+
+	/**
+	 * @return the number of counted steps in which the state at position i was active
+	 */
+	public synchronized long getOccupancy(int i) {
+		return occupancy[i];
+	}
+
+	/**
+	 * @return the fraction of the counted steps in which the state at position i was active
+	 */
+	public synchronized double getOccupancyRatio(int i) {
+		return steps == 0 ? 0 : (double) occupancy[i] / steps;
+	}
+
+	/**
+	 * @return the sum over the counted steps of the number of instances in the state at position i,
+	 * 			or the occupancy if the statemachine is not lifted
+	 */
+	public synchronized long getInstanceOccupancy(int i) {
+		return lifted ? instanceOccupancy[i] : occupancy[i];
+	}
+
+	/**
+	 * @return the number of counted steps in which the transition at position i was enabled
+	 */
+	public synchronized long getEnabledSteps(int i) {
+		return enabled[i];
+	}
+
+	/**
+	 * @return the number of times the transition at position i was fired
+	 */
+	public synchronized long getFirings(int i) {
+		return firings[i];
+	}
+
+	/**
+	 * @return the largest number of firings of any transition
+	 */
+	public synchronized long getMaxFirings() {
+		long max = 0;
+		for (long f : firings) {
+			max = Math.max(max, f);
+		}
+		return max;
+	}
+
+	/**
+	 * Sets all the counters to zero
+	 */
+	public synchronized void reset() {
+		steps = 0;
+		Arrays.fill(occupancy, 0);
+		Arrays.fill(instanceOccupancy, 0);
+		Arrays.fill(enabled, 0);
+		Arrays.fill(firings, 0);
+	}
+
+	/**
+	 * Writes the counters as comma separated values, one line per state and per transition
+	 * (without a header line, see {@link #CSV_HEADER})
+	 *
+	 * @param writer
+	 * @throws IOException
+	 */
+	public synchronized void writeCsv(Writer writer) throws IOException {
+		String sm = quote(statemachine);
+		for (int i=0; i<stateNames.length; i++) {
+			writer.write(String.format(Locale.ROOT, "%s,state,%s,%d,%d,%.4f,%s,,\n", //$NON-NLS-1$
+					sm, quote(stateNames[i]), steps, occupancy[i], getOccupancyRatio(i),
+					lifted ? String.valueOf(instanceOccupancy[i]) : "")); //$NON-NLS-1$
+		}
+		for (int i=0; i<transitionNames.length; i++) {
+			writer.write(String.format(Locale.ROOT, "%s,transition,%s,%d,,,,%d,%d\n", //$NON-NLS-1$
+					sm, quote(transitionNames[i]), steps, enabled[i], firings[i]));
+		}
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	private static String quote(String value) {
+		return "\"" + value.replace("\"", "\"\"") + "\""; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	}
+
+	private static String getName(EObject object) {
+		return object instanceof EventBNamed ? ((EventBNamed) object).getName() : ""; //$NON-NLS-1$
+	}
+
+	/**
+	 * @return a name for a transition made of its source and target states and the events it elaborates,
+	 * 			e.g. "s1->s2 e1,e2"
+	 */
+	private static String getName(Transition transition) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(getName(transition.getSource())).append("->").append(getName(transition.getTarget())); //$NON-NLS-1$
+		String separator = " "; //$NON-NLS-1$
+		for (Event event : transition.getElaborates()) {
+			sb.append(separator).append(event.getName());
+			separator = ","; //$NON-NLS-1$
+		}
+		return sb.toString();
+	}
+}
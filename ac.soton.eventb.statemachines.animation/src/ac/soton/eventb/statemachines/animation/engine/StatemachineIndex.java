@@ -0,0 +1,325 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.emf.common.notify.Notification;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.util.EContentAdapter;
+import org.eventb.emf.core.EventBNamed;
+import org.eventb.emf.core.machine.Event;
+
+import ac.soton.eventb.statemachines.AbstractNode;
+import ac.soton.eventb.statemachines.State;
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.StatemachinesPackage;
+import ac.soton.eventb.statemachines.Transition;
+import ac.soton.eventb.statemachines.TranslationKind;
+
+/**
+ * A structural index of an animated statemachine.
+ * The states, transitions and nested statemachines are collected once
+ * (when the statemachine is attached for animation) so that each animation
+ * step does not need to traverse the containment tree.
+ *
+ * The index listens to the statemachine and becomes invalid if its structure
+ * is changed. Changes to the animation attributes are ignored.
+ *
+ * @author cfsnook
+ *
+ */
+class StatemachineIndex {
+
+	private final Statemachine statemachine;
+	private final State[] states;
+	private final Transition[] transitions;
+	private final Statemachine[] statemachines;
+	private final Map<State, Integer> stateIds;
+	private final Map<Transition, Integer> transitionIds;
+	private final Map<String, int[]> transitionsByEvent;
+	private final String[] variables;
+	private final Level hierarchy;
+	private final String[] structure;
+	private final int structureHash;
+
+	private static final int[] NONE = new int[0];
+	private static final Level[] NO_LEVELS = new Level[0];
+
+	/**
+	 * A statemachine in the hierarchy of the indexed statemachine, with the positions of its own states
+	 * and the nested statemachines of each of its states
+	 */
+	static final class Level {
+
+		final String name;
+		final int[] stateIds;
+		final Level[][] nested;
+		private final Map<String, Integer> statesByName;
+
+		private Level(String name, int[] stateIds, Level[][] nested, Map<String, Integer> statesByName) {
+			this.name = name;
+			this.stateIds = stateIds;
+			this.nested = nested;
+			this.statesByName = statesByName;
+		}
+
+		/**
+		 * @return the local position (in stateIds and nested) of the named state of this statemachine, or -1 if none
+		 */
+		int getState(String stateName) {
+			Integer i = statesByName.get(stateName);
+			return i == null ? -1 : i;
+		}
+	}
+
+	private volatile boolean valid = true;
+
+	private final EContentAdapter invalidator = new EContentAdapter() {
+		@Override
+		public void notifyChanged(Notification notification) {
+			super.notifyChanged(notification);
+			if (notification.isTouch() || isAnimationFeature(notification.getFeature())) return;
+			switch (notification.getEventType()) {
+			case Notification.REMOVING_ADAPTER:
+			case Notification.RESOLVE:
+				return;
+			default:
+				valid = false;
+			}
+		}
+	};
+
+	/**
+	 * Builds an index for the given statemachine and starts listening for structural changes
+	 *
+	 * @param statemachine
+	 */
+	StatemachineIndex(Statemachine statemachine) {
+		this.statemachine = statemachine;
+
+		List<State> stateList = new ArrayList<State>();
+		for (EObject object : statemachine.getAllContained(StatemachinesPackage.Literals.STATE, true)) {
+			if (object == null) continue;
+			stateList.add((State) object);
+		}
+
+		List<Transition> transitionList = new ArrayList<Transition>();
+		Map<String, List<Integer>> eventMap = new HashMap<String, List<Integer>>();
+		for (EObject object : statemachine.getAllContained(StatemachinesPackage.Literals.TRANSITION, true)) {
+			if (object == null) continue;
+			Transition transition = (Transition) object;
+			for (Event event : transition.getElaborates()) {
+				List<Integer> ids = eventMap.get(event.getName());
+				if (ids == null) {
+					ids = new ArrayList<Integer>(2);
+					eventMap.put(event.getName(), ids);
+				}
+				if (!ids.contains(transitionList.size())) {
+					ids.add(transitionList.size());
+				}
+			}
+			transitionList.add(transition);
+		}
+
+		List<Statemachine> statemachineList = new ArrayList<Statemachine>();
+		for (EObject object : statemachine.getAllContained(StatemachinesPackage.Literals.STATEMACHINE, true)) {
+			if (object == null || object == statemachine) continue;
+			statemachineList.add((Statemachine) object);
+		}
+
+		this.states = stateList.toArray(new State[stateList.size()]);
+		this.transitions = transitionList.toArray(new Transition[transitionList.size()]);
+		this.statemachines = statemachineList.toArray(new Statemachine[statemachineList.size()]);
+		this.stateIds = new IdentityHashMap<State, Integer>(states.length);
+		for (int i = 0; i < states.length; i++) {
+			stateIds.put(states[i], i);
+		}
+		this.transitionIds = new IdentityHashMap<Transition, Integer>(transitions.length);
+		for (int i = 0; i < transitions.length; i++) {
+			transitionIds.put(transitions[i], i);
+		}
+		this.transitionsByEvent = new HashMap<String, int[]>(eventMap.size() * 2);
+		for (Map.Entry<String, List<Integer>> entry : eventMap.entrySet()) {
+			int[] ids = new int[entry.getValue().size()];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = entry.getValue().get(i);
+			}
+			transitionsByEvent.put(entry.getKey(), ids);
+		}
+
+		// the machine variables that the animation of this statemachine depends on
+		List<String> variableList = new ArrayList<String>();
+		if (statemachine.getTranslation() == TranslationKind.SINGLEVAR) {
+			variableList.add(statemachine.getName());
+			for (Statemachine nested : statemachines) {
+				variableList.add(nested.getName());
+			}
+		} else if (statemachine.getTranslation() == TranslationKind.MULTIVAR) {
+			for (State state : states) {
+				variableList.add(state.getName());
+			}
+		}
+		this.variables = variableList.toArray(new String[variableList.size()]);
+		this.hierarchy = buildLevel(statemachine);
+
+		// the names that determine the positions and the mapping of the animation values
+		List<String> structureList = new ArrayList<String>();
+		structureList.add(String.valueOf(statemachine.getTranslation()));
+		structureList.add(String.valueOf(statemachine.getInstances() != null));
+		structureList.add(String.valueOf(states.length));
+		for (State state : states) {
+			EObject container = state.eContainer();
+			structureList.add((container instanceof EventBNamed ? ((EventBNamed) container).getName() : "") + "." + state.getName()); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		structureList.add(String.valueOf(transitions.length));
+		for (Transition transition : transitions) {
+			StringBuilder sb = new StringBuilder();
+			for (Event event : transition.getElaborates()) {
+				sb.append(event.getName()).append(',');
+			}
+			structureList.add(sb.toString());
+		}
+		structureList.addAll(variableList);
+		this.structure = structureList.toArray(new String[structureList.size()]);
+		this.structureHash = Arrays.hashCode(structure);
+
+		statemachine.eAdapters().add(invalidator);
+	}
+
+	/**
+	 * Stops listening to the statemachine. The index is invalid after this.
+	 */
+	void dispose() {
+		valid = false;
+		statemachine.eAdapters().remove(invalidator);
+	}
+
+	/**
+	 * @return false if the structure of the statemachine has changed since the index was built
+	 */
+	boolean isValid() {
+		return valid;
+	}
+
+	Statemachine getStatemachine() {
+		return statemachine;
+	}
+
+	/**
+	 * @return all states contained in the statemachine (at any depth)
+	 */
+	State[] getStates() {
+		return states;
+	}
+
+	/**
+	 * @return all transitions contained in the statemachine (at any depth)
+	 */
+	Transition[] getTransitions() {
+		return transitions;
+	}
+
+	/**
+	 * @return the position of the state in the array of states, or -1 if the state is not in this statemachine
+	 */
+	int getStateId(State state) {
+		Integer id = stateIds.get(state);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @return the position of the transition in the array of transitions, or -1 if the transition is not in this statemachine
+	 */
+	int getTransitionId(Transition transition) {
+		Integer id = transitionIds.get(transition);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @return the identifiers of the machine variables that the animation of the statemachine depends on
+	 */
+	String[] getVariables() {
+		return variables;
+	}
+
+	/**
+	 * @return true if any transition of the statemachine elaborates the named event
+	 */
+	boolean hasTransitions(String eventName) {
+		return transitionsByEvent.containsKey(eventName);
+	}
+
+	/**
+	 * @return the positions, in the array of transitions, of the transitions that elaborate the named event
+	 */
+	int[] getTransitionIds(String eventName) {
+		int[] ids = transitionsByEvent.get(eventName);
+		return ids == null ? NONE : ids;
+	}
+
+	/**
+	 * @return true if the other index has the same states, transitions and variables at the same positions
+	 * 			(e.g. it indexes another copy of the same statemachine), so that the snapshots of either
+	 * 			can be applied to the statemachine of the other
+	 */
+	boolean hasSameStructure(StatemachineIndex other) {
+		return other == this || other.structureHash == structureHash && Arrays.equals(other.structure, structure);
+	}
+
+	/**
+	 * @return the root of the hierarchy of statemachines and states
+	 */
+	Level getHierarchy() {
+		return hierarchy;
+	}
+
+	private Level buildLevel(Statemachine sm) {
+		List<Integer> ids = new ArrayList<Integer>();
+		List<Level[]> nested = new ArrayList<Level[]>();
+		Map<String, Integer> byName = new HashMap<String, Integer>();
+		for (AbstractNode node : sm.getNodes()) {
+			if (!(node instanceof State)) continue;
+			State state = (State) node;
+			Integer id = stateIds.get(state);
+			if (id == null) continue;
+			if (!byName.containsKey(state.getName())) {
+				byName.put(state.getName(), ids.size());
+			}
+			ids.add(id);
+			if (state.getStatemachines().isEmpty()) {
+				nested.add(NO_LEVELS);
+			} else {
+				Level[] levels = new Level[state.getStatemachines().size()];
+				for (int i = 0; i < levels.length; i++) {
+					levels[i] = buildLevel(state.getStatemachines().get(i));
+				}
+				nested.add(levels);
+			}
+		}
+		int[] idArray = new int[ids.size()];
+		for (int i = 0; i < idArray.length; i++) {
+			idArray[i] = ids.get(i);
+		}
+		return new Level(sm.getName(), idArray, nested.toArray(new Level[nested.size()][]), byName);
+	}
+
+	/**
+	 * the animation attributes are written by the animation itself and do not change the structure
+	 */
+	private static boolean isAnimationFeature(Object feature) {
+		return feature == StatemachinesPackage.Literals.STATE__ACTIVE
+				|| feature == StatemachinesPackage.Literals.STATE__ACTIVE_INSTANCES
+				|| feature == StatemachinesPackage.Literals.TRANSITION__OPERATIONS;
+	}
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import ac.soton.eventb.probsupport.data.Operation_;
+import ac.soton.eventb.statemachines.State;
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.Transition;
+
+/**
+ * The animation values of a statemachine at one animation step, as computed by a
+ * {@link StatemachineAnimationEngine}. A snapshot cannot be changed once it has been computed.
+ *
+ * The values can be retrieved for a state or transition of the statemachine, or by position
+ * in the engine's lists of states and transitions, so that two snapshots from the same engine
+ * can be compared element by element. All inactive states of a snapshot have the same values,
+ * so two snapshots from the same engine can only differ at the states that are active in either of them.
+ *
+ * @author cfsnook
+ *
+ */
+public class StatemachineSnapshot {
+
+	private final StatemachineIndex index;
+	private final boolean[] active;
+	private final String[] labels;
+	private final ActiveInstances[] instances;
+	private final List<Operation_>[] operations;
+	private int[] enabled = new int[8];
+	private int enabledCount = 0;
+	private int[] activeStates = new int[8];
+	private int activeCount = 0;
+
+	// the values of the states that have not been set (i.e. the inactive states of a lifted statemachine)
+	private final ActiveInstances inactiveInstances;
+	private final String inactiveLabel;
+
+	// the inputs that this snapshot was computed from
+	private String[] variableValues = null;
+	private List<Operation_> relevantOperations = null;
+
+	StatemachineSnapshot(StatemachineIndex index) {
+		this(index, null, null);
+	}
+
+	/**
+	 * @param index
+	 * @param inactiveInstances the instances of the states that are not set
+	 * @param inactiveLabel the label of the states that are not set
+	 */
+	@SuppressWarnings("unchecked")
+	StatemachineSnapshot(StatemachineIndex index, ActiveInstances inactiveInstances, String inactiveLabel) {
+		this.index = index;
+		this.inactiveInstances = inactiveInstances;
+		this.inactiveLabel = inactiveLabel;
+		active = new boolean[index.getStates().length];
+		labels = new String[index.getStates().length];
+		instances = new ActiveInstances[index.getStates().length];
+		operations = new List[index.getTransitions().length];
+	}
+
+	/**
+	 * @return the statemachine that this is a snapshot of
+	 */
+	public Statemachine getStatemachine() {
+		return index.getStatemachine();
+	}
+
+	/**
+	 * @return true if the state is active, false if it is not or is not in this statemachine
+	 */
+	public boolean isActive(State state) {
+		int i = index.getStateId(state);
+		return i >= 0 && active[i];
+	}
+
+	/**
+	 * @return the instances of a lifted statemachine that are in the state,
+	 * 			or null if the statemachine is not lifted or the state is not in it
+	 */
+	public ActiveInstances getActiveInstances(State state) {
+		int i = index.getStateId(state);
+		return i < 0 ? null : getInstances(i);
+	}
+
+	/**
+	 * @return the enabled operations of the transition (empty if none or if the transition is not in this statemachine)
+	 */
+	public List<Operation_> getOperations(Transition transition) {
+		int i = index.getTransitionId(transition);
+		List<Operation_> ops = i < 0 ? null : getOperations(i);
+		return ops == null ? Collections.<Operation_>emptyList() : ops;
+	}
+
+	/**
+	 * @return the number of transitions that have enabled operations
+	 */
+	public int getEnabledCount() {
+		return enabledCount;
+	}
+
+	/**
+	 * @return the position of the n'th transition that has enabled operations
+	 */
+	public int getEnabled(int n) {
+		return enabled[n];
+	}
+
+	/**
+	 * @return the number of active states
+	 */
+	public int getActiveCount() {
+		return activeCount;
+	}
+
+	/**
+	 * @return the position of the n'th active state
+	 */
+	public int getActive(int n) {
+		return activeStates[n];
+	}
+
+	/**
+	 * @return true if the state at position i is active
+	 */
+	public boolean isActive(int i) {
+		return active[i];
+	}
+
+	/**
+	 * @return the label shown for the instances in the state at position i, or null if not lifted
+	 */
+	public String getLabel(int i) {
+		return labels[i] == null ? inactiveLabel : labels[i];
+	}
+
+	/**
+	 * @return the instances in the state at position i, or null if not lifted
+	 */
+	public ActiveInstances getInstances(int i) {
+		return instances[i] == null ? inactiveInstances : instances[i];
+	}
+
+	/**
+	 * @return the enabled operations of the transition at position i, or null if there are none
+	 */
+	public List<Operation_> getOperations(int i) {
+		return operations[i] == null ? null : Collections.unmodifiableList(operations[i]);
+	}
+
+	/**
+	 * @return true if the state at position i has the same values in both snapshots
+	 */
+	public boolean sameState(StatemachineSnapshot other, int i) {
+		return active[i] == other.active[i] && equal(getLabel(i), other.getLabel(i));
+	}
+
+	/**
+	 * @return true if the transition at position i has the same operations in both snapshots
+	 */
+	public boolean sameOperations(StatemachineSnapshot other, int i) {
+		return sameOperations(operations[i], other.operations[i]);
+	}
+
+	//////////////////////////////// package ///////////////////////////////
+
+	/**
+	 * @return the index that the positions of this snapshot refer to
+	 */
+	StatemachineIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Sets the values of the state at position i (at most once for each state)
+	 */
+	void setState(int i, boolean isActive, String label, ActiveInstances activeInstances) {
+		if (isActive && !active[i]) {
+			if (activeCount == activeStates.length) {
+				activeStates = Arrays.copyOf(activeStates, activeCount * 2);
+			}
+			activeStates[activeCount++] = i;
+		}
+		active[i] = isActive;
+		labels[i] = label;
+		instances[i] = activeInstances;
+	}
+
+	/**
+	 * Records the inputs that the snapshot is computed from
+	 *
+	 * @param values the values of the variables of the statemachine (see {@link StatemachineIndex#getVariables()})
+	 * @param ops the enabled operations of events elaborated by transitions of the statemachine
+	 */
+	void setInputs(String[] values, List<Operation_> ops) {
+		variableValues = values;
+		relevantOperations = ops;
+	}
+
+	/**
+	 * @return true if this snapshot was computed from the same inputs
+	 */
+	boolean sameInputs(String[] values, List<Operation_> ops) {
+		return variableValues != null && Arrays.equals(variableValues, values) && sameOperations(relevantOperations, ops);
+	}
+
+	/**
+	 * Adds an enabled operation to the transition at position i
+	 */
+	void addOperation(int i, Operation_ op) {
+		if (operations[i] == null) {
+			operations[i] = new ArrayList<Operation_>(2);
+			if (enabledCount == enabled.length) {
+				enabled = Arrays.copyOf(enabled, enabledCount * 2);
+			}
+			enabled[enabledCount++] = i;
+		}
+		operations[i].add(op);
+	}
+
+	/**
+	 * Operations are compared by name and arguments since the animator
+	 * may provide new operation objects at each step
+	 */
+	static boolean sameOperations(List<Operation_> ops1, List<Operation_> ops2) {
+		if (ops1 == ops2) return true;
+		if (ops1 == null || ops2 == null || ops1.size() != ops2.size()) return false;
+		for (int i = 0; i < ops1.size(); i++) {
+			Operation_ op1 = ops1.get(i);
+			Operation_ op2 = ops2.get(i);
+			if (!equal(op1.getName(), op2.getName()) || !equal(op1.getArguments(), op2.getArguments())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean equal(Object o1, Object o2) {
+		return o1 == null ? o2 == null : o1.equals(o2);
+	}
+}
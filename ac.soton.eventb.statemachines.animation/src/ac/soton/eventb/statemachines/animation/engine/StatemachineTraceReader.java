@@ -0,0 +1,446 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+
+/**
+ * Reads a trace file written by a {@link StatemachineTraceRecorder}, one step at a time.
+ *
+ * After each call of {@link #next()} the reader holds the animation values of the statemachine
+ * at the step that has been read: which states are active (and their instances if the statemachine
+ * is lifted) and which transitions are enabled. The states and transitions are identified by the
+ * positions whose names are given in the header of the trace.
+ *
+ * The reader can also {@link #seek(long)} to any step. A keyframe (a copy of the values) is kept
+ * every few steps as the trace is read, so a step is reached by restoring the nearest keyframe
+ * before it and reading the few steps after that. The keyframes of the whole trace can be built in
+ * advance with {@link #indexKeyframes()}.
+ *
+ * @author cfsnook
+ *
+ */
+public class StatemachineTraceReader {
+
+	/**
+	 * The default number of steps between keyframes
+	 */
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 1024;
+
+	private final MappedByteBuffer data;
+	private final int version;
+	private final int dataStart;
+	private final int keyframeInterval;
+	private final String statemachineName;
+	private final boolean lifted;
+	private final List<String> stateNames;
+	private final List<String> transitionLabels;
+	private final long stepCount;
+
+	private BitSet active = new BitSet();
+	private String[][] instances;	// the instances in each state (each array is replaced, not changed, when they change)
+	private String[] texts;			// the text of the instances in each state, built when it is asked for
+	private BitSet enabled = new BitSet();
+	private long step = -1;
+	private int[] removed = new int[16];
+
+	// the keyframe at position k holds the values at step k*keyframeInterval
+	private final List<Keyframe> keyframes = new ArrayList<Keyframe>();
+
+	/**
+	 * The values at a step and the position in the data of the following step
+	 */
+	private static class Keyframe {
+		private final long step;
+		private final int position;
+		private final BitSet active;
+		private final String[][] instances;
+		private final String[] texts;
+		private final BitSet enabled;
+
+		private Keyframe(long step, int position, BitSet active, String[][] instances, String[] texts, BitSet enabled) {
+			this.step = step;
+			this.position = position;
+			this.active = (BitSet) active.clone();
+			this.instances = instances == null ? null : instances.clone();
+			this.texts = texts == null ? null : texts.clone();
+			this.enabled = (BitSet) enabled.clone();
+		}
+	}
+
+	/**
+	 * Opens a trace file and reads its header, keeping a keyframe every {@link #DEFAULT_KEYFRAME_INTERVAL} steps
+	 *
+	 * @param traceFile
+	 * @throws IOException if the file cannot be read or is not a statemachine trace
+	 */
+	public StatemachineTraceReader(File traceFile) throws IOException {
+		this(traceFile, DEFAULT_KEYFRAME_INTERVAL);
+	}
+
+	/**
+	 * Opens a trace file and reads its header
+	 *
+	 * @param traceFile
+	 * @param keyframeInterval the number of steps between keyframes
+	 * @throws IOException if the file cannot be read or is not a statemachine trace
+	 */
+	public StatemachineTraceReader(File traceFile, int keyframeInterval) throws IOException {
+		if (keyframeInterval < 1) {
+			throw new IllegalArgumentException("keyframeInterval must be positive"); //$NON-NLS-1$
+		}
+		this.keyframeInterval = keyframeInterval;
+		RandomAccessFile file = new RandomAccessFile(traceFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+			if (header.remaining() < StatemachineTraceRecorder.FIXED_HEADER_LENGTH
+					|| header.getInt() != StatemachineTraceRecorder.MAGIC) {
+				throw new IOException("Not a statemachine trace: " + traceFile); //$NON-NLS-1$
+			}
+			// (version 1 traces wrote the instances of a state in full)
+			version = header.getShort();
+			if (version < 1 || version > StatemachineTraceRecorder.VERSION) {
+				throw new IOException("Unsupported statemachine trace version " + version + ": " + traceFile); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			stepCount = header.getLong();
+			long dataLength = header.getLong();
+			this.data = header;
+			statemachineName = readString();
+			lifted = readVarInt() != 0;
+			String[] states = new String[readVarInt()];
+			for (int i = 0; i < states.length; i++) {
+				states[i] = readString();
+			}
+			String[] transitions = new String[readVarInt()];
+			for (int i = 0; i < transitions.length; i++) {
+				transitions[i] = readString();
+			}
+			if (data.position() + dataLength > data.limit()) {
+				throw new IOException("Truncated statemachine trace: " + traceFile); //$NON-NLS-1$
+			}
+			dataStart = data.position();
+			data.limit((int) (dataStart + dataLength));
+			stateNames = Collections.unmodifiableList(Arrays.asList(states));
+			transitionLabels = Collections.unmodifiableList(Arrays.asList(transitions));
+			instances = lifted ? new String[states.length][] : null;
+			texts = lifted ? new String[states.length] : null;
+		} catch (RuntimeException e) {
+			throw new IOException("Corrupt statemachine trace: " + traceFile, e); //$NON-NLS-1$
+		} finally {
+			file.close();	// the mapping remains valid after the file is closed
+		}
+	}
+
+	public String getStatemachineName() {
+		return statemachineName;
+	}
+
+	/**
+	 * @return true if the statemachine is lifted (i.e. the states have instances)
+	 */
+	public boolean isLifted() {
+		return lifted;
+	}
+
+	/**
+	 * @return the names of the states, in the order of their positions
+	 */
+	public List<String> getStateNames() {
+		return stateNames;
+	}
+
+	/**
+	 * @return the names of the events elaborated by each transition (comma separated), in the order of their positions
+	 */
+	public List<String> getTransitionLabels() {
+		return transitionLabels;
+	}
+
+	/**
+	 * @return the number of steps in the trace
+	 */
+	public long getStepCount() {
+		return stepCount;
+	}
+
+	/**
+	 * @return the number of the step that has been read (starting from 0), or -1 if none has been read
+	 */
+	public long getStep() {
+		return step;
+	}
+
+	/**
+	 * Reads the next step
+	 *
+	 * @return false if there are no more steps
+	 * @throws IOException if the trace is corrupt
+	 */
+	public boolean next() throws IOException {
+		if (step + 1 >= stepCount || !data.hasRemaining()) {
+			return false;
+		}
+		try {
+			int n = readVarInt();
+			for (int k = 0, i = -1; k < n; k++) {
+				i += readVarInt();
+				active.flip(i);
+			}
+			n = readVarInt();
+			for (int k = 0, i = -1; k < n; k++) {
+				i += readVarInt();
+				readInstances(i);
+			}
+			n = readVarInt();
+			for (int k = 0, i = -1; k < n; k++) {
+				i += readVarInt();
+				enabled.flip(i);
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("Corrupt statemachine trace at step " + (step + 1), e); //$NON-NLS-1$
+		}
+		step++;
+		if (step % keyframeInterval == 0 && step / keyframeInterval == keyframes.size()) {
+			keyframes.add(new Keyframe(step, data.position(), active, instances, texts, enabled));
+		}
+		return true;
+	}
+
+	/**
+	 * Moves to the given step, from the nearest keyframe before it (or from the current step if that is nearer)
+	 *
+	 * @param target the number of the step (from 0 to the step count - 1)
+	 * @throws IOException if the trace is corrupt
+	 */
+	public void seek(long target) throws IOException {
+		if (target < 0 || target >= stepCount) {
+			throw new IllegalArgumentException("No step " + target + " in trace of " + stepCount + " steps"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+		int k = (int) Math.min(target / keyframeInterval, keyframes.size() - 1);
+		Keyframe keyframe = k < 0 ? null : keyframes.get(k);
+		if (target < step || keyframe != null && keyframe.step > step) {
+			if (keyframe == null) {
+				restart();
+			} else {
+				restore(keyframe);
+			}
+		}
+		while (step < target) {
+			if (!next()) {
+				throw new IOException("Truncated statemachine trace at step " + (step + 1)); //$NON-NLS-1$
+			}
+		}
+	}
+
+	/**
+	 * Reads the whole trace to build its keyframes, so that any step can be reached quickly.
+	 * The reader is left at the step it was at.
+	 *
+	 * @throws IOException if the trace is corrupt
+	 */
+	public void indexKeyframes() throws IOException {
+		indexKeyframes(null);
+	}
+
+	/**
+	 * Reads the whole trace to build its keyframes, so that any step can be reached quickly,
+	 * reporting the progress (a long trace takes a while to read).
+	 * The reader is left at the step it was at. If the monitor is canceled, the keyframes built so far are kept.
+	 *
+	 * @param monitor a monitor to report the progress and cancel the indexing, or null
+	 * @return false if the indexing was canceled
+	 * @throws IOException if the trace is corrupt
+	 */
+	public boolean indexKeyframes(IProgressMonitor monitor) throws IOException {
+		if (monitor == null) {
+			monitor = new NullProgressMonitor();
+		}
+		long current = step;
+		if (!keyframes.isEmpty()) {
+			Keyframe last = keyframes.get(keyframes.size() - 1);
+			if (last.step > step) {
+				restore(last);
+			}
+		}
+		monitor.beginTask("Indexing statemachine trace", (int) Math.min(Integer.MAX_VALUE, (stepCount - step) / keyframeInterval + 1)); //$NON-NLS-1$
+		boolean canceled = false;
+		while (next()) {
+			// keyframes are added as the steps are read
+			if (step % keyframeInterval == 0) {
+				if (monitor.isCanceled()) {
+					canceled = true;
+					break;
+				}
+				monitor.worked(1);
+			}
+		}
+		if (current < 0) {
+			restart();
+		} else {
+			seek(current);
+		}
+		monitor.done();
+		return !canceled;
+	}
+
+	/**
+	 * @return true if the state at position i is active at the current step
+	 */
+	public boolean isActive(int i) {
+		return active.get(i);
+	}
+
+	/**
+	 * @return the instances in the state at position i at the current step (e.g. {a,b}),
+	 * 			or null if the statemachine is not lifted
+	 */
+	public String getInstances(int i) {
+		if (instances == null) {
+			return null;
+		}
+		if (texts[i] == null) {
+			String[] items = instances[i];
+			if (items == null || items.length == 0) {
+				texts[i] = ActiveInstances.EMPTY_SET;
+			} else {
+				StringBuilder sb = new StringBuilder().append('{');
+				for (int j = 0; j < items.length; j++) {
+					if (j > 0) sb.append(',');
+					sb.append(items[j]);
+				}
+				texts[i] = sb.append('}').toString();
+			}
+		}
+		return texts[i];
+	}
+
+	/**
+	 * @return true if the transition at position i is enabled at the current step
+	 */
+	public boolean isEnabled(int i) {
+		return enabled.get(i);
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	/**
+	 * Moves to before the first step
+	 */
+	private void restart() {
+		active.clear();
+		enabled.clear();
+		if (instances != null) {
+			Arrays.fill(instances, null);
+			Arrays.fill(texts, null);
+		}
+		data.position(dataStart);
+		step = -1;
+	}
+
+	private void restore(Keyframe keyframe) {
+		active = (BitSet) keyframe.active.clone();
+		enabled = (BitSet) keyframe.enabled.clone();
+		if (instances != null) {
+			instances = keyframe.instances.clone();
+			texts = keyframe.texts.clone();
+		}
+		data.position(keyframe.position);
+		step = keyframe.step;
+	}
+
+	/**
+	 * Reads the new instances of the state at position i, written in full or as the instances removed and added
+	 */
+	private void readInstances(int i) {
+		int mode = version == 1 ? StatemachineTraceRecorder.INSTANCES_TEXT : readVarInt();
+		if (mode == StatemachineTraceRecorder.INSTANCES_TEXT) {
+			String text = readString();
+			if (instances != null) {
+				ActiveInstances set = SmFunctionParser.parseSet(text);
+				String[] items = new String[set.getCount()];
+				for (int j = 0; j < items.length; j++) {
+					items[j] = set.getInstance(j);
+				}
+				instances[i] = items;
+				texts[i] = items.length == 0 ? ActiveInstances.EMPTY_SET : text;
+			}
+			return;
+		}
+		if (mode != StatemachineTraceRecorder.INSTANCES_DELTA) {
+			throw new IllegalStateException("Unknown instances record " + mode); //$NON-NLS-1$
+		}
+		int removedCount = readVarInt();
+		if (removed.length < removedCount) {
+			removed = new int[removedCount];
+		}
+		for (int k = 0, j = -1; k < removedCount; k++) {
+			j += readVarInt();
+			removed[k] = j;
+		}
+		String[] was = instances == null || instances[i] == null ? new String[0] : instances[i];
+		int addedCount = readVarInt();
+		String[] items = new String[was.length - removedCount + addedCount];
+		int next = 0;		// the next position of the new instances to be filled from the old ones
+		int old = 0;		// the next position of the old instances
+		int r = 0;
+		for (int k = 0, j = -1; k < addedCount; k++) {
+			j += readVarInt();
+			String instance = readString();
+			while (next < j) {
+				while (r < removedCount && removed[r] == old) {
+					r++;
+					old++;
+				}
+				items[next++] = was[old++];
+			}
+			items[next++] = instance;
+		}
+		while (next < items.length) {
+			while (r < removedCount && removed[r] == old) {
+				r++;
+				old++;
+			}
+			items[next++] = was[old++];
+		}
+		if (instances != null) {
+			instances[i] = items;
+			texts[i] = null;
+		}
+	}
+
+	private int readVarInt() {
+		int value = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = data.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+	}
+
+	private String readString() {
+		byte[] bytes = new byte[readVarInt()];
+		data.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
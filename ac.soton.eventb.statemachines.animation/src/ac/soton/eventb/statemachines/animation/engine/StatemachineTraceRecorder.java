@@ -0,0 +1,423 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eventb.emf.core.machine.Event;
+
+import ac.soton.eventb.probsupport.data.Operation_;
+import ac.soton.eventb.statemachines.State;
+import ac.soton.eventb.statemachines.Transition;
+
+/**
+ * Records the animation of a statemachine, one record per animation step, in a compact binary trace file
+ * that can be read back with {@link StatemachineTraceReader}.
+ *
+ * The states and transitions are identified by their positions in the engine's lists, which are
+ * written (by name) in the header of the file when the recorder is created.
+ * Each step is recorded as the difference from the previous step: the positions of the states whose
+ * active flag has changed, the changes to the instances of the states of a lifted statemachine, and the
+ * positions of the transitions whose enabled flag has changed. Positions are written as variable length
+ * deltas, so a step where a single state changes usually takes a few bytes. The changes are found from the
+ * active states and enabled transitions of the two snapshots, so the cost of a step does not depend on
+ * the size of the statemachine. The instances of a state are written as the instances removed and added
+ * (or in full when that is shorter).
+ *
+ * The records are collected in a buffer that is written to the end of the file when it is full, so
+ * recording a step does not usually make a system call. The header is brought up to date whenever the
+ * buffer is written, so a trace that has not been closed can be read up to the last write.
+ * A recorder is not thread-safe. Since the statemachine is read when the recorder is created and when
+ * a step is recorded from the variables and operations, the caller must then have read access to its
+ * editing domain (if any).
+ *
+ * @author cfsnook
+ *
+ */
+public class StatemachineTraceRecorder {
+
+	static final int MAGIC = 0x534D5452;	// "SMTR"
+	static final short VERSION = 2;
+
+	// offsets in the file of the header fields that are updated when the buffer is written
+	static final int STEP_COUNT_OFFSET = 6;
+	static final int DATA_LENGTH_OFFSET = 14;
+	static final int FIXED_HEADER_LENGTH = 22;
+
+	// the ways in which the instances of a state are written
+	static final int INSTANCES_TEXT = 0;
+	static final int INSTANCES_DELTA = 1;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final StatemachineAnimationEngine engine;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long dataStart;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final ByteBuffer counts = ByteBuffer.allocate(FIXED_HEADER_LENGTH - STEP_COUNT_OFFSET);
+	private long position;
+	private long stepCount = 0;
+	private StatemachineSnapshot previous = null;
+	private byte[] record = new byte[256];
+	private int recordLength = 0;
+	private boolean closed = false;
+
+	// reused for each step
+	private int[] changed = new int[16];
+	private int[] instanceChanges = new int[16];
+	private int[] removed = new int[16];
+	private int[] added = new int[16];
+	private final Set<String> previousInstances = new HashSet<String>();
+	private final Set<String> currentInstances = new HashSet<String>();
+
+	/**
+	 * Creates the trace file, replacing any existing file, and writes the header
+	 *
+	 * @param traceFile
+	 * @param engine the engine of the statemachine to be recorded
+	 * @throws IOException
+	 */
+	public StatemachineTraceRecorder(File traceFile, StatemachineAnimationEngine engine) throws IOException {
+		this.engine = engine;
+		this.file = new RandomAccessFile(traceFile, "rw");
+		this.channel = file.getChannel();
+		try {
+			channel.truncate(0);
+			ByteBuffer header = encodeHeader();
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+		this.dataStart = channel.size();
+		this.position = dataStart;
+	}
+
+	/**
+	 * @return the engine whose statemachine is recorded
+	 */
+	public StatemachineAnimationEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * @return the number of steps recorded so far
+	 */
+	public long getStepCount() {
+		return stepCount;
+	}
+
+	/**
+	 * Maps the given state of the animation with the engine and records it as the next step
+	 *
+	 * @param variables the values of the variables in the current state of the animation
+	 * @param operations the enabled operations in the current state of the animation
+	 * @throws IOException
+	 */
+	public void record(Map<String, String> variables, List<Operation_> operations) throws IOException {
+		record(engine.map(variables, operations, previous, null));
+	}
+
+	/**
+	 * Records a snapshot as the next step. The snapshot must have been computed by the engine,
+	 * or by the engine of a statemachine that {@link StatemachineAnimationEngine#matches(StatemachineAnimationEngine) matches} it.
+	 *
+	 * @param snapshot
+	 * @throws IOException
+	 */
+	public void record(StatemachineSnapshot snapshot) throws IOException {
+		if (closed) {
+			throw new IOException("The trace recorder has been closed"); //$NON-NLS-1$
+		}
+		recordLength = 0;
+		if (snapshot == previous) {
+			// nothing has changed
+			writeVarInt(0);
+			writeVarInt(0);
+			writeVarInt(0);
+		} else {
+			encodeDelta(snapshot);
+		}
+		if (buffer.remaining() < recordLength) {
+			flush();
+		}
+		if (buffer.remaining() < recordLength) {
+			// a record larger than the buffer is written directly
+			write(ByteBuffer.wrap(record, 0, recordLength));
+		} else {
+			buffer.put(record, 0, recordLength);
+		}
+		previous = snapshot;
+		stepCount++;
+	}
+
+	/**
+	 * Writes the buffered steps to the file and brings the header up to date
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		if (closed) return;
+		buffer.flip();
+		write(buffer);
+		buffer.clear();
+		counts.clear();
+		counts.putLong(stepCount).putLong(position - dataStart).flip();
+		while (counts.hasRemaining()) {
+			channel.write(counts, STEP_COUNT_OFFSET + counts.position());
+		}
+	}
+
+	/**
+	 * Flushes the recorded steps and closes the file.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (closed) return;
+		try {
+			flush();
+		} finally {
+			closed = true;
+			file.close();
+		}
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	private ByteBuffer encodeHeader() {
+		List<State> states = engine.getStates();
+		List<Transition> transitions = engine.getTransitions();
+		recordLength = 0;
+		writeString(engine.getStatemachine().getName());
+		writeVarInt(engine.getStatemachine().getInstances() == null ? 0 : 1);
+		writeVarInt(states.size());
+		for (State state : states) {
+			writeString(state.getName());
+		}
+		writeVarInt(transitions.size());
+		for (Transition transition : transitions) {
+			writeString(getLabel(transition));
+		}
+		ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_LENGTH + recordLength);
+		header.putInt(MAGIC).putShort(VERSION).putLong(0).putLong(0);
+		header.put(record, 0, recordLength);
+		header.flip();
+		return header;
+	}
+
+	/**
+	 * @return the names of the events elaborated by the transition, comma separated (as written in the header)
+	 */
+	static String getLabel(Transition transition) {
+		StringBuilder label = new StringBuilder();
+		for (Event event : transition.getElaborates()) {
+			if (label.length() > 0) label.append(',');
+			label.append(event.getName());
+		}
+		return label.toString();
+	}
+
+	/**
+	 * Encodes the differences between the previous snapshot and the given one
+	 */
+	private void encodeDelta(StatemachineSnapshot snapshot) {
+		// states whose active flag has changed, i.e. that are active in only one of the snapshots
+		int n = 0;
+		for (int k = 0; k < snapshot.getActiveCount(); k++) {
+			int i = snapshot.getActive(k);
+			if (previous == null || !previous.isActive(i)) {
+				changed = add(changed, n++, i);
+			}
+		}
+		if (previous != null) {
+			for (int k = 0; k < previous.getActiveCount(); k++) {
+				int i = previous.getActive(k);
+				if (!snapshot.isActive(i)) {
+					changed = add(changed, n++, i);
+				}
+			}
+		}
+		Arrays.sort(changed, 0, n);
+		writePositions(changed, n);
+
+		// states whose instances have changed (only active states have instances)
+		int m = 0;
+		if (engine.getStatemachine().getInstances() != null) {
+			for (int k = 0; k < n; k++) {
+				instanceChanges = add(instanceChanges, m++, changed[k]);
+			}
+			for (int k = 0; k < snapshot.getActiveCount(); k++) {
+				int i = snapshot.getActive(k);
+				if (previous != null && previous.isActive(i) && !snapshot.getInstances(i).sameInstances(previous.getInstances(i))) {
+					instanceChanges = add(instanceChanges, m++, i);
+				}
+			}
+			Arrays.sort(instanceChanges, 0, m);
+		}
+		writeVarInt(m);
+		int last = -1;
+		for (int k = 0; k < m; k++) {
+			int i = instanceChanges[k];
+			writeVarInt(i - last);
+			last = i;
+			writeInstances(previous == null ? ActiveInstances.EMPTY : previous.getInstances(i), snapshot.getInstances(i));
+		}
+
+		// transitions whose enabled flag has changed
+		n = 0;
+		for (int k = 0; k < snapshot.getEnabledCount(); k++) {
+			int i = snapshot.getEnabled(k);
+			if (previous == null || previous.getOperations(i) == null) {
+				changed = add(changed, n++, i);
+			}
+		}
+		if (previous != null) {
+			for (int k = 0; k < previous.getEnabledCount(); k++) {
+				int i = previous.getEnabled(k);
+				if (snapshot.getOperations(i) == null) {
+					changed = add(changed, n++, i);
+				}
+			}
+		}
+		Arrays.sort(changed, 0, n);
+		writePositions(changed, n);
+	}
+
+	/**
+	 * Writes the new instances of a state as the positions of the instances removed from the old ones,
+	 * followed by the positions and values of the instances added in the new ones.
+	 * If most of the instances have changed, or the instances that remain are not in the same order, the new instances
+	 * are written in full.
+	 */
+	private void writeInstances(ActiveInstances was, ActiveInstances instances) {
+		if (instances == null) {
+			instances = ActiveInstances.EMPTY;
+		}
+		if (was == null) {
+			was = ActiveInstances.EMPTY;
+		}
+		previousInstances.clear();
+		currentInstances.clear();
+		for (int j = 0; j < was.getCount(); j++) {
+			previousInstances.add(was.getInstance(j));
+		}
+		for (int j = 0; j < instances.getCount(); j++) {
+			currentInstances.add(instances.getInstance(j));
+		}
+		int removedCount = 0;
+		for (int j = 0; j < was.getCount(); j++) {
+			if (!currentInstances.contains(was.getInstance(j))) {
+				removed = add(removed, removedCount++, j);
+			}
+		}
+		int addedCount = 0;
+		for (int j = 0; j < instances.getCount(); j++) {
+			if (!previousInstances.contains(instances.getInstance(j))) {
+				added = add(added, addedCount++, j);
+			}
+		}
+		boolean delta = removedCount + addedCount < instances.getCount();
+		// the instances that remain must be in the same order in both
+		for (int j = 0, r = 0, a = 0, i = 0; delta && j < was.getCount(); j++) {
+			if (r < removedCount && removed[r] == j) {
+				r++;
+				continue;
+			}
+			while (a < addedCount && added[a] == i) {
+				a++;
+				i++;
+			}
+			delta = was.getInstance(j).equals(instances.getInstance(i++));
+		}
+		if (delta) {
+			writeVarInt(INSTANCES_DELTA);
+			writePositions(removed, removedCount);
+			writeVarInt(addedCount);
+			int last = -1;
+			for (int k = 0; k < addedCount; k++) {
+				writeVarInt(added[k] - last);
+				last = added[k];
+				writeString(instances.getInstance(added[k]));
+			}
+		} else {
+			writeVarInt(INSTANCES_TEXT);
+			writeString(instances.getText());
+		}
+	}
+
+	/**
+	 * Writes the number of positions followed by the difference of each position from the one before
+	 */
+	private void writePositions(int[] positions, int n) {
+		writeVarInt(n);
+		int last = -1;
+		for (int k = 0; k < n; k++) {
+			writeVarInt(positions[k] - last);
+			last = positions[k];
+		}
+	}
+
+	private void writeString(String s) {
+		byte[] bytes = s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(bytes.length);
+		ensureRecordCapacity(bytes.length);
+		System.arraycopy(bytes, 0, record, recordLength, bytes.length);
+		recordLength += bytes.length;
+	}
+
+	private void writeVarInt(int value) {
+		ensureRecordCapacity(5);
+		while ((value & ~0x7F) != 0) {
+			record[recordLength++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		record[recordLength++] = (byte) value;
+	}
+
+	private void ensureRecordCapacity(int extra) {
+		if (recordLength + extra > record.length) {
+			record = Arrays.copyOf(record, Math.max(record.length * 2, recordLength + extra));
+		}
+	}
+
+	/**
+	 * Sets the value at position n of an array, growing the array if it is full
+	 *
+	 * @return the array or its grown copy
+	 */
+	private static int[] add(int[] array, int n, int value) {
+		if (n == array.length) {
+			array = Arrays.copyOf(array, n * 2);
+		}
+		array[n] = value;
+		return array;
+	}
+
+	/**
+	 * Writes bytes at the end of the data
+	 */
+	private void write(ByteBuffer bytes) throws IOException {
+		while (bytes.hasRemaining()) {
+			position += channel.write(bytes, position);
+		}
+	}
+}
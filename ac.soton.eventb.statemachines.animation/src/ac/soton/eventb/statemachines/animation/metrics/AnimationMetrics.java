@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The timings and counters of the animation of one machine.
+ *
+ * Each activity of an animation step is timed into its own {@link LatencyHistogram}, so that
+ * slow steps can be attributed to the animator, to parsing the variable values, to computing the
+ * active states or to writing the animation attributes to the diagrams (which includes the
+ * diagram's handling of the changes).
+ * Timing is done with {@link System#nanoTime()} and the metrics may be updated from several threads.
+ *
+ * @author cfsnook
+ *
+ */
+public class AnimationMetrics implements AnimationMetricsMXBean {
+
+	/**
+	 * The timed activities
+	 */
+	public enum Timer {
+		/** starting the animation of the machine */
+		START_ANIMATION,
+		/** handling an update notification from the animator (excluding the scheduled update) */
+		UPDATE_ANIMATION,
+		/** getting the current state and enabled operations from the animator */
+		ANIMATOR_QUERY,
+		/** computing the snapshot of a statemachine (including its active states) */
+		COMPUTE_SNAPSHOT,
+		/** computing the active states of a statemachine (including parsing the values) */
+		ACTIVE_STATES,
+		/** parsing the value of a lifted statemachine variable */
+		PARSE_VALUE,
+		/** writing the animation attributes in a transaction and notifying the diagram */
+		APPLY_ARTIFACTS
+	}
+
+	private final String machine;
+	private final LatencyHistogram[] timers = new LatencyHistogram[Timer.values().length];
+	private final AtomicLong steps = new AtomicLong();
+	private final AtomicLong elementsTouched = new AtomicLong();
+	private final AtomicLong commandsIssued = new AtomicLong();
+
+	/**
+	 * @param machine the name that identifies the machine, e.g. project/machine
+	 */
+	public AnimationMetrics(String machine) {
+		this.machine = machine;
+		for (int i = 0; i < timers.length; i++) {
+			timers[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Records the time since the given start time
+	 *
+	 * @param timer the activity
+	 * @param startNanos the value of {@link System#nanoTime()} when the activity started
+	 */
+	public void stop(Timer timer, long startNanos) {
+		timers[timer.ordinal()].record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @return the histogram of the durations of an activity
+	 */
+	public LatencyHistogram getTimer(Timer timer) {
+		return timers[timer.ordinal()];
+	}
+
+	/**
+	 * Counts an animation step
+	 */
+	public void countStep() {
+		steps.incrementAndGet();
+	}
+
+	/**
+	 * Counts a transaction that wrote animation attributes
+	 *
+	 * @param elements the number of attribute values written
+	 */
+	public void countCommand(int elements) {
+		commandsIssued.incrementAndGet();
+		elementsTouched.addAndGet(elements);
+	}
+
+	/* (non-Javadoc)
+	 * @see ac.soton.eventb.statemachines.animation.metrics.AnimationMetricsMXBean#getMachine()
+	 */
+	@Override
+	public String getMachine() {
+		return machine;
+	}
+
+	/* (non-Javadoc)
+	 * @see ac.soton.eventb.statemachines.animation.metrics.AnimationMetricsMXBean#getStepCount()
+	 */
+	@Override
+	public long getStepCount() {
+		return steps.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see ac.soton.eventb.statemachines.animation.metrics.AnimationMetricsMXBean#getElementsTouched()
+	 */
+	@Override
+	public long getElementsTouched() {
+		return elementsTouched.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see ac.soton.eventb.statemachines.animation.metrics.AnimationMetricsMXBean#getCommandsIssued()
+	 */
+	@Override
+	public long getCommandsIssued() {
+		return commandsIssued.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see ac.soton.eventb.statemachines.animation.metrics.AnimationMetricsMXBean#getTimedCounts()
+	 */
+	@Override
+	public Map<String, Long> getTimedCounts() {
+		Map<String, Long> map = new LinkedHashMap<String, Long>();
+		for (Timer timer : Timer.values()) {
+			map.put(timer.name(), getTimer(timer).getCount());
+		}
+		return map;
+	}
+
+	/* (non-Javadoc)
+	 * @see ac.soton.eventb.statemachines.animation.metrics.AnimationMetricsMXBean#getMeanMicros()
+	 */
+	@Override
+	public Map<String, Double> getMeanMicros() {
+		Map<String, Double> map = new LinkedHashMap<String, Double>();
+		for (Timer timer : Timer.values()) {
+			map.put(timer.name(), getTimer(timer).getMean() / 1000.0);
+		}
+		return map;
+	}
+
+	/* (non-Javadoc)
+	 * @see ac.soton.eventb.statemachines.animation.metrics.AnimationMetricsMXBean#getP50Micros()
+	 */
+	@Override
+	public Map<String, Double> getP50Micros() {
+		return getPercentileMicros(50.0);
+	}
+
+	/* (non-Javadoc)
+	 * @see ac.soton.eventb.statemachines.animation.metrics.AnimationMetricsMXBean#getP99Micros()
+	 */
+	@Override
+	public Map<String, Double> getP99Micros() {
+		return getPercentileMicros(99.0);
+	}
+
+	/* (non-Javadoc)
+	 * @see ac.soton.eventb.statemachines.animation.metrics.AnimationMetricsMXBean#getMaxMicros()
+	 */
+	@Override
+	public Map<String, Double> getMaxMicros() {
+		Map<String, Double> map = new LinkedHashMap<String, Double>();
+		for (Timer timer : Timer.values()) {
+			map.put(timer.name(), getTimer(timer).getMax() / 1000.0);
+		}
+		return map;
+	}
+
+	/* (non-Javadoc)
+	 * @see ac.soton.eventb.statemachines.animation.metrics.AnimationMetricsMXBean#reset()
+	 */
+	@Override
+	public void reset() {
+		for (LatencyHistogram timer : timers) {
+			timer.reset();
+		}
+		steps.set(0);
+		elementsTouched.set(0);
+		commandsIssued.set(0);
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	private Map<String, Double> getPercentileMicros(double percentile) {
+		Map<String, Double> map = new LinkedHashMap<String, Double>();
+		for (Timer timer : Timer.values()) {
+			map.put(timer.name(), getTimer(timer).getPercentile(percentile) / 1000.0);
+		}
+		return map;
+	}
+}
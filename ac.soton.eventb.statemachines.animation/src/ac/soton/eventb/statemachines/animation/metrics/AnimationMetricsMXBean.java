@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.metrics;
+
+import java.util.Map;
+
+/**
+ * The management interface of the animation metrics of one machine.
+ * The timing maps are keyed by the name of the measured activity (see {@link AnimationMetrics.Timer}).
+ *
+ * @author cfsnook
+ *
+ */
+public interface AnimationMetricsMXBean {
+
+	String getMachine();
+
+	long getStepCount();
+
+	long getElementsTouched();
+
+	long getCommandsIssued();
+
+	Map<String, Long> getTimedCounts();
+
+	Map<String, Double> getMeanMicros();
+
+	Map<String, Double> getP50Micros();
+
+	Map<String, Double> getP99Micros();
+
+	Map<String, Double> getMaxMicros();
+
+	void reset();
+}
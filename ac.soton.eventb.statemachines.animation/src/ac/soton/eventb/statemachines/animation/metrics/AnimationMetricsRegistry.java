@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.eventb.core.IMachineRoot;
+
+import ac.soton.eventb.statemachines.animation.StatemachineAnimationPlugin;
+
+/**
+ * The animation metrics of each machine that has been animated.
+ *
+ * The metrics of a machine are kept (and accumulate) over successive animations of the machine until
+ * they are reset. A machine is identified by its project and name (e.g. project/machine), since machines
+ * of different projects may have the same name. Each machine's metrics are registered as an MXBean named
+ * ac.soton.eventb.statemachines.animation:type=AnimationMetrics,machine=&lt;project/machine&gt;
+ * so that they can be monitored with JConsole or similar tools.
+ *
+ * @author cfsnook
+ *
+ */
+public class AnimationMetricsRegistry {
+
+	private static final String JMX_DOMAIN = "ac.soton.eventb.statemachines.animation"; //$NON-NLS-1$
+
+	private static final AnimationMetricsRegistry instance = new AnimationMetricsRegistry();
+
+	private final ConcurrentSkipListMap<String, AnimationMetrics> metrics = new ConcurrentSkipListMap<String, AnimationMetrics>();
+
+	/**
+	 * @return the shared registry
+	 */
+	public static AnimationMetricsRegistry getDefault() {
+		return instance;
+	}
+
+	/**
+	 * @return the metrics of the machine, created if necessary
+	 */
+	public AnimationMetrics getMetrics(IMachineRoot mchRoot) {
+		return getMetrics(getMachine(mchRoot));
+	}
+
+	/**
+	 * @return the name that identifies the machine in the metrics: its project and component name, e.g. project/machine
+	 */
+	public static String getMachine(IMachineRoot mchRoot) {
+		return mchRoot.getRodinProject().getElementName() + "/" + mchRoot.getComponentName(); //$NON-NLS-1$
+	}
+
+	/**
+	 * @param machine the name that identifies the machine (see {@link #getMachine(IMachineRoot)})
+	 * @return the metrics of the machine, created if necessary
+	 */
+	public AnimationMetrics getMetrics(String machine) {
+		AnimationMetrics m = metrics.get(machine);
+		if (m == null) {
+			AnimationMetrics created = new AnimationMetrics(machine);
+			m = metrics.putIfAbsent(machine, created);
+			if (m == null) {
+				m = created;
+				register(m);
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * @return the metrics of all machines, ordered by project and machine name
+	 */
+	public List<AnimationMetrics> getAllMetrics() {
+		return new ArrayList<AnimationMetrics>(metrics.values());
+	}
+
+	/**
+	 * Resets the metrics of all machines
+	 */
+	public void resetAll() {
+		for (AnimationMetrics m : metrics.values()) {
+			m.reset();
+		}
+	}
+
+	/**
+	 * Writes the metrics of all machines as comma separated values, one line per machine and timed activity,
+	 * with the counters of each machine on its first line.
+	 * Times are in microseconds.
+	 *
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void writeCsv(Writer writer) throws IOException {
+		writer.write("machine,activity,count,mean_us,p50_us,p90_us,p99_us,max_us,steps,elements_touched,commands_issued\n"); //$NON-NLS-1$
+		for (AnimationMetrics m : metrics.values()) {
+			boolean first = true;
+			for (AnimationMetrics.Timer timer : AnimationMetrics.Timer.values()) {
+				LatencyHistogram h = m.getTimer(timer);
+				writer.write(String.format(Locale.ROOT, "\"%s\",%s,%d,%.1f,%.1f,%.1f,%.1f,%.1f", //$NON-NLS-1$
+						m.getMachine().replace("\"", "\"\""), timer.name(), h.getCount(), h.getMean() / 1000.0, //$NON-NLS-1$ //$NON-NLS-2$
+						h.getPercentile(50) / 1000.0, h.getPercentile(90) / 1000.0, h.getPercentile(99) / 1000.0, h.getMax() / 1000.0));
+				if (first) {
+					writer.write("," + m.getStepCount() + "," + m.getElementsTouched() + "," + m.getCommandsIssued()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					first = false;
+				} else {
+					writer.write(",,,"); //$NON-NLS-1$
+				}
+				writer.write('\n');
+			}
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Unregisters the MXBeans of all machines
+	 */
+	public void dispose() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (AnimationMetrics m : metrics.values()) {
+			try {
+				ObjectName name = getObjectName(m);
+				if (server.isRegistered(name)) {
+					server.unregisterMBean(name);
+				}
+			} catch (JMException e) {
+				// nothing more can be done
+			}
+		}
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	private void register(AnimationMetrics m) {
+		try {
+			ObjectName name = getObjectName(m);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(name)) {
+				server.registerMBean(m, name);
+			}
+		} catch (JMException e) {
+			// the metrics can still be seen in the view
+			if (StatemachineAnimationPlugin.getDefault() != null) {
+				StatemachineAnimationPlugin.logError("Failed to register animation metrics of " + m.getMachine(), e); //$NON-NLS-1$
+			}
+		}
+	}
+
+	private static ObjectName getObjectName(AnimationMetrics m) throws JMException {
+		return new ObjectName(JMX_DOMAIN + ":type=AnimationMetrics,machine=" + ObjectName.quote(m.getMachine())); //$NON-NLS-1$
+	}
+}
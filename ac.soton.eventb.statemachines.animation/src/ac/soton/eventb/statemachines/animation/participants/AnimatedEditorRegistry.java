@@ -0,0 +1,449 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.participants;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.eclipse.gmf.runtime.notation.Diagram;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.ui.PlatformUI;
+import org.eventb.core.IMachineRoot;
+
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.animation.StatemachineAnimationPlugin;
+import ac.soton.eventb.statemachines.animation.engine.StatemachineAnimationEngine;
+import ac.soton.eventb.statemachines.animation.engine.StatemachineSnapshot;
+import ac.soton.eventb.statemachines.animation.engine.StatemachineTraceRecorder;
+import ac.soton.eventb.statemachines.diagram.part.StatemachinesDiagramEditor;
+
+/**
+ * A thread-safe registry of the statemachine diagram editors that are attached to
+ * the animation of each animated machine.
+ *
+ * Editors are detached when they are closed. An entry refers to its editor's copy of the statemachine
+ * (through the engine) and so, through its resource set and editing domain, to the editor itself:
+ * the editor is only referenced weakly by the entry, but it stays reachable until the entry is removed.
+ * Editors may only be used in the UI thread, so whether an entry is live is a flag: an entry is marked as
+ * no longer live (in the UI thread) when its editor's diagram has been replaced. An entry that is no longer live,
+ * or whose editor has been collected, is purged the next time the editors of its machine are retrieved,
+ * so that closed editors and their resource sets do not remain reachable from the animation.
+ * (The purged entry is disposed in the UI thread)
+ *
+ * @author cfsnook
+ *
+ */
+class AnimatedEditorRegistry {
+
+	private final ConcurrentHashMap<IMachineRoot, CopyOnWriteArrayList<Entry>> entries = new ConcurrentHashMap<IMachineRoot, CopyOnWriteArrayList<Entry>>();
+
+	/**
+	 * An editor attached to the animation of a machine, together with the animation engine of its statemachine,
+	 * the snapshots that were last written to the statemachine and last scheduled to be written, the recorder of its trace (if any),
+	 * the deferral of changes to its off-screen elements (if any) and its heatmap overlay (if any).
+	 *
+	 * Each editor has its own copy of the statemachine. The copies shown by several editors are identified
+	 * by the same key (the URI of the statemachine in its resource) so that their snapshots can be computed once.
+	 */
+	static class Entry {
+
+		private final IMachineRoot mchRoot;
+		private final WeakReference<StatemachinesDiagramEditor> editor;
+		private StatemachineAnimationEngine engine;
+		private String key;
+		private volatile StatemachineSnapshot applied = null;
+		private volatile StatemachineSnapshot scheduled = null;
+		// the engine whose snapshots were last checked for sharing, and the result
+		private StatemachineAnimationEngine sharedEngine = null;
+		private boolean sharing = false;
+		private StatemachineTraceRecorder recorder = null;
+		private ViewportDeferral deferral = null;
+		private HeatmapOverlay overlay = null;
+		private volatile boolean live = true;
+		private volatile boolean disposed = false;
+
+		private Entry(IMachineRoot mchRoot, StatemachinesDiagramEditor editor, Statemachine statemachine) {
+			this.mchRoot = mchRoot;
+			this.editor = new WeakReference<StatemachinesDiagramEditor>(editor);
+			this.engine = new StatemachineAnimationEngine(statemachine);
+			this.key = EcoreUtil.getURI(statemachine).toString();
+		}
+
+		IMachineRoot getMachineRoot() {
+			return mchRoot;
+		}
+
+		/**
+		 * @return the editor, or null if it has been garbage collected
+		 */
+		StatemachinesDiagramEditor getEditor() {
+			return editor.get();
+		}
+
+		/**
+		 * Gets the animation engine of the statemachine, replacing it if the structure of the statemachine
+		 * has been changed since it was created (the applied snapshot is then unknown)
+		 *
+		 * @return
+		 */
+		synchronized StatemachineAnimationEngine getEngine() {
+			if (!engine.isValid() && !disposed) {
+				engine.dispose();
+				engine = new StatemachineAnimationEngine(engine.getStatemachine());
+				key = EcoreUtil.getURI(engine.getStatemachine()).toString();
+				applied = null;
+				scheduled = null;
+				sharedEngine = null;
+			}
+			return engine;
+		}
+
+		/**
+		 * @return the URI of the statemachine (the same for the copies of the statemachine in other editors)
+		 */
+		synchronized String getKey() {
+			return key;
+		}
+
+		/**
+		 * Checks whether the snapshots computed by the engine of another editor's copy of the statemachine
+		 * can be written to this editor's copy with the current engine (without reading either statemachine).
+		 * The result is kept until either engine is replaced.
+		 *
+		 * @param source
+		 * @return true if the engines have the same states and transitions at the same positions
+		 */
+		synchronized boolean canShare(StatemachineAnimationEngine source) {
+			if (source == engine) return true;
+			if (source != sharedEngine) {
+				sharedEngine = source;
+				sharing = engine.matches(source);
+			}
+			return sharing;
+		}
+
+		/**
+		 * @return the current engine without checking whether it is still valid
+		 */
+		synchronized StatemachineAnimationEngine peekEngine() {
+			return engine;
+		}
+
+		/**
+		 * @return the animation values that were last written to the statemachine,
+		 * 			or null if they are not known and a full refresh is needed
+		 */
+		StatemachineSnapshot getAppliedSnapshot() {
+			return applied;
+		}
+
+		/**
+		 * Sets the animation values that were last written to the statemachine.
+		 * Setting null (a full refresh is needed) also forgets the scheduled snapshot.
+		 *
+		 * @param snapshot
+		 */
+		void setAppliedSnapshot(StatemachineSnapshot snapshot) {
+			applied = snapshot;
+			if (snapshot == null) {
+				scheduled = null;
+			}
+		}
+
+		/**
+		 * @return the snapshot that was last passed to the UI thread to be written to the statemachine
+		 * 			(it may not have been written yet), or null if there is none since the last full refresh
+		 */
+		StatemachineSnapshot getScheduledSnapshot() {
+			return scheduled;
+		}
+
+		void setScheduledSnapshot(StatemachineSnapshot snapshot) {
+			scheduled = snapshot;
+		}
+
+		/**
+		 * @return the recorder of the animation trace of the statemachine, or null if it is not being recorded
+		 */
+		synchronized StatemachineTraceRecorder getRecorder() {
+			return recorder;
+		}
+
+		/**
+		 * Sets the recorder of the animation trace of the statemachine, closing the previous recorder (if any)
+		 *
+		 * @param recorder the new recorder or null to stop recording
+		 */
+		synchronized void setRecorder(StatemachineTraceRecorder recorder) {
+			if (disposed && recorder != null) {
+				close(recorder);
+				recorder = null;
+			}
+			if (this.recorder != null && this.recorder != recorder) {
+				close(this.recorder);
+			}
+			this.recorder = recorder;
+		}
+
+		/**
+		 * @return the deferral of the changes to off-screen elements of the diagram, or null if changes are not deferred
+		 */
+		synchronized ViewportDeferral getDeferral() {
+			return deferral;
+		}
+
+		/**
+		 * Sets the deferral of the changes to off-screen elements of the diagram, disposing the previous one (if any)
+		 *
+		 * @param deferral the new deferral or null to write all changes immediately
+		 */
+		synchronized void setDeferral(ViewportDeferral deferral) {
+			if (disposed && deferral != null) {
+				deferral.dispose();
+				deferral = null;
+			}
+			if (this.deferral != null && this.deferral != deferral) {
+				this.deferral.dispose();
+			}
+			this.deferral = deferral;
+		}
+
+		/**
+		 * @return the heatmap overlay of the diagram, or null if it is not shown
+		 */
+		synchronized HeatmapOverlay getOverlay() {
+			return overlay;
+		}
+
+		/**
+		 * Sets the heatmap overlay of the diagram, disposing the previous one (if any)
+		 *
+		 * @param overlay the new overlay or null to remove the overlay
+		 */
+		synchronized void setOverlay(HeatmapOverlay overlay) {
+			if (disposed && overlay != null) {
+				overlay.dispose();
+				overlay = null;
+			}
+			if (this.overlay != null && this.overlay != overlay) {
+				this.overlay.dispose();
+			}
+			this.overlay = overlay;
+		}
+
+		/**
+		 * @return false if the editor has been collected, detached or no longer shows the statemachine
+		 * 			(this does not use the editor, so it can be called from any thread)
+		 */
+		boolean isLive() {
+			return live && !disposed && editor.get() != null;
+		}
+
+		/**
+		 * Disposes of the engine of the statemachine, closes its trace (if any) and removes its heatmap overlay (if any)
+		 */
+		synchronized void dispose() {
+			disposed = true;
+			engine.dispose();
+			sharedEngine = null;
+			setRecorder(null);
+			setDeferral(null);
+			setOverlay(null);
+		}
+
+		/**
+		 * @return true if the entry has been detached or its machine is no longer animated
+		 */
+		boolean isDisposed() {
+			return disposed;
+		}
+
+		private static void close(StatemachineTraceRecorder recorder) {
+			try {
+				// (a step may be being recorded by the step queue)
+				synchronized (recorder) {
+					recorder.close();
+				}
+			} catch (IOException e) {
+				StatemachineAnimationPlugin.logError("Failed to close statemachine animation trace", e); //$NON-NLS-1$
+			}
+		}
+	}
+
+	/**
+	 * Registers a machine as animated (with no editors attached yet)
+	 *
+	 * @param mchRoot
+	 */
+	void addMachine(IMachineRoot mchRoot) {
+		entries.putIfAbsent(mchRoot, new CopyOnWriteArrayList<Entry>());
+	}
+
+	/**
+	 * @return true if the machine is animated
+	 */
+	boolean hasMachine(IMachineRoot mchRoot) {
+		return entries.containsKey(mchRoot);
+	}
+
+	/**
+	 * @return the animated machines
+	 */
+	Set<IMachineRoot> getMachines() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+
+	/**
+	 * Removes an animated machine
+	 *
+	 * @param mchRoot
+	 * @return the entries of the editors that were attached to it (their engines are not yet disposed)
+	 */
+	List<Entry> removeMachine(IMachineRoot mchRoot) {
+		List<Entry> removed = entries.remove(mchRoot);
+		return removed == null ? Collections.<Entry>emptyList() : removed;
+	}
+
+	/**
+	 * Attaches an editor to the animation of a machine, creating the engine of its statemachine
+	 *
+	 * @param mchRoot
+	 * @param editor
+	 * @return the new entry, or null if the machine is not animated or the editor is already attached
+	 */
+	Entry attach(IMachineRoot mchRoot, StatemachinesDiagramEditor editor) {
+		CopyOnWriteArrayList<Entry> list = entries.get(mchRoot);
+		if (list == null) return null;
+		synchronized (list) {
+			for (Entry entry : list) {
+				if (entry.getEditor() == editor && entry.isLive()) return null;
+			}
+			Entry entry = new Entry(mchRoot, editor, (Statemachine) editor.getDiagram().getElement());
+			list.add(entry);
+			return entry;
+		}
+	}
+
+	/**
+	 * Detaches an editor from the animation of whichever machine it is attached to
+	 * and disposes of the engine of its statemachine
+	 *
+	 * @param editor
+	 * @return the entry of the editor, or null if it was not attached
+	 */
+	Entry detach(StatemachinesDiagramEditor editor) {
+		for (CopyOnWriteArrayList<Entry> list : entries.values()) {
+			for (Entry entry : list) {
+				if (entry.getEditor() == editor) {
+					list.remove(entry);
+					entry.dispose();
+					return entry;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Checks whether an editor still shows the statemachine of its entry (e.g. after the input of the editor
+	 * has changed) and, if it does not, marks the entry as no longer live so that it is purged.
+	 * Must be called in the UI thread.
+	 *
+	 * @param editor
+	 * @return true if the entry of the editor was marked as no longer live
+	 */
+	boolean checkInput(StatemachinesDiagramEditor editor) {
+		Diagram diagram = editor.getDiagram();
+		Object statemachine = diagram == null ? null : diagram.getElement();
+		for (CopyOnWriteArrayList<Entry> list : entries.values()) {
+			for (Entry entry : list) {
+				if (entry.getEditor() == editor && entry.isLive() && entry.peekEngine().getStatemachine() != statemachine) {
+					entry.live = false;
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the editors that are attached to the animation of a machine.
+	 * Entries of editors that have been closed or collected are purged.
+	 *
+	 * @param mchRoot
+	 * @return
+	 */
+	List<Entry> getEntries(IMachineRoot mchRoot) {
+		CopyOnWriteArrayList<Entry> list = entries.get(mchRoot);
+		if (list == null) return Collections.emptyList();
+		List<Entry> live = new ArrayList<Entry>(list.size());
+		for (Entry entry : list) {
+			if (entry.isLive()) {
+				live.add(entry);
+			} else {
+				list.remove(entry);
+				disposeInUIThread(entry);
+			}
+		}
+		return live;
+	}
+
+	/**
+	 * @return the entries of all editors attached to any animated machine
+	 */
+	List<Entry> getAllEntries() {
+		List<Entry> all = new ArrayList<Entry>();
+		for (IMachineRoot mchRoot : entries.keySet()) {
+			all.addAll(getEntries(mchRoot));
+		}
+		return all;
+	}
+
+	/**
+	 * @return the number of editors currently attached to all animated machines
+	 * 			(entries that are no longer live are not counted, but are not purged either)
+	 */
+	int getAttachedEditorCount() {
+		int count = 0;
+		for (CopyOnWriteArrayList<Entry> list : entries.values()) {
+			for (Entry entry : list) {
+				if (entry.isLive()) count++;
+			}
+		}
+		return count;
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	/**
+	 * Disposes of a purged entry. Disposing removes the engine's adapter from the statemachine and the
+	 * overlay and deferral from the diagram, so it is done in the UI thread (entries are purged by jobs).
+	 * The entry is marked as disposed at once so that it is no longer used.
+	 */
+	private static void disposeInUIThread(final Entry entry) {
+		entry.disposed = true;
+		Display display = PlatformUI.isWorkbenchRunning() ? PlatformUI.getWorkbench().getDisplay() : null;
+		if (display == null || display.isDisposed() || display.getThread() == Thread.currentThread()) {
+			entry.dispose();
+		} else {
+			display.asyncExec(new Runnable() {
+				@Override
+				public void run() {
+					entry.dispose();
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.participants;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.commands.ExecutionException;
+import org.eclipse.core.runtime.IAdaptable;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.transaction.Transaction;
+import org.eclipse.emf.transaction.TransactionalEditingDomain;
+import org.eclipse.emf.transaction.util.TransactionUtil;
+import org.eclipse.emf.workspace.AbstractEMFOperation;
+
+import ac.soton.eventb.statemachines.State;
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.StatemachinesPackage;
+import ac.soton.eventb.statemachines.Transition;
+import ac.soton.eventb.statemachines.animation.StatemachineAnimationPlugin;
+
+/**
+ * Writes the animation attributes (active states, active instances and transition operations)
+ * of the statemachines of an editing domain.
+ *
+ * The changes are collected and then applied together in a single transaction that
+ * records no undo history. The transaction is run by an operation that is executed directly
+ * (not through the command stack or an operation history), so that animation steps do not
+ * appear on the command stack and do not make the editors dirty.
+ * Animation attributes are not edits, so the modified state of the resources is left as it was
+ * before the changes were applied.
+ *
+ * @author cfsnook
+ *
+ */
+class AnimationArtifactWriter {
+
+	private static final Map<String, Object> TRANSACTION_OPTIONS;
+	static {
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(Transaction.OPTION_NO_UNDO, Boolean.TRUE);
+		options.put(Transaction.OPTION_NO_TRIGGERS, Boolean.TRUE);
+		options.put(Transaction.OPTION_NO_VALIDATION, Boolean.TRUE);
+		TRANSACTION_OPTIONS = Collections.unmodifiableMap(options);
+	}
+
+	private static final Object UNSET = new Object();
+
+	private final TransactionalEditingDomain editingDomain;
+	private final List<EObject> objects = new ArrayList<EObject>();
+	private final List<EStructuralFeature> features = new ArrayList<EStructuralFeature>();
+	private final List<Object> values = new ArrayList<Object>();
+
+	/**
+	 * @param statemachine the statemachine whose animation attributes will be written
+	 */
+	AnimationArtifactWriter(Statemachine statemachine) {
+		this(TransactionUtil.getEditingDomain(statemachine));
+	}
+
+	/**
+	 * @param editingDomain the editing domain of the statemachines whose animation attributes will be written
+	 * 			(or null if they are not in a transactional editing domain)
+	 */
+	AnimationArtifactWriter(TransactionalEditingDomain editingDomain) {
+		this.editingDomain = editingDomain;
+	}
+
+	void setActive(State state, boolean active) {
+		add(state, StatemachinesPackage.Literals.STATE__ACTIVE, active);
+	}
+
+	void setActiveInstances(State state, List<String> instances) {
+		add(state, StatemachinesPackage.Literals.STATE__ACTIVE_INSTANCES, instances);
+	}
+
+	void setOperations(Transition transition, List<?> operations) {
+		add(transition, StatemachinesPackage.Literals.TRANSITION__OPERATIONS, operations);
+	}
+
+	void unsetState(State state) {
+		add(state, StatemachinesPackage.Literals.STATE__ACTIVE, UNSET);
+		add(state, StatemachinesPackage.Literals.STATE__ACTIVE_INSTANCES, UNSET);
+	}
+
+	void unsetOperations(Transition transition) {
+		add(transition, StatemachinesPackage.Literals.TRANSITION__OPERATIONS, UNSET);
+	}
+
+	/**
+	 * @return the number of attribute values collected
+	 */
+	int size() {
+		return objects.size();
+	}
+
+	/**
+	 * @return true if no changes have been collected
+	 */
+	boolean isEmpty() {
+		return objects.isEmpty();
+	}
+
+	/**
+	 * Applies the collected changes in a single transaction that records no undo history.
+	 * The collected changes are discarded afterwards so that the writer can be re-used.
+	 */
+	void apply() {
+		if (isEmpty()) return;
+		Set<Resource> unmodified = new HashSet<Resource>();
+		for (EObject object : objects) {
+			Resource resource = object.eResource();
+			if (resource != null && !resource.isModified()) {
+				unmodified.add(resource);
+			}
+		}
+		try {
+			if (editingDomain != null) {
+				AbstractEMFOperation operation = new AbstractEMFOperation(editingDomain, "Update animation", TRANSACTION_OPTIONS) { //$NON-NLS-1$
+					@Override
+					protected IStatus doExecute(IProgressMonitor monitor, IAdaptable info) {
+						doApply();
+						return Status.OK_STATUS;
+					}
+				};
+				IStatus status = operation.execute(new NullProgressMonitor(), null);
+				if (status != null && !status.isOK()) {
+					StatemachineAnimationPlugin.logError("Animation update was rolled back: " + status.getMessage()); //$NON-NLS-1$
+				}
+			} else {
+				doApply();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+				StatemachineAnimationPlugin.logError("Interrupted while updating animation", e); //$NON-NLS-1$
+			} else {
+				StatemachineAnimationPlugin.logError("Animation update failed", e); //$NON-NLS-1$
+			}
+		} finally {
+			objects.clear();
+			features.clear();
+			values.clear();
+		}
+		// The transaction options keep the changes out of the undo history and the triggers, but not out of
+		// the modification tracking of the resources: the statemachine diagram editors track the modification
+		// of their resources to show that they are dirty, and a tracked resource is set modified by any change
+		// to its contents, however it is made. So the modified state has to be put back here.
+		for (Resource resource : unmodified) {
+			if (resource.isModified()) {
+				resource.setModified(false);	//this was not an edit
+			}
+		}
+	}
+
+	private void add(EObject object, EStructuralFeature feature, Object value) {
+		objects.add(object);
+		features.add(feature);
+		values.add(value);
+	}
+
+	private void doApply() {
+		for (int i = 0; i < objects.size(); i++) {
+			if (values.get(i) == UNSET) {
+				objects.get(i).eUnset(features.get(i));
+			} else {
+				objects.get(i).eSet(features.get(i), values.get(i));
+			}
+		}
+	}
+}
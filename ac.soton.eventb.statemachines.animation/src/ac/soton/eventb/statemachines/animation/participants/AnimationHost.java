@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.participants;
+
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.commands.IExecutionListener;
+import org.eclipse.ui.IPartListener2;
+import org.eventb.core.IMachineRoot;
+
+import ac.soton.eventb.probsupport.data.Operation_;
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.diagram.part.StatemachinesDiagramEditor;
+
+/**
+ * The animator and the workbench, as they are used by the statemachine animation participant.
+ *
+ * The participant that is registered with the prob support plugin uses the ProB animation manager
+ * and the running workbench (see {@link WorkbenchAnimationHost}). A participant can be created with
+ * another host so that it can be run without them (e.g. by a test with a stand-in animator and editors).
+ *
+ * @author cfsnook
+ *
+ */
+interface AnimationHost {
+
+	/**
+	 * @param mchRoot an animated machine
+	 * @return the values of the variables in the current state of the animation of the machine
+	 */
+	Map<String, String> getVariables(IMachineRoot mchRoot);
+
+	/**
+	 * @param mchRoot an animated machine
+	 * @return the enabled operations in the current state of the animation of the machine
+	 */
+	List<Operation_> getEnabledOperations(IMachineRoot mchRoot);
+
+	/**
+	 * @param statemachine
+	 * @return the mchRoot of the machine that the statemachine translates to, or null if there is none
+	 */
+	IMachineRoot getTranslationTarget(Statemachine statemachine);
+
+	/**
+	 * @return the statemachine diagram editors that are open and have been restored
+	 */
+	List<StatemachinesDiagramEditor> getOpenEditors();
+
+	/**
+	 * Starts telling the listeners about the editors that are opened, closed or changed, and about the commands
+	 * that are executed. This is called whenever an animation is started, so a listener that has already been
+	 * added must not be added again.
+	 *
+	 * @param partListener
+	 * @param commandListener
+	 */
+	void addListeners(IPartListener2 partListener, IExecutionListener commandListener);
+
+	/**
+	 * Stops telling the listeners about editors and commands (when no machine is animated)
+	 *
+	 * @param partListener
+	 * @param commandListener
+	 */
+	void removeListeners(IPartListener2 partListener, IExecutionListener commandListener);
+
+	/**
+	 * Runs a runnable in the UI thread later, without waiting for it
+	 *
+	 * @param runnable
+	 * @return false if there is no longer a UI thread to run it
+	 */
+	boolean asyncExec(Runnable runnable);
+
+	/**
+	 * Runs a runnable in the UI thread and waits for it to finish
+	 *
+	 * @param runnable
+	 * @return false if there is no longer a UI thread to run it
+	 */
+	boolean syncExec(Runnable runnable);
+
+	/**
+	 * Runs a runnable in the UI thread after a delay, replacing any earlier request for the same runnable.
+	 * Must be called in the UI thread.
+	 *
+	 * @param delay in milliseconds, or -1 to cancel the earlier request
+	 * @param runnable
+	 */
+	void timerExec(int delay, Runnable runnable);
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.participants;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eventb.core.IMachineRoot;
+
+import ac.soton.eventb.probsupport.data.Operation_;
+import ac.soton.eventb.statemachines.animation.engine.StatemachineSnapshot;
+
+/**
+ * Queues the steps of the animation of each machine so that every step is recorded, and counted in the heatmaps, in order.
+ *
+ * The diagram updates (see {@link AnimationUpdateScheduler}) only show the latest state, so steps are
+ * merged when they come in quick succession and skipped when the updates are decimated. The steps
+ * that are queued here are processed one at a time, in the order they were taken, by a job of their
+ * own for each machine, whatever happens to the diagram updates.
+ *
+ * @author cfsnook
+ *
+ */
+class AnimationStepQueue {
+
+	private final StatemachineAnimationParticipant participant;
+	private final ConcurrentHashMap<IMachineRoot, StepJob> jobs = new ConcurrentHashMap<IMachineRoot, StepJob>();
+
+	AnimationStepQueue(StatemachineAnimationParticipant participant) {
+		this.participant = participant;
+	}
+
+	/**
+	 * Adds a step to the end of the queue of the given machine
+	 *
+	 * @param mchRoot
+	 * @param step
+	 */
+	void add(IMachineRoot mchRoot, Step step) {
+		StepJob job = jobs.get(mchRoot);
+		if (job == null) {
+			job = new StepJob(mchRoot);
+			StepJob existing = jobs.putIfAbsent(mchRoot, job);
+			if (existing != null) {
+				job = existing;
+			}
+		}
+		job.add(step);
+	}
+
+	/**
+	 * Processes the steps that are queued for the given machine and then removes its queue.
+	 * This waits until the steps have been processed.
+	 *
+	 * @param mchRoot
+	 */
+	void finish(IMachineRoot mchRoot) {
+		StepJob job = jobs.remove(mchRoot);
+		if (job == null) {
+			return;
+		}
+		try {
+			job.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			job.cancel();
+		}
+	}
+
+	/**
+	 * Waits until the steps that are queued for the given machine have been processed
+	 *
+	 * @param mchRoot
+	 * @throws InterruptedException if the wait is interrupted
+	 */
+	void join(IMachineRoot mchRoot) throws InterruptedException {
+		StepJob job = jobs.get(mchRoot);
+		if (job != null) {
+			job.join();
+		}
+	}
+
+	/**
+	 * A step of the animation of a machine
+	 */
+	static class Step {
+
+		// the values of the variables and the enabled operations after the step
+		//  (null if they are to be read from the animator when the step is processed)
+		final Map<String, String> variables;
+		final List<Operation_> operations;
+		// false if this is not a step of the animation (e.g. the current state for an editor that has just been attached)
+		final boolean counted;
+		// true if the animation has been restarted by this step
+		final boolean restart;
+
+		/**
+		 * @param variables the values of the variables after the step, or null to read them when the step is processed
+		 * @param operations the enabled operations after the step, or null to read them when the step is processed
+		 * @param counted false if this is not a step of the animation, so that it is only recorded in traces that are empty
+		 * 			and is not counted in heatmaps
+		 * @param restart true if the animation has been restarted, so that the heatmaps are reset before the step is counted
+		 */
+		Step(Map<String, String> variables, List<Operation_> operations, boolean counted, boolean restart) {
+			this.variables = variables;
+			this.operations = operations;
+			this.counted = counted;
+			this.restart = restart;
+		}
+	}
+
+	/**
+	 * A job that processes the queued steps of one machine in order
+	 */
+	private class StepJob extends Job {
+
+		private final IMachineRoot mchRoot;
+		private final Queue<Step> steps = new ArrayDeque<Step>();
+		// the snapshot of the latest step of each statemachine (by the key of its editors)
+		private final Map<String, StatemachineSnapshot> previous = new HashMap<String, StatemachineSnapshot>();
+
+		StepJob(IMachineRoot mchRoot) {
+			super("Record statemachine animation"); //$NON-NLS-1$
+			this.mchRoot = mchRoot;
+			setSystem(true);
+			setPriority(Job.SHORT);
+		}
+
+		void add(Step step) {
+			synchronized (steps) {
+				steps.add(step);
+			}
+			schedule();		// (runs again if it is running)
+		}
+
+		/* (non-Javadoc)
+		 * @see org.eclipse.core.runtime.jobs.Job#run(org.eclipse.core.runtime.IProgressMonitor)
+		 */
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			while (!monitor.isCanceled()) {
+				Step step;
+				synchronized (steps) {
+					step = steps.poll();
+				}
+				if (step == null) {
+					return Status.OK_STATUS;
+				}
+				participant.processStep(mchRoot, step, previous);
+			}
+			return Status.CANCEL_STATUS;
+		}
+	}
+}
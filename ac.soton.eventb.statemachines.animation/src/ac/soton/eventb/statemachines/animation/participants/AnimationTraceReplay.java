@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.participants;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.transaction.TransactionalEditingDomain;
+import org.eclipse.emf.transaction.util.TransactionUtil;
+
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.animation.engine.StatemachineAnimationEngine;
+import ac.soton.eventb.statemachines.animation.engine.StatemachineSnapshot;
+import ac.soton.eventb.statemachines.animation.engine.StatemachineTraceReader;
+import ac.soton.eventb.statemachines.diagram.part.StatemachinesDiagramEditor;
+
+/**
+ * Replays a recorded animation trace in a statemachine diagram editor without the animator.
+ *
+ * Any step of the trace can be shown. The values at the step are rebuilt from the nearest keyframe
+ * of the trace and written to the statemachine in the same way as a live animation step, so
+ * only the attributes that differ from the step shown before are changed.
+ * The keyframes are built by reading the whole trace, which can take a while for a long trace, so they
+ * are built separately (by {@link #indexKeyframes(IProgressMonitor)}, e.g. in a job) before any step is shown.
+ * The editor is in animating mode while the replay is open. All the other methods must be called in the UI thread.
+ *
+ * @author cfsnook
+ *
+ */
+public class AnimationTraceReplay {
+
+	private final StatemachinesDiagramEditor editor;
+	private final Statemachine statemachine;
+	private final StatemachineTraceReader trace;
+	private final AnimationArtifactWriter writer;
+	private StatemachineAnimationEngine engine;
+	private StatemachineSnapshot applied = null;
+	private long step = -1;
+	private boolean disposed = false;
+	private volatile boolean indexed = false;
+
+	/**
+	 * Opens a trace for replay in the editor. (Its keyframes must be built before any step is shown)
+	 *
+	 * @param editor a statemachine diagram editor
+	 * @param traceFile a trace recorded from the statemachine of the editor
+	 * @throws IOException if the trace cannot be read or was not recorded from this statemachine
+	 */
+	public AnimationTraceReplay(StatemachinesDiagramEditor editor, File traceFile) throws IOException {
+		EObject element = editor.getDiagram().getElement();
+		if (!(element instanceof Statemachine)) {
+			throw new IllegalArgumentException("The editor does not show a statemachine"); //$NON-NLS-1$
+		}
+		this.editor = editor;
+		this.statemachine = (Statemachine) element;
+		this.trace = new StatemachineTraceReader(traceFile);
+		this.engine = new StatemachineAnimationEngine(statemachine);
+		if (!engine.matches(trace)) {
+			engine.dispose();
+			throw new IOException("The trace " + traceFile.getName() + " was not recorded from statemachine " + statemachine.getName()); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		this.writer = new AnimationArtifactWriter(statemachine);
+		//let the editor know that we are animating so that it doesn't try to save animation artifacts
+		editor.startAnimating();
+	}
+
+	public StatemachinesDiagramEditor getEditor() {
+		return editor;
+	}
+
+	/**
+	 * @return the number of steps in the trace
+	 */
+	public long getStepCount() {
+		return trace.getStepCount();
+	}
+
+	/**
+	 * Builds the keyframes of the trace, so that any step can be shown quickly.
+	 * This reads the whole trace, so it should be called in a job. It may be called in any thread,
+	 * but no step can be shown until it has finished.
+	 *
+	 * @param monitor a monitor to report the progress and cancel the indexing, or null
+	 * @return false if the indexing was canceled
+	 * @throws IOException if the trace is corrupt
+	 */
+	public boolean indexKeyframes(IProgressMonitor monitor) throws IOException {
+		indexed = trace.indexKeyframes(monitor);
+		return indexed;
+	}
+
+	/**
+	 * @return true if the keyframes of the trace have been built, so that steps can be shown
+	 */
+	public boolean isIndexed() {
+		return indexed;
+	}
+
+	/**
+	 * @return the step that is shown, or -1 if none has been shown
+	 */
+	public long getStep() {
+		return step;
+	}
+
+	/**
+	 * Shows the given step of the trace in the diagram
+	 *
+	 * @param target the number of the step (from 0 to the step count - 1)
+	 * @throws IOException if the trace is corrupt or the statemachine has been changed so that it no longer matches the trace
+	 * @throws IllegalStateException if the keyframes of the trace have not been built
+	 */
+	public void showStep(long target) throws IOException {
+		if (disposed || target == step) return;
+		if (!indexed) {
+			throw new IllegalStateException("The keyframes of the trace have not been built"); //$NON-NLS-1$
+		}
+		if (!engine.isValid()) {
+			// the statemachine has been edited - the positions must be checked again
+			engine.dispose();
+			engine = new StatemachineAnimationEngine(statemachine);
+			applied = null;
+			if (!engine.matches(trace)) {
+				throw new IOException("The statemachine " + statemachine.getName() + " no longer matches the trace"); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+		trace.seek(target);
+		final StatemachineSnapshot[] snapshot = new StatemachineSnapshot[1];
+		Runnable read = new Runnable() {
+			@Override
+			public void run() {
+				snapshot[0] = engine.map(trace);
+			}
+		};
+		TransactionalEditingDomain editingDomain = TransactionUtil.getEditingDomain(statemachine);
+		try {
+			if (editingDomain == null) {
+				read.run();
+			} else {
+				editingDomain.runExclusive(read);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		StatemachineAnimationParticipant.writeSnapshot(engine, applied, snapshot[0], writer);
+		writer.apply();		//does nothing if nothing has changed
+		applied = snapshot[0];
+		step = target;
+	}
+
+	/**
+	 * Ends the replay, clearing the animation attributes of the statemachine
+	 */
+	public void dispose() {
+		if (disposed) return;
+		disposed = true;
+		if (editor.getDiagram() != null && editor.getDiagram().getElement() == statemachine) {
+			StatemachineAnimationParticipant.clearAnimationArtifacts(engine);
+			editor.stopAnimating();
+		}
+		engine.dispose();
+	}
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.participants;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.ProgressMonitorWrapper;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eventb.core.IMachineRoot;
+
+/**
+ * Schedules the diagram updates of the statemachine animation.
+ *
+ * Requests to update the diagrams of a machine are coalesced so that a burst of
+ * animation steps results in a single update showing the latest state.
+ * The updates of each machine are applied at most once per frame interval.
+ * A request made while an update is being applied causes a further update so that
+ * the final state is always shown.
+ *
+ * Requests do not block the caller. Each update is made in two stages: the new animation values
+ * of the diagrams are computed in a background job and the result is then applied in the UI thread.
+ * A computation that is still in progress when a newer update is requested is abandoned, unless
+ * no update has been passed to the UI thread for a frame interval. (Otherwise a fast sequence of
+ * steps would abandon every computation and the diagrams would not be updated until it ended)
+ *
+ * @author cfsnook
+ *
+ */
+class AnimationUpdateScheduler {
+
+	/**
+	 * System property that can be used to set the default frame interval in milliseconds
+	 */
+	static final String FRAME_INTERVAL_PROPERTY = "ac.soton.eventb.statemachines.animation.frameInterval"; //$NON-NLS-1$
+
+	private static final long DEFAULT_FRAME_INTERVAL = 40;
+
+	private final StatemachineAnimationParticipant participant;
+	private final ConcurrentHashMap<IMachineRoot, UpdateJob> jobs = new ConcurrentHashMap<IMachineRoot, UpdateJob>();
+	private volatile long frameInterval = Long.getLong(FRAME_INTERVAL_PROPERTY, DEFAULT_FRAME_INTERVAL);
+
+	AnimationUpdateScheduler(StatemachineAnimationParticipant participant) {
+		this.participant = participant;
+	}
+
+	/**
+	 * Requests an update of the diagrams of the given machine.
+	 * If an update is already pending, this request is merged with it.
+	 *
+	 * @param mchRoot
+	 */
+	void schedule(IMachineRoot mchRoot) {
+		UpdateJob job = jobs.get(mchRoot);
+		if (job == null) {
+			job = new UpdateJob(mchRoot);
+			UpdateJob existing = jobs.putIfAbsent(mchRoot, job);
+			if (existing != null) {
+				job = existing;
+			}
+		}
+		job.request();
+	}
+
+	/**
+	 * Cancels any pending update of the diagrams of the given machine
+	 *
+	 * @param mchRoot
+	 */
+	void cancel(IMachineRoot mchRoot) {
+		UpdateJob job = jobs.remove(mchRoot);
+		if (job != null) {
+			job.cancel();	// (also abandons any computation in progress)
+		}
+	}
+
+	/**
+	 * Waits until the update of the diagrams of the given machine that is pending or in progress
+	 * has been passed to the UI thread (or abandoned)
+	 *
+	 * @param mchRoot
+	 * @throws InterruptedException if the wait is interrupted
+	 */
+	void join(IMachineRoot mchRoot) throws InterruptedException {
+		UpdateJob job = jobs.get(mchRoot);
+		if (job != null) {
+			job.join();
+		}
+	}
+
+	/**
+	 * @return the minimum time in milliseconds between two updates of the same machine
+	 */
+	long getFrameInterval() {
+		return frameInterval;
+	}
+
+	/**
+	 * @param frameInterval the minimum time in milliseconds between two updates of the same machine
+	 */
+	void setFrameInterval(long frameInterval) {
+		this.frameInterval = Math.max(0, frameInterval);
+	}
+
+	/**
+	 * A job that computes the updates of the diagrams of one machine
+	 * and passes them to the UI thread to be applied
+	 */
+	private class UpdateJob extends Job {
+
+		private final IMachineRoot mchRoot;
+		private final AtomicBoolean pending = new AtomicBoolean(false);
+		private final AtomicLong generation = new AtomicLong();
+		private volatile long lastRun = 0;
+		// when an update was last passed to the UI thread
+		private volatile long lastDelivered = 0;
+
+		UpdateJob(IMachineRoot mchRoot) {
+			super("Update statemachine animation"); //$NON-NLS-1$
+			this.mchRoot = mchRoot;
+			setSystem(true);
+			setPriority(Job.SHORT);
+		}
+
+		void request() {
+			generation.incrementAndGet();		// any computation in progress is now out of date
+			if (pending.compareAndSet(false, true)) {
+				long delay = lastRun + frameInterval - System.currentTimeMillis();
+				schedule(Math.max(0, delay));
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see org.eclipse.core.runtime.jobs.Job#run(org.eclipse.core.runtime.IProgressMonitor)
+		 */
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			if (monitor.isCanceled()) {
+				return Status.CANCEL_STATUS;
+			}
+			lastRun = System.currentTimeMillis();
+			// requests arriving from now on need a further update
+			pending.set(false);
+			StepMonitor stepMonitor = new StepMonitor(monitor, generation, lastDelivered + frameInterval);
+			Runnable apply = participant.computeUpdate(mchRoot, stepMonitor);
+			if (apply == null || stepMonitor.isCanceled()) {
+				return Status.CANCEL_STATUS;	// a newer update has been requested
+			}
+			if (participant.getHost().asyncExec(apply)) {
+				lastDelivered = System.currentTimeMillis();
+			}
+			return Status.OK_STATUS;
+		}
+	}
+
+	/**
+	 * A progress monitor for the computation of one update.
+	 * It reports that it is canceled as soon as a newer update has been requested, until the deadline
+	 * for the next frame has passed. After that the computation is completed (and a further update follows).
+	 * Once it has reported that it is canceled, it stays canceled.
+	 */
+	private static class StepMonitor extends ProgressMonitorWrapper {
+
+		private final AtomicLong generation;
+		private final long step;
+		private final long deadline;
+		private volatile boolean abandoned = false;
+
+		StepMonitor(IProgressMonitor monitor, AtomicLong generation, long deadline) {
+			super(monitor);
+			this.generation = generation;
+			this.step = generation.get();
+			this.deadline = deadline;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.eclipse.core.runtime.ProgressMonitorWrapper#isCanceled()
+		 */
+		@Override
+		public boolean isCanceled() {
+			if (!abandoned && (super.isCanceled() || generation.get() != step && System.currentTimeMillis() < deadline)) {
+				abandoned = true;
+			}
+			return abandoned;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.participants;
+
+import org.eclipse.draw2d.FigureListener;
+import org.eclipse.draw2d.IFigure;
+import org.eclipse.draw2d.geometry.Rectangle;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.gef.EditPart;
+import org.eclipse.gef.EditPartListener;
+import org.eclipse.gef.EditPartViewer;
+import org.eclipse.gmf.runtime.diagram.ui.editparts.IGraphicalEditPart;
+
+import ac.soton.eventb.statemachines.State;
+import ac.soton.eventb.statemachines.Transition;
+import ac.soton.eventb.statemachines.animation.engine.StatemachineAnimationEngine;
+import ac.soton.eventb.statemachines.diagram.part.StatemachinesDiagramEditor;
+
+/**
+ * The edit parts of the states and transitions of a statemachine diagram, by their positions in an engine.
+ * The outermost edit part of each element is used (not those of its compartments and labels).
+ * The edit parts and their figures are found once. Listeners on them record when any of the edit parts
+ * is deactivated (e.g. the diagram has been rebuilt) and when any of the figures is moved, so that
+ * the users of this can tell when to find them again or check their bounds again without visiting them.
+ * Must only be used in the UI thread, and must be disposed.
+ *
+ * @author cfsnook
+ *
+ */
+final class DiagramEditParts {
+
+	private final IGraphicalEditPart[] states;
+	private final IGraphicalEditPart[] transitions;
+	private final IFigure[] stateFigures;
+	private final IFigure[] transitionFigures;
+	private boolean current = true;
+	private boolean moved = false;
+
+	private final EditPartListener partListener = new EditPartListener.Stub() {
+		@Override
+		public void partDeactivated(EditPart editpart) {
+			current = false;
+		}
+	};
+
+	private final FigureListener figureListener = new FigureListener() {
+		@Override
+		public void figureMoved(IFigure source) {
+			moved = true;
+		}
+	};
+
+	/**
+	 * Finds the edit parts of the states and transitions of the engine in the diagram of the editor
+	 *
+	 * @param editor
+	 * @param engine
+	 */
+	DiagramEditParts(StatemachinesDiagramEditor editor, StatemachineAnimationEngine engine) {
+		states = new IGraphicalEditPart[engine.getStates().size()];
+		transitions = new IGraphicalEditPart[engine.getTransitions().size()];
+		stateFigures = new IFigure[states.length];
+		transitionFigures = new IFigure[transitions.length];
+		EditPartViewer viewer = editor.getDiagramGraphicalViewer();
+		if (viewer == null) return;
+		for (Object value : viewer.getEditPartRegistry().values()) {
+			if (!(value instanceof IGraphicalEditPart)) continue;
+			IGraphicalEditPart part = (IGraphicalEditPart) value;
+			EObject element = getElement(part);
+			if (element == null || element == getElement(part.getParent())) continue;
+			if (element instanceof State) {
+				int i = engine.getStateId((State) element);
+				if (i >= 0) states[i] = part;
+			} else if (element instanceof Transition) {
+				int i = engine.getTransitionId((Transition) element);
+				if (i >= 0) transitions[i] = part;
+			}
+		}
+		listen(states, stateFigures);
+		listen(transitions, transitionFigures);
+	}
+
+	/**
+	 * @return false if any of the edit parts has been deactivated (e.g. the diagram has been rebuilt)
+	 */
+	boolean isCurrent() {
+		return current;
+	}
+
+	/**
+	 * @return true if any of the figures has been moved or resized since this was last called
+	 */
+	boolean clearMoved() {
+		boolean wasMoved = moved;
+		moved = false;
+		return wasMoved;
+	}
+
+	/**
+	 * Stops listening to the edit parts and figures
+	 */
+	void dispose() {
+		unlisten(states, stateFigures);
+		unlisten(transitions, transitionFigures);
+		current = false;
+	}
+
+	/**
+	 * @return the figure of the state at position i, or null if it is not shown in the diagram
+	 */
+	IFigure getStateFigure(int i) {
+		return stateFigures[i];
+	}
+
+	/**
+	 * @return the figure of the transition at position i, or null if it is not shown in the diagram
+	 */
+	IFigure getTransitionFigure(int i) {
+		return transitionFigures[i];
+	}
+
+	/**
+	 * @return the bounds of the figure in absolute coordinates, or null if it is not showing
+	 */
+	static Rectangle getAbsoluteBounds(IFigure figure) {
+		if (figure == null || !figure.isShowing()) {
+			return null;
+		}
+		Rectangle bounds = figure.getBounds().getCopy();
+		figure.translateToAbsolute(bounds);
+		return bounds;
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	private void listen(IGraphicalEditPart[] parts, IFigure[] figures) {
+		for (int i = 0; i < parts.length; i++) {
+			if (parts[i] == null) continue;
+			if (!parts[i].isActive()) {
+				current = false;
+			}
+			parts[i].addEditPartListener(partListener);
+			figures[i] = parts[i].getFigure();
+			if (figures[i] != null) {
+				figures[i].addFigureListener(figureListener);
+			}
+		}
+	}
+
+	private void unlisten(IGraphicalEditPart[] parts, IFigure[] figures) {
+		for (int i = 0; i < parts.length; i++) {
+			if (parts[i] != null) {
+				parts[i].removeEditPartListener(partListener);
+			}
+			if (figures[i] != null) {
+				figures[i].removeFigureListener(figureListener);
+			}
+		}
+	}
+
+	private static EObject getElement(EditPart part) {
+		if (!(part instanceof IGraphicalEditPart) || ((IGraphicalEditPart) part).getNotationView() == null) {
+			return null;
+		}
+		return ((IGraphicalEditPart) part).getNotationView().getElement();
+	}
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.participants;
+
+import org.eclipse.draw2d.IFigure;
+import org.eclipse.draw2d.Label;
+import org.eclipse.draw2d.geometry.Dimension;
+import org.eclipse.draw2d.geometry.Rectangle;
+import org.eclipse.gef.EditPartViewer;
+import org.eclipse.gef.LayerConstants;
+import org.eclipse.gef.editparts.LayerManager;
+import org.eclipse.swt.graphics.Color;
+import org.eclipse.swt.widgets.Display;
+
+import ac.soton.eventb.statemachines.animation.engine.StatemachineAnimationEngine;
+import ac.soton.eventb.statemachines.animation.engine.StatemachineHeatmap;
+import ac.soton.eventb.statemachines.diagram.part.StatemachinesDiagramEditor;
+
+/**
+ * Shows the counters of a heatmap over the diagram of an editor: a badge at the corner of each state
+ * with the percentage of steps in which it was active (and, in a lifted statemachine, the mean number
+ * of instances in it when active), and a badge on each transition with the number of times it was fired.
+ * (Only the firings of operations executed from the statemachine diagrams and by random walks are counted,
+ * not those of operations executed in the views of the animator, see
+ * {@link StatemachineAnimationParticipant#executeOperation(org.eventb.core.IMachineRoot, ac.soton.eventb.probsupport.data.Operation_)})
+ * The badges are coloured from cool to hot by the value relative to the other elements.
+ *
+ * The badges are drawn in the feedback layer of the diagram, so they do not change the statemachine or
+ * the diagram and are not saved. Must only be used in the UI thread.
+ *
+ * The overlay is refreshed at most every {@link #REFRESH_INTERVAL} milliseconds, however often the diagram
+ * is updated (the last refresh of a burst is made when the interval has passed). Each refresh only changes
+ * the badges whose shown values have changed, and only moves the badges when their figures have moved.
+ *
+ * @author cfsnook
+ *
+ */
+class HeatmapOverlay {
+
+	// background colours from cool to hot
+	private static final int[][] PALETTE = {
+			{198, 219, 239}, {161, 217, 155}, {255, 237, 160}, {253, 174, 97}, {215, 48, 39}};
+
+	/**
+	 * The minimum time in milliseconds between two refreshes of the badges
+	 */
+	static final int REFRESH_INTERVAL = 500;
+
+	private final StatemachinesDiagramEditor editor;
+	private final Display display;
+	private final Color[] colors = new Color[PALETTE.length];
+	private IFigure layer = null;
+
+	// the edit parts of the engine whose positions the badges are for
+	private StatemachineAnimationEngine engine = null;
+	private DiagramEditParts parts = null;
+	private Label[] stateBadges = new Label[0];
+	private Label[] transitionBadges = new Label[0];
+
+	// the values shown by each badge: the percentage of steps and the mean number of instances (in tenths, or -1)
+	// of each state, the firings of each transition, and the colour of each badge
+	private int[] statePercents = new int[0];
+	private long[] stateMeans = new long[0];
+	private int[] stateHeats = new int[0];
+	private long[] transitionFirings = new long[0];
+	private int[] transitionHeats = new int[0];
+
+	// the heatmap and engine of the latest refresh, shown when the refresh interval has passed
+	private StatemachineHeatmap pendingHeatmap = null;
+	private StatemachineAnimationEngine pendingEngine = null;
+	private boolean refreshPosted = false;
+	private long lastRefresh = 0;
+
+	private final Runnable delayedRefresh = new Runnable() {
+		@Override
+		public void run() {
+			refreshPosted = false;
+			if (layer != null && pendingEngine != null) {
+				update(pendingHeatmap, pendingEngine);
+			}
+		}
+	};
+
+	/**
+	 * Creates an (empty) overlay on the diagram of an editor.
+	 * Must be called in the UI thread.
+	 *
+	 * @param editor
+	 */
+	HeatmapOverlay(StatemachinesDiagramEditor editor) {
+		this.editor = editor;
+		this.display = Display.getCurrent();
+		for (int i=0; i<PALETTE.length; i++) {
+			colors[i] = new Color(display, PALETTE[i][0], PALETTE[i][1], PALETTE[i][2]);
+		}
+		EditPartViewer viewer = editor.getDiagramGraphicalViewer();
+		Object layerManager = viewer == null ? null : viewer.getEditPartRegistry().get(LayerManager.ID);
+		if (layerManager instanceof LayerManager) {
+			layer = ((LayerManager) layerManager).getLayer(LayerConstants.FEEDBACK_LAYER);
+		}
+	}
+
+	/**
+	 * Shows the current counters of a heatmap, now or when the refresh interval has passed since the last refresh
+	 *
+	 * @param heatmap a heatmap whose engine matches the given engine, or null to remove the badges
+	 * @param engine the current engine of the statemachine of the editor
+	 */
+	void refresh(StatemachineHeatmap heatmap, StatemachineAnimationEngine engine) {
+		if (layer == null) return;
+		if (heatmap == null) {
+			pendingHeatmap = null;
+			pendingEngine = null;
+			clear();
+			return;
+		}
+		pendingHeatmap = heatmap;
+		pendingEngine = engine;
+		long delay = lastRefresh + REFRESH_INTERVAL - System.currentTimeMillis();
+		if (delay <= 0) {
+			update(heatmap, engine);
+		} else if (!refreshPosted) {
+			refreshPosted = true;
+			display.timerExec((int) delay, delayedRefresh);
+		}
+	}
+
+	/**
+	 * Removes the badges and disposes of the colours (in the UI thread)
+	 */
+	void dispose() {
+		Runnable remove = new Runnable() {
+			@Override
+			public void run() {
+				pendingEngine = null;
+				pendingHeatmap = null;
+				if (refreshPosted) {
+					display.timerExec(-1, delayedRefresh);
+					refreshPosted = false;
+				}
+				if (layer != null) {
+					clear();
+				}
+				for (Color color : colors) {
+					color.dispose();
+				}
+			}
+		};
+		if (Display.getCurrent() != null) {
+			remove.run();
+		} else if (!display.isDisposed()) {
+			display.asyncExec(remove);
+		}
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	/**
+	 * Updates the badges whose values have changed since they were last shown
+	 */
+	private void update(StatemachineHeatmap heatmap, StatemachineAnimationEngine engine) {
+		lastRefresh = System.currentTimeMillis();
+		pendingHeatmap = null;
+		pendingEngine = null;
+		if (engine != this.engine || parts == null || !parts.isCurrent()) {
+			clear();
+			this.engine = engine;
+			parts = new DiagramEditParts(editor, engine);
+			int states = engine.getStates().size();
+			int transitions = engine.getTransitions().size();
+			stateBadges = new Label[states];
+			statePercents = new int[states];
+			stateMeans = new long[states];
+			stateHeats = new int[states];
+			transitionBadges = new Label[transitions];
+			transitionFirings = new long[transitions];
+			transitionHeats = new int[transitions];
+		}
+		boolean moved = parts.clearMoved();
+		for (int i=0; i<stateBadges.length; i++) {
+			double ratio = heatmap.getOccupancyRatio(i);
+			int percent = (int) Math.round(ratio * 100);
+			long occupancy = heatmap.getOccupancy(i);
+			long mean = heatmap.isLifted() && occupancy > 0 ? Math.round(10.0 * heatmap.getInstanceOccupancy(i) / occupancy) : -1;
+			int heat = getHeat(ratio);
+			if (stateBadges[i] != null && !moved && percent == statePercents[i] && mean == stateMeans[i] && heat == stateHeats[i]) {
+				continue;
+			}
+			String text = percent + "%"; //$NON-NLS-1$
+			if (mean >= 0) {
+				text += " \u00d7" + mean / 10 + "." + mean % 10; //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			stateBadges[i] = place(stateBadges[i], parts.getStateFigure(i), text, heat, true);
+			statePercents[i] = percent;
+			stateMeans[i] = mean;
+			stateHeats[i] = heat;
+		}
+		long maxFirings = heatmap.getMaxFirings();
+		for (int i=0; i<transitionBadges.length; i++) {
+			long firings = heatmap.getFirings(i);
+			int heat = getHeat(maxFirings == 0 ? 0 : (double) firings / maxFirings);
+			if (transitionBadges[i] != null && !moved && firings == transitionFirings[i] && heat == transitionHeats[i]) {
+				continue;
+			}
+			transitionBadges[i] = place(transitionBadges[i], parts.getTransitionFigure(i), String.valueOf(firings), heat, false);
+			transitionFirings[i] = firings;
+			transitionHeats[i] = heat;
+		}
+	}
+
+	/**
+	 * @return the colour index of a value relative to the hottest element (0 to 1)
+	 */
+	private int getHeat(double ratio) {
+		return Math.min(colors.length - 1, (int) (ratio * colors.length));
+	}
+
+	/**
+	 * Shows a badge with the given text over an element's figure, creating it if needed
+	 *
+	 * @param badge the badge of the element or null if it has none yet
+	 * @param figure the figure of the element or null if it is not shown
+	 * @param text
+	 * @param heat the colour index of the value relative to the hottest element
+	 * @param corner true to place the badge at the top right corner of the figure, false at its centre
+	 * @return the badge or null if the figure is not showing
+	 */
+	private Label place(Label badge, IFigure figure, String text, int heat, boolean corner) {
+		Rectangle bounds = DiagramEditParts.getAbsoluteBounds(figure);
+		if (bounds == null) {
+			if (badge != null) {
+				layer.remove(badge);
+			}
+			return null;
+		}
+		if (badge == null) {
+			badge = new Label();
+			badge.setOpaque(true);
+			layer.add(badge);
+		}
+		badge.setText(text);
+		badge.setBackgroundColor(colors[heat]);
+		layer.translateToRelative(bounds);
+		Dimension size = badge.getPreferredSize();
+		int x = corner ? bounds.x + bounds.width - size.width : bounds.x + (bounds.width - size.width) / 2;
+		int y = corner ? bounds.y - size.height / 2 : bounds.y + (bounds.height - size.height) / 2;
+		badge.setBounds(new Rectangle(x, y, size.width, size.height));
+		return badge;
+	}
+
+	private void clear() {
+		remove(stateBadges);
+		remove(transitionBadges);
+		engine = null;
+		if (parts != null) {
+			parts.dispose();
+			parts = null;
+		}
+	}
+
+	private void remove(Label[] badges) {
+		for (int i=0; i<badges.length; i++) {
+			if (badges[i] != null) {
+				layer.remove(badges[i]);
+				badges[i] = null;
+			}
+		}
+	}
+}
@@ -7,40 +7,55 @@
  */
 package ac.soton.eventb.statemachines.animation.participants;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.eclipse.core.runtime.NullProgressMonitor;
-import org.eclipse.emf.common.command.CompoundCommand;
+import org.eclipse.core.commands.ExecutionEvent;
+import org.eclipse.core.commands.ExecutionException;
+import org.eclipse.core.commands.IExecutionListener;
+import org.eclipse.core.commands.NotHandledException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.SubMonitor;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.emf.common.util.BasicEList;
 import org.eclipse.emf.common.util.EList;
-import org.eclipse.emf.ecore.EObject;
-import org.eclipse.emf.edit.command.SetCommand;
 import org.eclipse.emf.transaction.TransactionalEditingDomain;
 import org.eclipse.emf.transaction.util.TransactionUtil;
 import org.eclipse.gmf.runtime.notation.Diagram;
-import org.eclipse.ui.IEditorPart;
-import org.eclipse.ui.IEditorReference;
-import org.eclipse.ui.IWorkbenchPage;
-import org.eclipse.ui.PlatformUI;
+import org.eclipse.ui.IPartListener2;
+import org.eclipse.ui.IWorkbenchPart;
+import org.eclipse.ui.IWorkbenchPartReference;
+import org.eclipse.ui.IWorkbenchCommandConstants;
 import org.eventb.core.IMachineRoot;
-import org.eventb.emf.core.EventBNamed;
-import org.eventb.emf.core.EventBObject;
-import org.eventb.emf.core.machine.Event;
-import org.eventb.emf.core.machine.Machine;
-import org.eventb.emf.persistence.EventBEMFUtils;
 
-import ac.soton.eventb.emf.diagrams.util.custom.DiagramUtils;
 import ac.soton.eventb.probsupport.AnimationManager;
 import ac.soton.eventb.probsupport.IAnimationParticipant;
 import ac.soton.eventb.probsupport.data.Operation_;
-import ac.soton.eventb.probsupport.data.State_;
+import ac.soton.eventb.statemachines.State;
 import ac.soton.eventb.statemachines.Statemachine;
-import ac.soton.eventb.statemachines.StatemachinesPackage;
 import ac.soton.eventb.statemachines.Transition;
-import ac.soton.eventb.statemachines.TranslationKind;
+import ac.soton.eventb.statemachines.animation.StatemachineAnimationPlugin;
+import ac.soton.eventb.statemachines.animation.engine.ActiveInstances;
+import ac.soton.eventb.statemachines.animation.engine.StatemachineAnimationEngine;
+import ac.soton.eventb.statemachines.animation.engine.StatemachineHeatmap;
+import ac.soton.eventb.statemachines.animation.engine.StatemachineSnapshot;
+import ac.soton.eventb.statemachines.animation.engine.StatemachineTraceRecorder;
+import ac.soton.eventb.statemachines.animation.metrics.AnimationMetrics;
+import ac.soton.eventb.statemachines.animation.metrics.AnimationMetricsRegistry;
 import ac.soton.eventb.statemachines.diagram.part.StatemachinesDiagramEditor;
 
 /**
@@ -53,43 +68,128 @@ import ac.soton.eventb.statemachines.diagram.part.StatemachinesDiagramEditor;
  */
 public class StatemachineAnimationParticipant implements IAnimationParticipant {
 
-	// map of the currently animated statemachine editors for each animated mchRoot
-	private Map<IMachineRoot, List<StatemachinesDiagramEditor>> editorsMap = new HashMap<IMachineRoot, List<StatemachinesDiagramEditor>>();
+	/**
+	 * System property that can be used to defer changes to the off-screen elements of diagrams by default
+	 */
+	static final String DEFER_OFFSCREEN_PROPERTY = "ac.soton.eventb.statemachines.animation.deferOffscreen"; //$NON-NLS-1$
+	
+	/**
+	 * System property that can be used to count the state occupancy and transition firings of every animation
+	 */
+	static final String HEATMAP_PROPERTY = "ac.soton.eventb.statemachines.animation.heatmap"; //$NON-NLS-1$
+	
+	// the time in milliseconds without a diagram update after which deferred changes are written
+	private static final int IDLE_FLUSH_DELAY = 500;
+	
+	// the participant created by the prob support plugin
+	private static volatile StatemachineAnimationParticipant instance = null;
+	
+	// the animator and the workbench
+	private final AnimationHost host;
+
+	// the currently animated statemachine editors (and the animation engine of each editor's statemachine) for each animated mchRoot
+	private final AnimatedEditorRegistry registry = new AnimatedEditorRegistry();
+	
+	// coalesces the update requests of each animated mchRoot and applies them at a limited frame rate
+	private final AnimationUpdateScheduler scheduler = new AnimationUpdateScheduler(this);
+	
+	// records every step of each animated mchRoot in the traces, whatever the diagram updates show
+	private final AnimationStepQueue steps = new AnimationStepQueue(this);
+	
+	// limits on the rendering of the instances in the states of lifted statemachines
+	//  (-1 for the engine's defaults)
+	private volatile int instancePreviewLength = -1;
+	private volatile int instanceCountThreshold = -1;
+	
+	// number of diagram updates skipped because nothing relevant to the statemachine changed
+	private final AtomicLong skippedUpdates = new AtomicLong();
+	
+	// the number of animation steps between diagram updates of machines whose updates are decimated,
+	// and the number of steps since the last update of each
+	private final Map<IMachineRoot, int[]> decimations = new HashMap<IMachineRoot, int[]>();
+	
+	// directory in which the animation trace of each attached statemachine is recorded (null for no recording)
+	private volatile File traceDirectory = getDefaultTraceDirectory();
+	private final AtomicInteger traceCount = new AtomicInteger();
+	
+	// whether changes to the elements of a diagram that are scrolled out of view are deferred
+	private volatile boolean deferOffscreenChanges = Boolean.getBoolean(DEFER_OFFSCREEN_PROPERTY);
+	
+	// whether the state occupancy and transition firings of the animated statemachines are counted
+	private volatile boolean heatmapEnabled = Boolean.getBoolean(HEATMAP_PROPERTY);
+	
+	// the heatmap of each statemachine (by the key of its editors) of each machine
+	//  (kept when the animation stops, so that they can still be exported)
+	private final Map<IMachineRoot, Map<String, StatemachineHeatmap>> heatmaps = new HashMap<IMachineRoot, Map<String, StatemachineHeatmap>>();
+	
+	// writes the deferred changes of all diagrams when the animation has been idle for a while
+	private final Runnable idleFlush = new Runnable() {
+		@Override
+		public void run() {
+			flushDeferred(registry.getAllEntries(), false);
+		}
+	};
+	
+	// writes the deferred changes of all diagrams before any editor is saved
+	private final IExecutionListener saveListener = new SaveListener();
+	
+	// saves the dirty statemachine editors of each animated machine in the background and then attaches them
+	private final Map<IMachineRoot, SaveAndAttachJob> saveJobs = new HashMap<IMachineRoot, SaveAndAttachJob>();
+	
+	// the translation target of the statemachine of each editor
+	private final Map<StatemachinesDiagramEditor, TranslationTarget> targets = new WeakHashMap<StatemachinesDiagramEditor, TranslationTarget>();
+	
+	// attaches statemachine editors that are opened (or restored) while an animation is running
+	private final IPartListener2 partListener = new EditorPartListener();
+	
+	public StatemachineAnimationParticipant() {
+		this(new WorkbenchAnimationHost());
+		instance = this;
+	}
+	
+	/**
+	 * Creates a participant that animates the editors of the given host with its animator
+	 * (it does not become the default participant)
+	 * 
+	 * @param host
+	 */
+	StatemachineAnimationParticipant(AnimationHost host) {
+		this.host = host;
+	}
+	
+	/**
+	 * @return the participant registered with the prob support plugin, or null if it has not been created yet
+	 */
+	public static StatemachineAnimationParticipant getDefault() {
+		return instance;
+	}
 	
 	/* (non-Javadoc)
 	 * @see ac.soton.eventb.probsupport.IAnimationParticipant#startAnimating(org.eventb.core.IMachineRoot)
+	 * 
+	 * Only editors that have already been restored are attached now. (Restoring editors is slow
+	 * and most of them will not be for this machine). Statemachine editors that are opened or restored
+	 * later are attached by a part listener while the animation is running.
+	 * Editors with unsaved changes are saved by a background job (saving retranslates the model, which can
+	 * take a long time) and each of them is attached and shows the animation as soon as it has been saved.
 	 */
 	@Override
 	public void startAnimation(IMachineRoot mchRoot) {
-		List<StatemachinesDiagramEditor> editors = new ArrayList<StatemachinesDiagramEditor>();
+		AnimationMetrics metrics = AnimationMetricsRegistry.getDefault().getMetrics(mchRoot);
+		long start = System.nanoTime();
+		registry.addMachine(mchRoot);
+		// the heatmaps of a previous animation (and the statemachines they refer to) are released
+		synchronized (heatmaps) {
+			heatmaps.remove(mchRoot);
+		}
+		host.addListeners(partListener, saveListener);
 		//Find all the statemachines that are open as diagrams 
 		// 		(these must come from the editors as each editor has a different local copy)
-		for(IWorkbenchPage page : PlatformUI.getWorkbench().getActiveWorkbenchWindow().getPages()){
-	    	for(IEditorReference editorRef: page.getEditorReferences()){
-	    		IEditorPart editor = editorRef.getEditor(true);
-				if (editor instanceof StatemachinesDiagramEditor ){
-					StatemachinesDiagramEditor smDiagramEditor = (StatemachinesDiagramEditor) editor;
-					Statemachine statemachine = (Statemachine) smDiagramEditor.getDiagram().getElement();
-					EventBObject target = DiagramUtils.getTranslationTarget(statemachine);
-					IMachineRoot targetRoot = (target instanceof Machine)? EventBEMFUtils.getRoot((Machine)target) : null;
-					//if the statemachine translates to the Machine being animated...
-					if (mchRoot.equals(targetRoot)) { 
-		    			if (smDiagramEditor.isDirty()){
-		    				smDiagramEditor.doSave(new NullProgressMonitor());
-		    			}
-	    				//let the editor know that we are animating so that it doesn't try to save animation artifacts
-		    			smDiagramEditor.startAnimating();
-			    		editors.add(smDiagramEditor);
-			    		//clearAnimationArtifacts(smDiagramEditor);	//just in case it didn't get cleared last time
-			    		//smDiagramEditor.
-					}
-		    	}
-	    	}
-    	}
-		if (!editors.isEmpty()) {
-			editorsMap.put(mchRoot, editors);
+		for (StatemachinesDiagramEditor editor : host.getOpenEditors()) {
+			attachEditor(mchRoot, editor);
 		}
 		updateAnimation(mchRoot);
+		metrics.stop(AnimationMetrics.Timer.START_ANIMATION, start);
 	}
 	
 	/* (non-Javadoc)
@@ -97,252 +197,1462 @@ public class StatemachineAnimationParticipant implements IAnimationParticipant {
 	 */
 	@Override
 	public void stopAnimation(IMachineRoot mchRoot) {
-		if (editorsMap.containsKey(mchRoot)) {
-			for (StatemachinesDiagramEditor statemachineDiagramEditor : editorsMap.get(mchRoot)){
-				clearAnimationArtifacts(statemachineDiagramEditor);
+		scheduler.cancel(mchRoot);
+		synchronized (saveJobs) {
+			SaveAndAttachJob saveJob = saveJobs.remove(mchRoot);
+			if (saveJob != null) {
+				saveJob.cancel();
+			}
+		}
+		synchronized (decimations) {
+			decimations.remove(mchRoot);
+		}
+		// the steps that have been taken are recorded before the traces are closed
+		steps.finish(mchRoot);
+		List<AnimatedEditorRegistry.Entry> entries = registry.getEntries(mchRoot);
+		// bring the statemachines fully up to date before the animation attributes are cleared
+		flushDeferred(entries, false);
+		registry.removeMachine(mchRoot);
+		for (AnimatedEditorRegistry.Entry entry : entries){
+			StatemachinesDiagramEditor statemachineDiagramEditor = entry.getEditor();
+			if (statemachineDiagramEditor != null) {
+				clearAnimationArtifacts(entry);
 				statemachineDiagramEditor.stopAnimating();
 			}
-			editorsMap.remove(mchRoot);
+			entry.dispose();
+		}
+		// the heatmaps are kept for export, but must not keep the statemachines (and their editors) reachable
+		synchronized (heatmaps) {
+			Map<String, StatemachineHeatmap> machineHeatmaps = heatmaps.get(mchRoot);
+			if (machineHeatmaps != null) {
+				for (StatemachineHeatmap heatmap : machineHeatmaps.values()) {
+					heatmap.release();
+				}
+			}
+		}
+		if (registry.getMachines().isEmpty()) {
+			host.removeListeners(partListener, saveListener);
+			synchronized (targets) {
+				targets.clear();
+			}
 		}
 	}
 
 
 	/* (non-Javadoc)
 	 * @see ac.soton.eventb.probsupport.IAnimationParticipant#updateAnimation(org.eventb.core.IMachineRoot)
+	 * 
+	 * The update is not made immediately. It is scheduled so that several updates in quick succession
+	 * only result in one update of the diagrams showing the latest state.
+	 * If any statemachine of the machine is being recorded, or heatmaps are counted, the current state of
+	 * the animation is read now and queued to be recorded and counted, so that every step is recorded and
+	 * counted however the diagram updates are merged or decimated.
 	 */
 	@Override
-	public void updateAnimation(IMachineRoot mchRoot) {	
-		if (editorsMap.containsKey(mchRoot)) {
-			for(StatemachinesDiagramEditor statemachineDiagramEditor : editorsMap.get(mchRoot)){					
-				updateAnimationArtifacts(
-						(Statemachine) statemachineDiagramEditor.getDiagram().getElement(),
-						AnimationManager.getCurrentState(mchRoot), 
-						AnimationManager.getEnabledOperations(mchRoot)
-						);			
+	public void updateAnimation(IMachineRoot mchRoot) {
+		takeStep(mchRoot, false);
+	}
+	
+	/**
+	 * Sets the number of animation steps of a machine between updates of its diagrams, so that a fast
+	 * sequence of steps (e.g. a random walk) is not slowed down by the diagrams. (The traces still record every step)
+	 * Setting the interval back to 1 updates the diagrams at once if any steps have not been shown.
+	 * 
+	 * @param mchRoot
+	 * @param steps the number of steps between updates (1 to update the diagrams at every step)
+	 */
+	public void setUpdateInterval(IMachineRoot mchRoot, int steps) {
+		boolean update;
+		synchronized (decimations) {
+			int[] decimation = decimations.remove(mchRoot);
+			update = decimation != null && decimation[1] > 0;
+			if (steps > 1) {
+				decimations.put(mchRoot, new int[] {steps, decimation == null ? 0 : decimation[1]});
+				update = false;
 			}
 		}
+		if (update && registry.hasMachine(mchRoot)) {
+			scheduler.schedule(mchRoot);
+		}
+	}
+	
+	/**
+	 * Gets the number of animation steps of a machine between updates of its diagrams
+	 * 
+	 * @param mchRoot
+	 * @return the number of steps between updates (1 if the diagrams are updated at every step)
+	 */
+	public int getUpdateInterval(IMachineRoot mchRoot) {
+		synchronized (decimations) {
+			int[] decimation = decimations.get(mchRoot);
+			return decimation == null ? 1 : decimation[0];
+		}
+	}
+	
+	/**
+	 * Computes the animation artifacts of all the animated statemachine diagrams of the given mchRoot
+	 * to show the current state of the animation.
+	 * This is called by the scheduler in a background job. The snapshot of each statemachine is computed once,
+	 * however many editors show it, and is written to the copy of the statemachine in each of those editors.
+	 * If several statemachines are animated, their snapshots are computed in parallel.
+	 * The computation is abandoned when the monitor is canceled (i.e. when a newer animation step has been requested).
+	 * 
+	 * @param mchRoot
+	 * @param monitor
+	 * @return a runnable that applies the computed changes and must be run in the UI thread,
+	 * 			or null if the computation was canceled
+	 */
+	Runnable computeUpdate(IMachineRoot mchRoot, IProgressMonitor monitor) {	
+		List<AnimatedEditorRegistry.Entry> entries = registry.getEntries(mchRoot);
+		if (entries.isEmpty()) {
+			return null;
+		}
+		AnimationMetrics metrics = AnimationMetricsRegistry.getDefault().getMetrics(mchRoot);
+		long start = System.nanoTime();
+		Map<String, String> variables = host.getVariables(mchRoot);
+		List<Operation_> operations = host.getEnabledOperations(mchRoot);
+		metrics.stop(AnimationMetrics.Timer.ANIMATOR_QUERY, start);
+		// the editors showing each statemachine
+		Map<String, List<AnimatedEditorRegistry.Entry>> statemachines = new LinkedHashMap<String, List<AnimatedEditorRegistry.Entry>>();
+		for(AnimatedEditorRegistry.Entry entry : entries){
+			List<AnimatedEditorRegistry.Entry> editors = statemachines.get(entry.getKey());
+			if (editors == null) {
+				editors = new ArrayList<AnimatedEditorRegistry.Entry>(1);
+				statemachines.put(entry.getKey(), editors);
+			}
+			editors.add(entry);
+		}
+		final List<SnapshotJob> jobs = new ArrayList<SnapshotJob>(statemachines.size());
+		for(List<AnimatedEditorRegistry.Entry> editors : statemachines.values()){
+			jobs.add(new SnapshotJob(editors, variables, operations, metrics, monitor));
+		}
+		if (jobs.size() == 1) {
+			jobs.get(0).compute();
+		} else {
+			for (SnapshotJob job : jobs) {
+				job.schedule();
+			}
+			try {
+				for (SnapshotJob job : jobs) {
+					job.join();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				monitor.setCanceled(true);
+			}
+		}
+		if (monitor.isCanceled()) {
+			return null;
+		}
+		// later steps are compared with these snapshots, which may not have been applied yet
+		for (SnapshotJob job : jobs) {
+			for (int k=0; k<job.entries.size(); k++) {
+				if (job.snapshots[k] != null) {
+					job.entries.get(k).setScheduledSnapshot(job.snapshots[k]);
+				}
+			}
+		}
+		final AnimationMetrics stepMetrics = metrics;
+		return new Runnable() {
+			@Override
+			public void run() {
+				applyUpdate(jobs, stepMetrics);
+			}
+		};
 	}
 
 	@Override
 	public void restartAnimation(IMachineRoot mchRoot) {
-		updateAnimation(mchRoot);
+		// the diagrams may have been changed since the last update so make a full refresh
+		for (AnimatedEditorRegistry.Entry entry : registry.getEntries(mchRoot)){
+			entry.setAppliedSnapshot(null);
+		}
+		// the animation starts again from its initial state
+		takeStep(mchRoot, true);
+	}
+	
+	/**
+	 * @return the minimum time in milliseconds between two diagram updates for the same machine
+	 */
+	public long getFrameInterval() {
+		return scheduler.getFrameInterval();
+	}
+	
+	/**
+	 * Sets the minimum time between two diagram updates for the same machine.
+	 * (The default can be set with the system property ac.soton.eventb.statemachines.animation.frameInterval)
+	 * 
+	 * @param frameInterval in milliseconds
+	 */
+	public void setFrameInterval(long frameInterval) {
+		scheduler.setFrameInterval(frameInterval);
+	}
+	
+	/**
+	 * Sets the limits used when showing the instances that are in a state of a lifted statemachine.
+	 * The instances are listed up to about previewLength characters.
+	 * When there are more than countThreshold instances only the number of instances is shown.
+	 * (The defaults can be set with the system properties 
+	 * ac.soton.eventb.statemachines.animation.instancePreviewLength and
+	 * ac.soton.eventb.statemachines.animation.instanceCountThreshold)
+	 * 
+	 * @param previewLength
+	 * @param countThreshold
+	 */
+	public void setInstanceLimits(int previewLength, int countThreshold) {
+		instancePreviewLength = previewLength;
+		instanceCountThreshold = countThreshold;
+	}
+	
+	/**
+	 * @return the directory in which animation traces are recorded, or null if they are not recorded
+	 */
+	public File getTraceDirectory() {
+		return traceDirectory;
+	}
+	
+	/**
+	 * Sets the directory in which the animation of each statemachine diagram is recorded,
+	 * one trace file per diagram, for diagrams attached to an animation after this is called.
+	 * (The default can be set with the system property ac.soton.eventb.statemachines.animation.traceDirectory)
+	 * 
+	 * @param directory the directory or null to stop recording new traces
+	 * @see StatemachineTraceRecorder
+	 */
+	public void setTraceDirectory(File directory) {
+		traceDirectory = directory;
+	}
+	
+	/**
+	 * @return true if changes to the elements of a diagram that are scrolled out of view are deferred
+	 */
+	public boolean isDeferOffscreenChanges() {
+		return deferOffscreenChanges;
+	}
+	
+	/**
+	 * Sets whether changes to the states and transitions of a diagram that are scrolled out of view are deferred.
+	 * When they are, each update only changes the elements that are visible. The other elements are changed
+	 * when they are scrolled into view, when the animation has been idle for a while, and before the animation
+	 * stops or an editor is saved. This avoids updating the figures of thousands of off-screen elements at every step
+	 * of the animation of a very large diagram.
+	 * (The default can be set with the system property ac.soton.eventb.statemachines.animation.deferOffscreen)
+	 * 
+	 * @param defer
+	 */
+	public void setDeferOffscreenChanges(boolean defer) {
+		deferOffscreenChanges = defer;
+	}
+	
+	/**
+	 * @return true if the state occupancy and transition firings of the animated statemachines are counted
+	 */
+	public boolean isHeatmapEnabled() {
+		return heatmapEnabled;
+	}
+	
+	/**
+	 * Sets whether the state occupancy and transition firings of the animated statemachines are counted.
+	 * When they are, every step of the animation is counted in a heatmap of each attached statemachine (whether or not
+	 * the diagrams are updated for it): the number of steps in which each state is active (and in lifted statemachines
+	 * the number of instances in it), and the number of steps in which each transition is enabled.
+	 * The firings of the transitions are only counted for the operations executed with
+	 * {@link #executeOperation(IMachineRoot, Operation_)} (i.e. from the diagrams and by random walks), not for
+	 * those executed in the views of the animator.
+	 * The counters are reset when the animation is restarted, and the heatmaps are replaced when it is started again.
+	 * (The default can be set with the system property ac.soton.eventb.statemachines.animation.heatmap)
+	 * 
+	 * @param enabled
+	 */
+	public void setHeatmapEnabled(boolean enabled) {
+		heatmapEnabled = enabled;
+	}
+	
+	/**
+	 * @return the heatmaps of the statemachines of a machine, which are kept after its animation stops
+	 * 			(until it is animated again)
+	 */
+	public List<StatemachineHeatmap> getHeatmaps(IMachineRoot mchRoot) {
+		synchronized (heatmaps) {
+			Map<String, StatemachineHeatmap> machineHeatmaps = heatmaps.get(mchRoot);
+			return machineHeatmaps == null ? Collections.<StatemachineHeatmap>emptyList() : new ArrayList<StatemachineHeatmap>(machineHeatmaps.values());
+		}
+	}
+	
+	/**
+	 * Writes the heatmaps of the statemachines of a machine as comma separated values, one line per state and transition
+	 * 
+	 * @param mchRoot
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void writeHeatmapCsv(IMachineRoot mchRoot, Writer writer) throws IOException {
+		writer.write(StatemachineHeatmap.CSV_HEADER);
+		for (StatemachineHeatmap heatmap : getHeatmaps(mchRoot)) {
+			heatmap.writeCsv(writer);
+		}
+		writer.flush();
+	}
+	
+	/**
+	 * @return true if the heatmap of the animated statemachine of the editor is shown over its diagram
+	 */
+	public boolean isHeatmapShown(StatemachinesDiagramEditor editor) {
+		AnimatedEditorRegistry.Entry entry = getEntry(editor);
+		return entry != null && entry.getOverlay() != null;
+	}
+	
+	/**
+	 * Shows or hides the heatmap of the animated statemachine of an editor over its diagram.
+	 * Showing a heatmap starts counting, from the next step, if heatmaps were not being counted.
+	 * The heatmap is refreshed when the diagram is updated, and is hidden when the animation stops.
+	 * Must be called in the UI thread.
+	 * 
+	 * @param editor
+	 * @param show
+	 * @return false if the editor is not attached to an animation
+	 */
+	public boolean setHeatmapShown(StatemachinesDiagramEditor editor, boolean show) {
+		AnimatedEditorRegistry.Entry entry = getEntry(editor);
+		if (entry == null) {
+			return false;
+		}
+		if (!show) {
+			entry.setOverlay(null);
+			return true;
+		}
+		heatmapEnabled = true;
+		if (entry.getOverlay() == null) {
+			entry.setOverlay(new HeatmapOverlay(editor));
+		}
+		refreshOverlay(entry);
+		return true;
+	}
+	
+	/**
+	 * Executes an operation of an animated machine and counts the firing of its transitions in the heatmaps
+	 * of the machine (if heatmaps are counted). The animator does not tell the participants which operation
+	 * caused an update, so operations that are executed by other means (e.g. in the views of the animator)
+	 * are not counted as firings.
+	 * 
+	 * @param mchRoot
+	 * @param operation an enabled operation
+	 */
+	public static void executeOperation(IMachineRoot mchRoot, Operation_ operation) {
+		AnimationManager.executeOperation(mchRoot, operation, false);
+		StatemachineAnimationParticipant participant = instance;
+		if (participant != null && participant.heatmapEnabled) {
+			for (StatemachineHeatmap heatmap : participant.getHeatmaps(mchRoot)) {
+				heatmap.countFiring(operation.getName());
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of diagram updates that have been skipped because neither the variables
+	 * 		that the statemachine depends on nor the enabled operations of its transitions had changed
+	 */
+	public long getSkippedUpdateCount() {
+		return skippedUpdates.get();
 	}
 	
+	/**
+	 * @return the number of statemachine diagram editors that are currently attached to an animation
+	 */
+	public int getAttachedEditorCount() {
+		return registry.getAttachedEditorCount();
+	}
+	
+	/**
+	 * @return the animator and the workbench that this participant uses
+	 */
+	AnimationHost getHost() {
+		return host;
+	}
+	
+	/**
+	 * Waits until the steps of the animation of a machine that have been taken so far have been recorded and counted,
+	 * and the latest update of its diagrams has been passed to the UI thread
+	 * (e.g. so that a test can check the effects of each step)
+	 * 
+	 * @param mchRoot
+	 * @throws InterruptedException if the wait is interrupted
+	 */
+	void join(IMachineRoot mchRoot) throws InterruptedException {
+		steps.join(mchRoot);
+		scheduler.join(mchRoot);
+	}
+	
+	/**
+	 * Gets the full set of instances that are currently in the given state of an animated lifted statemachine.
+	 * (The diagram may only show a shortened form of this)
+	 * 
+	 * @param state
+	 * @return the set of instances or null if the state is not animated or not lifted
+	 */
+	public String getActiveInstances(ac.soton.eventb.statemachines.State state) {
+		for (AnimatedEditorRegistry.Entry entry : registry.getAllEntries()) {
+			StatemachineSnapshot applied = entry.getAppliedSnapshot();
+			// the snapshot may have been computed with the copy of the statemachine in another editor
+			int i = applied == null ? -1 : entry.peekEngine().getStateId(state);
+			ActiveInstances instances = i < 0 ? null : applied.getInstances(i);
+			if (instances != null) {
+				return instances.getText();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the enabled operations of a transition of an animated statemachine at the latest diagram update
+	 * that has been computed for its editor. These may not have been written to the operations of the
+	 * transition yet (e.g. while the update is waiting for the UI thread, or while changes to off-screen
+	 * elements are deferred), so they are read from the snapshot of the update rather than from the transition.
+	 *
+	 * @param transition a transition of the statemachine of an attached editor
+	 * @return the operations (empty if there are none or the transition is not animated)
+	 */
+	public List<Operation_> getOperations(Transition transition) {
+		for (AnimatedEditorRegistry.Entry entry : registry.getAllEntries()) {
+			StatemachineSnapshot snapshot = entry.getScheduledSnapshot();
+			if (snapshot == null) {
+				snapshot = entry.getAppliedSnapshot();
+			}
+			// the snapshot may have been computed with the copy of the statemachine in another editor
+			int i = snapshot == null ? -1 : entry.peekEngine().getTransitionId(transition);
+			if (i >= 0) {
+				List<Operation_> operations = snapshot.getOperations(i);
+				return operations == null ? Collections.<Operation_>emptyList() : operations;
+			}
+		}
+		return Collections.emptyList();
+	}
+
 	//////////////////////////////// private ///////////////////////////////
 	
 	/**
-	 * Clears all animation data by un-setting the active states and transition operations attributes
-	 * The resource is then set unmodified to prevent this appearing as an edit to the diagram
+	 * Takes a step of the animation of a machine: queues it to be recorded and counted if it needs to be
+	 * and schedules an update of the diagrams (unless the updates are decimated)
 	 * 
-	 * @param statemachine
+	 * @param mchRoot
+	 * @param restart true if the animation has been restarted, so that the heatmaps start counting again
 	 */
-	private void clearAnimationArtifacts(StatemachinesDiagramEditor statemachineDiagramEditor) {
+	private void takeStep(IMachineRoot mchRoot, boolean restart) {
+		AnimationMetrics metrics = AnimationMetricsRegistry.getDefault().getMetrics(mchRoot);
+		long start = System.nanoTime();
+		metrics.countStep();
+		if (isStepped(mchRoot, true)) {
+			long query = System.nanoTime();
+			Map<String, String> variables = host.getVariables(mchRoot);
+			List<Operation_> operations = new ArrayList<Operation_>(host.getEnabledOperations(mchRoot));
+			metrics.stop(AnimationMetrics.Timer.ANIMATOR_QUERY, query);
+			steps.add(mchRoot, new AnimationStepQueue.Step(variables, operations, true, restart));
+		} else if (restart) {
+			resetHeatmaps(mchRoot);
+		}
+		if (!isDecimated(mchRoot)) {
+			scheduler.schedule(mchRoot);
+		}
+		metrics.stop(AnimationMetrics.Timer.UPDATE_ANIMATION, start);
+	}
+	
+	/**
+	 * @param mchRoot
+	 * @param counted true to include counting the steps in heatmaps
+	 * @return true if the steps of the animation of a machine are recorded (or counted)
+	 */
+	private boolean isStepped(IMachineRoot mchRoot, boolean counted) {
+		List<AnimatedEditorRegistry.Entry> entries = registry.getEntries(mchRoot);
+		if (counted && heatmapEnabled && !entries.isEmpty()) {
+			return true;
+		}
+		for (AnimatedEditorRegistry.Entry entry : entries) {
+			if (entry.getRecorder() != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Brings editors that have just been attached up to the current state of the animation of a machine,
+	 * and starts their traces with it. (This is not a step of the animation)
+	 * 
+	 * @param mchRoot
+	 */
+	private void refreshAnimation(IMachineRoot mchRoot) {
+		if (isStepped(mchRoot, false)) {
+			steps.add(mchRoot, new AnimationStepQueue.Step(null, null, false, false));
+		}
+		scheduler.schedule(mchRoot);
+	}
+	
+	/**
+	 * Counts an animation step of a machine whose diagram updates are decimated
+	 * 
+	 * @param mchRoot
+	 * @return true if the diagrams should not be updated for this step
+	 */
+	private boolean isDecimated(IMachineRoot mchRoot) {
+		synchronized (decimations) {
+			int[] decimation = decimations.get(mchRoot);
+			if (decimation == null) {
+				return false;
+			}
+			if (++decimation[1] < decimation[0]) {
+				return true;
+			}
+			decimation[1] = 0;
+			return false;
+		}
+	}
+	
+	/**
+	 * A job that computes the snapshot of one animated statemachine for all the editors that show it.
+	 * The snapshot is computed with the copy of the statemachine in the first editor, read in an exclusive
+	 * transaction of its editing domain, and shared with the other editors whose copies have the same structure.
+	 * (The snapshot of an editor whose copy differs is computed separately)
+	 */
+	private class SnapshotJob extends Job {
 		
-		Diagram diagram = statemachineDiagramEditor.getDiagram();
-		if (diagram == null) {		// the diagram may be closed by now
-			return;
+		private final List<AnimatedEditorRegistry.Entry> entries;
+		private final Map<String, String> variables;
+		private final List<Operation_> operations;
+		private final AnimationMetrics metrics;
+		private final IProgressMonitor stepMonitor;
+		// the engine and the new snapshot of each editor (null if nothing has changed)
+		private final StatemachineAnimationEngine[] engines;
+		private final StatemachineSnapshot[] snapshots;
+		
+		SnapshotJob(List<AnimatedEditorRegistry.Entry> entries, Map<String, String> variables, List<Operation_> operations, AnimationMetrics metrics, IProgressMonitor stepMonitor) {
+			super("Compute statemachine animation"); //$NON-NLS-1$
+			this.entries = entries;
+			this.variables = variables;
+			this.operations = operations;
+			this.metrics = metrics;
+			this.stepMonitor = stepMonitor;
+			this.engines = new StatemachineAnimationEngine[entries.size()];
+			this.snapshots = new StatemachineSnapshot[entries.size()];
+			setSystem(true);
+			setPriority(Job.SHORT);
 		}
-		Statemachine statemachine = (Statemachine) diagram.getElement();
-		TransactionalEditingDomain editingDomain = TransactionUtil.getEditingDomain(statemachine);
-			
-		CompoundCommand cc = new CompoundCommand();
 		
-		// clear active states
-		for (EObject object : statemachine.getAllContained(StatemachinesPackage.Literals.STATE, true)) {
-			if (object != null) {
-				cc.append(SetCommand.create(editingDomain, object,
-					StatemachinesPackage.Literals.STATE__ACTIVE, 
-					SetCommand.UNSET_VALUE));
-				cc.append(SetCommand.create(editingDomain, object,
-						StatemachinesPackage.Literals.STATE__ACTIVE_INSTANCES, 
-						SetCommand.UNSET_VALUE));
+		/* (non-Javadoc)
+		 * @see org.eclipse.core.runtime.jobs.Job#run(org.eclipse.core.runtime.IProgressMonitor)
+		 */
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			compute();
+			return stepMonitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+		}
+		
+		void compute() {
+			// the snapshot that was last scheduled for all the editors, if they all have the same one
+			StatemachineSnapshot commonScheduled = entries.get(0).getScheduledSnapshot();
+			for (AnimatedEditorRegistry.Entry entry : entries) {
+				if (entry.getScheduledSnapshot() != commonScheduled) {
+					commonScheduled = null;
+					break;
+				}
+			}
+			StatemachineAnimationEngine source = null;
+			StatemachineSnapshot shared = null;
+			for (int k=0; k<entries.size(); k++) {
+				AnimatedEditorRegistry.Entry entry = entries.get(k);
+				if (stepMonitor.isCanceled()) {
+					return;
+				}
+				if (entry.isDisposed()) {
+					continue;
+				}
+				StatemachineAnimationEngine engine = entry.peekEngine();
+				if (source != null && engine.isValid() && entry.canShare(source)) {
+					engines[k] = engine;
+					snapshots[k] = shared;
+					if (shared == null) {
+						skippedUpdates.incrementAndGet();
+					}
+				} else {
+					compute(k, source == null ? commonScheduled : entry.getScheduledSnapshot());
+					if (source == null && engines[k] != null) {
+						source = engines[k];
+						shared = snapshots[k];
+					}
+				}
 			}
 		}
 		
-		// clear enabled transitions
-		for (EObject object : statemachine.getAllContained(StatemachinesPackage.Literals.TRANSITION, true)) {
-			if (object != null) { // && ((Transition) object).getOperations() != null && !((Transition) object).getOperations().isEmpty())
-				cc.append(SetCommand.create(editingDomain, object,
-					StatemachinesPackage.Literals.TRANSITION__OPERATIONS,
-					SetCommand.UNSET_VALUE));
+		/**
+		 * Computes the snapshot of an editor with the engine of its own copy of the statemachine
+		 * 
+		 * @param k
+		 * @param previous the snapshot that was last scheduled for all the editors that may share the result, or null
+		 */
+		private void compute(final int k, final StatemachineSnapshot previous) {
+			final AnimatedEditorRegistry.Entry entry = entries.get(k);
+			Runnable read = new Runnable() {
+				@Override
+				public void run() {
+					StatemachineAnimationEngine engine = entry.getEngine();
+					if (instancePreviewLength >= 0) {
+						engine.setInstanceLimits(instancePreviewLength, instanceCountThreshold);
+					}
+					engine.setMetrics(metrics);
+					long start = System.nanoTime();
+					StatemachineSnapshot snapshot = engine.map(variables, operations, previous, stepMonitor);
+					metrics.stop(AnimationMetrics.Timer.COMPUTE_SNAPSHOT, start);
+					if (snapshot != null && snapshot == previous) {
+						// nothing relevant to the statemachine has changed
+						skippedUpdates.incrementAndGet();
+						snapshot = null;
+					}
+					engines[k] = engine;
+					snapshots[k] = snapshot;
+				}
+			};
+			TransactionalEditingDomain editingDomain = TransactionUtil.getEditingDomain(entry.peekEngine().getStatemachine());
+			try {
+				if (editingDomain == null) {
+					read.run();
+				} else {
+					editingDomain.runExclusive(read);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				stepMonitor.setCanceled(true);
 			}
 		}
-		editingDomain.getCommandStack().execute(cc);
+	}
+	
+	/**
+	 * Applies the computed snapshots to the statemachines of their editors, using one transaction for each editing domain.
+	 * Snapshots of editors that have been detached since they were computed are ignored.
+	 * If changes to off-screen elements are deferred, only the visible elements are changed and the idle timer is started.
+	 * This must be called in the UI thread.
+	 * 
+	 * @param jobs
+	 * @param metrics the metrics of the machine
+	 */
+	private void applyUpdate(List<SnapshotJob> jobs, AnimationMetrics metrics) {
+		Map<TransactionalEditingDomain, AnimationArtifactWriter> writers = new LinkedHashMap<TransactionalEditingDomain, AnimationArtifactWriter>();
+		boolean deferred = false;
+		for (SnapshotJob job : jobs) {
+			for (int k=0; k<job.entries.size(); k++) {
+				AnimatedEditorRegistry.Entry entry = job.entries.get(k);
+				StatemachineAnimationEngine engine = job.engines[k];
+				StatemachineSnapshot snapshot = job.snapshots[k];
+				if (snapshot == null || entry.isDisposed()) {
+					continue;	// nothing has changed or the editor is no longer animated
+				}
+				if (entry.peekEngine() != engine || !engine.isValid()) {
+					// the statemachine has changed since the snapshot was computed
+					scheduler.schedule(entry.getMachineRoot());
+					continue;
+				}
+				AnimationArtifactWriter writer = getWriter(writers, engine);
+				ViewportDeferral deferral = getDeferral(entry, engine, writer);
+				if (deferral != null) {
+					deferral.beginPass();
+				}
+				writeSnapshot(engine, entry.getAppliedSnapshot(), snapshot, writer, deferral);
+				entry.setAppliedSnapshot(snapshot);
+				deferred |= deferral != null && deferral.hasPending();
+			}
+		}
+		applyWriters(writers, metrics);
+		for (SnapshotJob job : jobs) {
+			for (AnimatedEditorRegistry.Entry entry : job.entries) {
+				if (!entry.isDisposed()) {
+					refreshOverlay(entry);
+				}
+			}
+		}
+		if (deferred) {
+			// (re)start the idle timer
+			host.timerExec(-1, idleFlush);
+			host.timerExec(IDLE_FLUSH_DELAY, idleFlush);
+		}
+	}
+	
+	/**
+	 * Writes the deferred changes of the diagrams of the given entries from their applied snapshots.
+	 * This must be called in the UI thread if only the visible changes are written.
+	 * 
+	 * @param entries
+	 * @param visibleOnly true to write only the changes of elements that have come into view, false to write all
+	 */
+	private void flushDeferred(List<AnimatedEditorRegistry.Entry> entries, boolean visibleOnly) {
+		Map<TransactionalEditingDomain, AnimationArtifactWriter> writers = new LinkedHashMap<TransactionalEditingDomain, AnimationArtifactWriter>();
+		AnimationMetrics metrics = null;
+		for (AnimatedEditorRegistry.Entry entry : entries) {
+			ViewportDeferral deferral = entry.getDeferral();
+			StatemachineSnapshot applied = entry.getAppliedSnapshot();
+			if (deferral == null || applied == null || entry.isDisposed() || !deferral.hasPending()) {
+				continue;
+			}
+			StatemachineAnimationEngine engine = deferral.getEngine();
+			if (entry.peekEngine() != engine || !engine.isValid()) {
+				continue;	// the statemachine has changed and will be fully refreshed
+			}
+			if (visibleOnly) {
+				deferral.beginPass();
+			}
+			deferral.flush(applied, visibleOnly, getWriter(writers, engine));
+			metrics = AnimationMetricsRegistry.getDefault().getMetrics(entry.getMachineRoot());
+		}
+		if (metrics != null) {
+			applyWriters(writers, metrics);
+		}
+	}
+	
+	/**
+	 * Gets the deferral of an editor's changes for the current engine of its statemachine, creating or removing it
+	 * according to whether changes to off-screen elements are deferred. If changes are no longer deferred,
+	 * the pending changes are written.
+	 * 
+	 * @param entry
+	 * @param engine the current engine of the entry
+	 * @param writer the writer of the statemachine
+	 * @return the deferral or null if changes are not deferred
+	 */
+	private ViewportDeferral getDeferral(final AnimatedEditorRegistry.Entry entry, StatemachineAnimationEngine engine, AnimationArtifactWriter writer) {
+		ViewportDeferral deferral = entry.getDeferral();
+		if (deferral != null && deferral.getEngine() == engine) {
+			if (deferOffscreenChanges) {
+				return deferral;
+			}
+			if (entry.getAppliedSnapshot() != null) {
+				deferral.flush(entry.getAppliedSnapshot(), false, writer);
+			}
+			entry.setDeferral(null);
+			return null;
+		}
+		// the positions of a previous deferral are those of an old engine, whose snapshot has been discarded
+		deferral = deferOffscreenChanges && entry.getEditor() != null ?
+				new ViewportDeferral(entry.getEditor(), engine, new Runnable() {
+					@Override
+					public void run() {
+						flushDeferred(Collections.singletonList(entry), true);
+					}
+				}) :
+				null;
+		entry.setDeferral(deferral);
+		return deferral;
+	}
+	
+	/**
+	 * Gets the writer for the editing domain of an engine's statemachine, adding a new one to the writers if needed
+	 */
+	private static AnimationArtifactWriter getWriter(Map<TransactionalEditingDomain, AnimationArtifactWriter> writers, StatemachineAnimationEngine engine) {
+		TransactionalEditingDomain editingDomain = TransactionUtil.getEditingDomain(engine.getStatemachine());
+		AnimationArtifactWriter writer = writers.get(editingDomain);
+		if (writer == null) {
+			writer = new AnimationArtifactWriter(editingDomain);
+			writers.put(editingDomain, writer);
+		}
+		return writer;
+	}
+	
+	/**
+	 * Applies the changes collected by the writers, one transaction for each editing domain
+	 */
+	private static void applyWriters(Map<TransactionalEditingDomain, AnimationArtifactWriter> writers, AnimationMetrics metrics) {
+		for (AnimationArtifactWriter writer : writers.values()) {
+			if (writer.isEmpty()) continue;
+			int elements = writer.size();
+			long start = System.nanoTime();
+			writer.apply();
+			metrics.stop(AnimationMetrics.Timer.APPLY_ARTIFACTS, start);
+			metrics.countCommand(elements);
+		}
+	}
+	
+	/**
+	 * Shows the current counters of the heatmap of an editor's statemachine in its overlay.
+	 * This must be called in the UI thread.
+	 * 
+	 * @param entry
+	 */
+	private void refreshOverlay(AnimatedEditorRegistry.Entry entry) {
+		HeatmapOverlay overlay = entry.getOverlay();
+		if (overlay == null) {
+			return;
+		}
+		StatemachineAnimationEngine engine = entry.peekEngine();
+		Map<String, StatemachineHeatmap> machineHeatmaps = getHeatmaps(entry.getMachineRoot(), false);
+		StatemachineHeatmap heatmap = null;
+		synchronized (heatmaps) {
+			if (machineHeatmaps != null) {
+				heatmap = machineHeatmaps.get(entry.getKey());
+			}
+		}
+		if (heatmap != null && (!engine.isValid() || heatmap.getEngine() == null || !engine.matches(heatmap.getEngine()))) {
+			heatmap = null;		// the statemachine has changed and has not been counted since
+		}
+		overlay.refresh(heatmap, engine);
+	}
+	
+	/**
+	 * @return the entry of an editor that is attached to an animation, or null
+	 */
+	private AnimatedEditorRegistry.Entry getEntry(StatemachinesDiagramEditor editor) {
+		for (AnimatedEditorRegistry.Entry entry : registry.getAllEntries()) {
+			if (entry.getEditor() == editor) {
+				return entry;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Gets the mchRoot of the machine that the statemachine of the given editor translates to.
+	 * The translation target is only resolved again if the editor shows a different statemachine
+	 * (the part listener asks for it whenever an editor becomes visible).
+	 * 
+	 * @param smDiagramEditor
+	 * @return the mchRoot or null if there is none
+	 */
+	private IMachineRoot getTargetRoot(StatemachinesDiagramEditor smDiagramEditor) {
+		Diagram diagram = smDiagramEditor.getDiagram();
+		if (diagram == null || !(diagram.getElement() instanceof Statemachine)) {
+			return null;
+		}
+		Statemachine statemachine = (Statemachine) diagram.getElement();
+		synchronized (targets) {
+			TranslationTarget cached = targets.get(smDiagramEditor);
+			if (cached != null && cached.statemachine.get() == statemachine) {
+				return cached.mchRoot;
+			}
+		}
+		IMachineRoot mchRoot = host.getTranslationTarget(statemachine);
+		synchronized (targets) {
+			targets.put(smDiagramEditor, new TranslationTarget(statemachine, mchRoot));
+		}
+		return mchRoot;
+	}
+	
+	/**
+	 * The machine that a statemachine translates to
+	 * (the statemachine is held weakly as it may hold its editor through its editing domain)
+	 */
+	private static class TranslationTarget {
+		
+		private final WeakReference<Statemachine> statemachine;
+		private final IMachineRoot mchRoot;
 		
-		statemachine.eResource().setModified(false);
+		TranslationTarget(Statemachine statemachine, IMachineRoot mchRoot) {
+			this.statemachine = new WeakReference<Statemachine>(statemachine);
+			this.mchRoot = mchRoot;
+		}
 	}
 	
+	/**
+	 * Attaches the editor to the animation of mchRoot if its statemachine translates to that machine
+	 * and it is not already attached.
+	 * If the editor has unsaved changes it is not attached now; it is saved by the save job of the machine,
+	 * which attaches it afterwards.
+	 * 
+	 * @param mchRoot
+	 * @param smDiagramEditor
+	 * @return true if the editor has been attached
+	 */
+	private boolean attachEditor(IMachineRoot mchRoot, StatemachinesDiagramEditor smDiagramEditor) {
+		//if the statemachine translates to the Machine being animated...
+		if (!registry.hasMachine(mchRoot) || !mchRoot.equals(getTargetRoot(smDiagramEditor))) {
+			return false;
+		}
+		if (smDiagramEditor.isDirty()){
+			saveAndAttach(mchRoot, smDiagramEditor);
+			return false;
+		}
+		return attachSavedEditor(mchRoot, smDiagramEditor);
+	}
 	
 	/**
-	 * Updates the statemachines animation data attributes to indicate active states and enabled transitions
-	 * 		(The diagram listeners will automatically update the diagram). 
-	 * The resource is then set unmodified to prevent this appearing as an edit to the diagram.
+	 * Attaches an editor without unsaved changes to the animation of mchRoot
 	 * 
-	 * @param statemachine
-	 * @param currentState
-	 * @param operations
+	 * @param mchRoot
+	 * @param smDiagramEditor
+	 * @return true if the editor has been attached
 	 */
-	private void updateAnimationArtifacts(Statemachine statemachine, State_ currentState, List<Operation_> operations) {
-		TransactionalEditingDomain editingDomain = TransactionUtil.getEditingDomain(statemachine);
-		CompoundCommand cc = new CompoundCommand();
-
-		// arrange enabled operations into a map of operation names to list of operation signatures
-		Map<String, EList<Operation_>> enabledOperations = new HashMap<String, EList<Operation_>>();
-		for (Operation_ op : operations) {
-			if (!enabledOperations.containsKey(op.getName()))
-				enabledOperations.put(op.getName(), new BasicEList<Operation_>());
-			enabledOperations.get(op.getName()).add(op);
+	private boolean attachSavedEditor(IMachineRoot mchRoot, StatemachinesDiagramEditor smDiagramEditor) {
+		AnimatedEditorRegistry.Entry entry = registry.attach(mchRoot, smDiagramEditor);
+		if (entry == null) {
+			return false;	//already attached
 		}
+		//let the editor know that we are animating so that it doesn't try to save animation artifacts
+		smDiagramEditor.startAnimating();
+		if (traceDirectory != null) {
+			startRecording(entry);
+		}
+		return true;
+	}
+	
+	/**
+	 * Queues a dirty editor to be saved and attached by the save job of the machine, starting the job if needed
+	 * 
+	 * @param mchRoot
+	 * @param smDiagramEditor
+	 */
+	private void saveAndAttach(IMachineRoot mchRoot, StatemachinesDiagramEditor smDiagramEditor) {
+		SaveAndAttachJob saveJob;
+		synchronized (saveJobs) {
+			saveJob = saveJobs.get(mchRoot);
+			if (saveJob == null) {
+				saveJob = new SaveAndAttachJob(mchRoot);
+				saveJobs.put(mchRoot, saveJob);
+			}
+		}
+		if (saveJob.add(smDiagramEditor)) {
+			saveJob.schedule();
+		}
+	}
+	
+	/**
+	 * A job that saves the dirty statemachine editors of an animated machine one at a time and attaches each
+	 * of them to the animation as soon as it has been saved, so that it shows the current state of the animation
+	 * without waiting for the others. The saves are made in the UI thread (as editors require), but the UI
+	 * remains responsive between them and the progress is shown.
+	 * If the job is canceled, the editors that have not been saved are not attached, and they are not
+	 * queued again while the machine is animated (unless they are saved by the user).
+	 */
+	private class SaveAndAttachJob extends Job {
 		
-		// map of active states - with instances currently in that state if lifted, or just TRUE if not lifted
-		Map<String, Object> activeStates = getActiveStates(statemachine, currentState.getAllValues());
+		private final IMachineRoot mchRoot;
+		// the editors waiting to be saved, and those that have been declined by canceling the job or failed to save
+		private final List<StatemachinesDiagramEditor> queue = new ArrayList<StatemachinesDiagramEditor>();
+		private final Set<StatemachinesDiagramEditor> declined = Collections.newSetFromMap(new WeakHashMap<StatemachinesDiagramEditor, Boolean>());
 		
-		boolean lifted = statemachine.getInstances()!=null;
-		// update states
-		for (EObject object : statemachine.getAllContained(StatemachinesPackage.Literals.STATE, true)) {
-			if (object == null) continue;
-			String name = ((ac.soton.eventb.statemachines.State) object).getName();	
-			EList<String> ins = new BasicEList<String>();					
-			if (lifted){
-				if (activeStates.get(name) instanceof String){
-					ins.add((String)activeStates.get(name));
-				}else{
-					ins.add("\u2205");	// this may be already done by getActiveStates() but if not default to empty
-				}
+		SaveAndAttachJob(IMachineRoot mchRoot) {
+			super("Saving statemachine diagrams of " + mchRoot.getComponentName() + " for animation"); //$NON-NLS-1$ //$NON-NLS-2$
+			this.mchRoot = mchRoot;
+			setUser(true);
+			setPriority(Job.INTERACTIVE);
+		}
+		
+		/**
+		 * @return false if the editor is already queued or has been declined
+		 */
+		synchronized boolean add(StatemachinesDiagramEditor editor) {
+			if (queue.contains(editor) || declined.contains(editor)) {
+				return false;
 			}
-			boolean active = activeStates.containsKey(name) && !"FALSE".equals(activeStates.get(name)) && !"\u2205".equals(activeStates.get(name));
-			cc.append(SetCommand.create(editingDomain, object, StatemachinesPackage.Literals.STATE__ACTIVE_INSTANCES, ins));
-			cc.append(SetCommand.create(editingDomain, object, StatemachinesPackage.Literals.STATE__ACTIVE, active));					
+			queue.add(editor);
+			return true;
 		}
-
-		//update transitions so we know which are active below
-		for (EObject object : statemachine.getAllContained(StatemachinesPackage.Literals.TRANSITION, true)) {
-			if (object == null) continue;
-			Transition transition = (Transition) object;
-			// collect enabled operations
-			EList<Operation_> ops = new BasicEList<Operation_>();
-			for (Event event : transition.getElaborates()) {
-				if (enabledOperations.containsKey(event.getName()))
-					ops.addAll(enabledOperations.get(event.getName()));
-			}
-			// set operations
-			cc.append(SetCommand.create(editingDomain, transition, StatemachinesPackage.Literals.TRANSITION__OPERATIONS, ops));
-		}	
-		editingDomain.getCommandStack().execute(cc);
-		statemachine.eResource().setModified(false);	//this was not an edit
-	}
-	
-	/**
-	 * Gets the active states as a Map from state name to active instances (or TRUE if not lifted)
-	 * 
-	 * @param animator
-	 * @param statemachine
-	 * @param variables
-	 * @param type
-	 * @return
-	 */
-	private Map<String,Object> getActiveStates(Statemachine statemachine, Map<String, String> variables) {
-		//retrieve a map of active states to instances for all state-machine states	
-		Map<String,Object> activeStates = new HashMap<String,Object>();
-		TranslationKind type = statemachine.getTranslation();
-		boolean lifted = statemachine.getInstances()!=null; 
 		
-		if (type == TranslationKind.SINGLEVAR) {
-			// add state of root statemachine
-			if (variables.containsKey(statemachine.getName())){
-				String smValue = variables.get(statemachine.getName());
-				if (lifted){
-					activeStates.putAll(parseSmFn(smValue));					
-				} else {
-					activeStates.put(smValue, "TRUE");
+		/* (non-Javadoc)
+		 * @see org.eclipse.core.runtime.jobs.Job#run(org.eclipse.core.runtime.IProgressMonitor)
+		 */
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			final SubMonitor progress = SubMonitor.convert(monitor, getName(), 1);
+			while (true) {
+				final StatemachinesDiagramEditor editor;
+				synchronized (this) {
+					if (monitor.isCanceled()) {
+						declined.addAll(queue);
+						queue.clear();
+						return Status.CANCEL_STATUS;
+					}
+					if (queue.isEmpty()) {
+						break;
+					}
+					editor = queue.remove(0);
+					progress.setWorkRemaining(queue.size() + 1);
+				}
+				final IProgressMonitor saveMonitor = progress.newChild(1);
+				final boolean[] attached = {false};
+				boolean run = host.syncExec(new Runnable() {
+					@Override
+					public void run() {
+						if (!registry.hasMachine(mchRoot) || editor.getDiagram() == null) {
+							return;		// the animation has stopped or the editor has been closed
+						}
+						progress.subTask(editor.getTitle());
+						if (editor.isDirty()) {
+							editor.doSave(saveMonitor);
+						}
+						if (editor.isDirty()) {
+							synchronized (SaveAndAttachJob.this) {
+								declined.add(editor);	// not saved
+							}
+						} else if (mchRoot.equals(getTargetRoot(editor))) {
+							attached[0] = attachSavedEditor(mchRoot, editor);
+						}
+					}
+				});
+				if (!run) {
+					break;		// the workbench has closed
+				}
+				if (attached[0]) {
+					// bring the editor up to the current state of the animation now
+					refreshAnimation(mchRoot);
 				}
 			}
-			// add states of all nested statemachines
-			for (EObject object : statemachine.getAllContained(StatemachinesPackage.Literals.STATEMACHINE, true)) {
-				if (object == null) continue;
-				String statemachineName = ((EventBNamed) object).getName();
-				if (variables.containsKey(statemachineName)) {
-					String smValue = variables.get(statemachineName);
-					if (lifted){
-						activeStates.putAll(parseSmFn(smValue));					
-					} else {
-						activeStates.put(smValue, "TRUE");
+			monitor.done();
+			return Status.OK_STATUS;
+		}
+	}
+	
+	/**
+	 * Starts recording the animation trace of the statemachine of an attached editor in a new file
+	 * (the state and transition positions are those of its current engine)
+	 * 
+	 * @param entry
+	 * @return the recorder or null if the trace file could not be created
+	 */
+	private StatemachineTraceRecorder startRecording(AnimatedEditorRegistry.Entry entry) {
+		File directory = traceDirectory;
+		if (directory == null) {
+			entry.setRecorder(null);
+			return null;
+		}
+		StatemachineAnimationEngine engine = entry.getEngine();
+		File file = new File(directory, entry.getMachineRoot().getComponentName() + "." + //$NON-NLS-1$
+				engine.getStatemachine().getName() + "." + System.currentTimeMillis() + "-" + traceCount.incrementAndGet() + ".smtrace"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		StatemachineTraceRecorder recorder = null;
+		try {
+			directory.mkdirs();
+			recorder = new StatemachineTraceRecorder(file, engine);
+		} catch (IOException e) {
+			StatemachineAnimationPlugin.logError("Failed to create statemachine animation trace " + file, e); //$NON-NLS-1$
+		}
+		entry.setRecorder(recorder);
+		return recorder;
+	}
+	
+	/**
+	 * Records a step of the animation of a machine in the traces of its attached statemachines, and counts it in
+	 * their heatmaps if heatmaps are counted. This is called by the step queue of the machine, one step at a time
+	 * in the order of the steps. The snapshot of each statemachine is computed once, however many editors show it,
+	 * unless their copies of the statemachine differ. If the structure of a statemachine has changed since its trace
+	 * (or heatmap) was started, a new trace (or heatmap) is started.
+	 * 
+	 * @param mchRoot
+	 * @param step
+	 * @param previous the snapshot of the previous step of each statemachine (by key), which is updated to this step
+	 */
+	void processStep(IMachineRoot mchRoot, AnimationStepQueue.Step step, final Map<String, StatemachineSnapshot> previous) {
+		if (step.restart) {
+			resetHeatmaps(mchRoot);
+		}
+		Map<String, String> variables = step.variables;
+		List<Operation_> operations = step.operations;
+		boolean counted = step.counted && heatmapEnabled;
+		// the engine that computed the snapshot of each statemachine for this step
+		Map<String, StatemachineAnimationEngine> sources = new HashMap<String, StatemachineAnimationEngine>();
+		for (final AnimatedEditorRegistry.Entry entry : registry.getEntries(mchRoot)) {
+			final String key = entry.getKey();
+			StatemachineTraceRecorder recorder = entry.getRecorder();
+			boolean record = recorder != null && (step.counted || recorder.getStepCount() == 0);
+			StatemachineAnimationEngine source = sources.get(key);
+			if (!record && !(counted && source == null)) {
+				continue;
+			}
+			if (variables == null) {
+				AnimationMetrics metrics = AnimationMetricsRegistry.getDefault().getMetrics(mchRoot);
+				long start = System.nanoTime();
+				variables = host.getVariables(mchRoot);
+				operations = host.getEnabledOperations(mchRoot);
+				metrics.stop(AnimationMetrics.Timer.ANIMATOR_QUERY, start);
+			}
+			StatemachineAnimationEngine engine = entry.peekEngine();
+			if (source != null && engine.isValid() && entry.canShare(source) && (recorder == null || recorder.getEngine() == engine)) {
+				recordStep(entry, previous.get(key));
+				continue;
+			}
+			final Map<String, String> stepVariables = variables;
+			final List<Operation_> stepOperations = operations;
+			final StatemachineAnimationEngine[] computed = new StatemachineAnimationEngine[1];
+			final StatemachineSnapshot[] snapshot = new StatemachineSnapshot[1];
+			runExclusive(entry, new Runnable() {
+				@Override
+				public void run() {
+					StatemachineAnimationEngine engine = entry.getEngine();
+					StatemachineTraceRecorder recorder = entry.getRecorder();
+					if (recorder != null && recorder.getEngine() != engine) {
+						startRecording(entry);
 					}
+					snapshot[0] = engine.map(stepVariables, stepOperations, previous.get(key), null);
+					computed[0] = engine;
+				}
+			});
+			if (snapshot[0] == null) {
+				continue;
+			}
+			recorder = entry.getRecorder();
+			if (recorder != null && (step.counted || recorder.getStepCount() == 0)) {
+				recordStep(entry, snapshot[0]);
+			}
+			if (source == null) {
+				sources.put(key, computed[0]);
+				previous.put(key, snapshot[0]);
+				if (counted) {
+					countStep(mchRoot, entry, computed[0], snapshot[0]);
 				}
 			}
 		}
-		
-		else if (type == TranslationKind.REFINEDVAR) {			//REFINEDVAR is no longer being supported - may remove at some time
-			//find refinement level of this machine
-//			Machine m = animator.getMachine();
-//			int refinementLevel = 0;
-//			while(m.getRefines().size() != 0){
-//				m = m.getRefines().get(0);
-//				refinementLevel++;
-//			}
-//			// add state of root statemachine
-//			if (variables.containsKey((statemachine.getName() + "_" + refinementLevel))){
-//				for(Variable variable : variables.values()){
-//					if(variable.getValue().equals(variables.get(statemachine.getName() + "_" + refinementLevel).getValue()) && !variable.getIdentifier().equals(statemachine.getName() + "_" + refinementLevel))
-//						activeStates.put(variable.getIdentifier(), "TRUE");
-//				}
-//			}
-//			// add states of all nested statemachines
-//			for (EObject object : statemachine.getAllContained(StatemachinesPackage.Literals.STATEMACHINE, true)) {
-//				if (object == null) continue;
-//				String statemachineName = ((EventBNamed) object).getName() + "_" + refinementLevel;
-//				if (variables.containsKey(statemachine))
-//					activeStates.put(variables.get(statemachineName).getValue(), "TRUE");
-//			}
-//			
-		} else if (type == TranslationKind.MULTIVAR) {
-			for (EObject object : statemachine.getAllContained(StatemachinesPackage.Literals.STATE, true)) {
-				if (object == null) continue;
-				String stateName = ((ac.soton.eventb.statemachines.State) object).getName();	
-				String stateStatusVar = variables.get(stateName);
-				if (stateStatusVar != null){
-					activeStates.put(stateName, stateStatusVar);					
+	}
+	
+	/**
+	 * Records a snapshot as the next step of the trace of an attached statemachine, if it is being recorded
+	 * 
+	 * @param entry
+	 * @param snapshot the snapshot of the step, computed for the engine of the trace (or one that matches it)
+	 */
+	private void recordStep(AnimatedEditorRegistry.Entry entry, StatemachineSnapshot snapshot) {
+		StatemachineTraceRecorder recorder = entry.getRecorder();
+		if (recorder == null) {
+			return;
+		}
+		synchronized (recorder) {
+			if (entry.getRecorder() != recorder) {
+				return;	// closed since (e.g. the editor has been detached)
+			}
+			try {
+				recorder.record(snapshot);
+			} catch (IOException e) {
+				StatemachineAnimationPlugin.logError("Failed to record statemachine animation trace", e); //$NON-NLS-1$
+				entry.setRecorder(null);
+			}
+		}
+	}
+	
+	/**
+	 * Counts the snapshot of a step of an attached statemachine in its heatmap.
+	 * Each statemachine is counted once, however many editors show it, and nothing is read from the statemachine
+	 * unless a heatmap has to be created. If the structure of the statemachine has changed since its heatmap was
+	 * created, a new heatmap is started.
+	 * 
+	 * @param mchRoot
+	 * @param entry an entry of the statemachine
+	 * @param engine the engine that computed the snapshot
+	 * @param snapshot
+	 */
+	private void countStep(IMachineRoot mchRoot, AnimatedEditorRegistry.Entry entry, final StatemachineAnimationEngine engine, StatemachineSnapshot snapshot) {
+		Map<String, StatemachineHeatmap> machineHeatmaps = getHeatmaps(mchRoot, true);
+		StatemachineHeatmap heatmap;
+		synchronized (heatmaps) {
+			heatmap = machineHeatmaps.get(entry.getKey());
+			if (heatmap != null && heatmap.getEngine() != null && heatmap.getEngine() != engine && engine.matches(heatmap.getEngine())) {
+				// count with the copy of the statemachine that the snapshot was computed for
+				heatmap.setEngine(engine);
+			}
+		}
+		if (heatmap == null || heatmap.getEngine() != engine) {
+			// the heatmap takes the names of the states and transitions from the statemachine
+			final StatemachineHeatmap[] created = new StatemachineHeatmap[1];
+			runExclusive(entry, new Runnable() {
+				@Override
+				public void run() {
+					created[0] = new StatemachineHeatmap(engine);
 				}
+			});
+			if (created[0] == null) {
+				return;
+			}
+			heatmap = created[0];
+			synchronized (heatmaps) {
+				machineHeatmaps.put(entry.getKey(), heatmap);
 			}
-		} else {
-			//un-supported translation kind - do nothing
 		}
-		return activeStates;
+		heatmap.countStep(snapshot);
 	}
-
+	
+	/**
+	 * Runs a read of the statemachine of an entry in an exclusive transaction of its editing domain
+	 */
+	private static void runExclusive(AnimatedEditorRegistry.Entry entry, Runnable read) {
+		TransactionalEditingDomain editingDomain = TransactionUtil.getEditingDomain(entry.peekEngine().getStatemachine());
+		try {
+			if (editingDomain == null) {
+				read.run();
+			} else {
+				editingDomain.runExclusive(read);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
 	/**
-	 * Parses the input string to convert the string value of a function
-	 * into a map from state names to a string representation of the set of instances in that state
-	 * 
-	 * ASSUMES that the state part is a simple string (i.e. contains no maplet).
-	 * (the instance could be any type including maplets etc.)
-	 * 
-	 * @param smValue
-	 * @return
-	 */
-	private Map<String, String> parseSmFn(String smValue) {
-		Map<String,String> ret = new HashMap<String,String>();
-		if (smValue.startsWith("{")) smValue = smValue.substring(1);
-		if (smValue.startsWith("}",smValue.length()-1)) smValue = smValue.substring(0,smValue.length()-1);		
-		String[] result = smValue.split(",");
-	     for (int x=0; x<result.length; x++){
-	 		if (result[x].startsWith("(")) result[x] = result[x].substring(1);
-			if (result[x].startsWith(")",result[x].length()-1)) result[x] = result[x].substring(0,result[x].length()-1);
-			int i = result[x].lastIndexOf("\u21a6");
-			if (i<0) continue;
-	    	String ins = result[x].substring(0,i);
-	    	String stateName = result[x].substring(i+1);
-	    	String instances = ret.get(stateName);
-	    	if (instances==null){
-	    		instances = "{"+ins+"}";
-	    	}else{
-	    		instances = instances.substring(0, instances.length()-1);
-	    		instances = instances+","+ins+"}";
-	    	}
-	    	ret.put(stateName, instances);
-	     }
-		return ret;
+	 * Gets the heatmaps of the statemachines of a machine
+	 * 
+	 * @param mchRoot
+	 * @param create true to create an empty map if the machine has none
+	 * @return the map of the heatmaps by statemachine key (only used while synchronized on the heatmaps), or null
+	 */
+	private Map<String, StatemachineHeatmap> getHeatmaps(IMachineRoot mchRoot, boolean create) {
+		synchronized (heatmaps) {
+			Map<String, StatemachineHeatmap> machineHeatmaps = heatmaps.get(mchRoot);
+			if (machineHeatmaps == null && create) {
+				machineHeatmaps = new LinkedHashMap<String, StatemachineHeatmap>();
+				heatmaps.put(mchRoot, machineHeatmaps);
+			}
+			return machineHeatmaps;
+		}
 	}
+	
+	/**
+	 * Sets the counters of the heatmaps of a machine to zero
+	 */
+	private void resetHeatmaps(IMachineRoot mchRoot) {
+		synchronized (heatmaps) {
+			Map<String, StatemachineHeatmap> machineHeatmaps = heatmaps.get(mchRoot);
+			if (machineHeatmaps != null) {
+				for (StatemachineHeatmap heatmap : machineHeatmaps.values()) {
+					heatmap.reset();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return the trace directory given by the system property ac.soton.eventb.statemachines.animation.traceDirectory, or null
+	 */
+	private static File getDefaultTraceDirectory() {
+		String directory = System.getProperty("ac.soton.eventb.statemachines.animation.traceDirectory"); //$NON-NLS-1$
+		return directory == null || directory.isEmpty() ? null : new File(directory);
+	}
+	
+	/**
+	 * Listens for statemachine editors that are opened or restored while an animation is running
+	 * and attaches them to the animation of their machine.
+	 * Editors that are closed are detached so that they are not retained by the animation,
+	 * and editors whose diagram is replaced are attached again with their new statemachine.
+	 */
+	private class EditorPartListener implements IPartListener2 {
+
+		private void partAvailable(IWorkbenchPartReference partRef) {
+			IWorkbenchPart part = partRef.getPart(false);
+			if (!(part instanceof StatemachinesDiagramEditor)) return;
+			StatemachinesDiagramEditor smDiagramEditor = (StatemachinesDiagramEditor) part;
+			IMachineRoot mchRoot = getTargetRoot(smDiagramEditor);
+			if (mchRoot != null && attachEditor(mchRoot, smDiagramEditor)) {
+				// bring the new editor up to the current state of the animation
+				refreshAnimation(mchRoot);
+			}
+		}
 
+		@Override
+		public void partOpened(IWorkbenchPartReference partRef) {
+			partAvailable(partRef);
+		}
+
+		@Override
+		public void partVisible(IWorkbenchPartReference partRef) {
+			partAvailable(partRef);
+		}
+
+		@Override
+		public void partActivated(IWorkbenchPartReference partRef) {
+		}
+
+		@Override
+		public void partBroughtToTop(IWorkbenchPartReference partRef) {
+		}
+
+		@Override
+		public void partClosed(IWorkbenchPartReference partRef) {
+			IWorkbenchPart part = partRef.getPart(false);
+			if (part instanceof StatemachinesDiagramEditor) {
+				registry.detach((StatemachinesDiagramEditor) part);
+				synchronized (targets) {
+					targets.remove(part);
+				}
+			}
+		}
+
+		@Override
+		public void partDeactivated(IWorkbenchPartReference partRef) {
+		}
+
+		@Override
+		public void partHidden(IWorkbenchPartReference partRef) {
+		}
+
+		@Override
+		public void partInputChanged(IWorkbenchPartReference partRef) {
+			IWorkbenchPart part = partRef.getPart(false);
+			if (part instanceof StatemachinesDiagramEditor && registry.checkInput((StatemachinesDiagramEditor) part)) {
+				// attach the editor's new statemachine (if it belongs to an animated machine)
+				partAvailable(partRef);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the deferred changes of all animated diagrams before an editor is saved,
+	 * so that the saved statemachines are fully up to date
+	 */
+	private class SaveListener implements IExecutionListener {
+		
+		@Override
+		public void preExecute(String commandId, ExecutionEvent event) {
+			if (IWorkbenchCommandConstants.FILE_SAVE.equals(commandId) || IWorkbenchCommandConstants.FILE_SAVE_ALL.equals(commandId)) {
+				flushDeferred(registry.getAllEntries(), false);
+			}
+		}
+		
+		@Override
+		public void postExecuteSuccess(String commandId, Object returnValue) {
+		}
+		
+		@Override
+		public void postExecuteFailure(String commandId, ExecutionException exception) {
+		}
+		
+		@Override
+		public void notHandled(String commandId, NotHandledException exception) {
+		}
+	}
+	
+	/**
+	 * Clears all animation data by un-setting the active states and transition operations attributes
+	 * (The changes are not recorded for undo and do not appear as an edit to the diagram)
+	 * 
+	 * @param entry
+	 */
+	private void clearAnimationArtifacts(AnimatedEditorRegistry.Entry entry) {
+		
+		if (!entry.isLive()) {		// the diagram may be closed by now
+			return;
+		}
+		clearAnimationArtifacts(entry.getEngine());
+		entry.setAppliedSnapshot(null);
+	}
+	
+	/**
+	 * Clears all animation data of the statemachine of an engine
+	 * (also used when a trace replay ends)
+	 * 
+	 * @param engine
+	 */
+	static void clearAnimationArtifacts(StatemachineAnimationEngine engine) {
+		AnimationArtifactWriter writer = new AnimationArtifactWriter(engine.getStatemachine());
+		
+		// clear active states
+		for (State object : engine.getStates()) {
+			writer.unsetState(object);
+		}
+		
+		// clear enabled transitions
+		for (Transition object : engine.getTransitions()) {
+			writer.unsetOperations(object);
+		}
+		writer.apply();
+	}
+	
+	
+	/**
+	 * Writes the animation data attributes of the snapshot to the statemachine 
+	 * 		(The diagram listeners will automatically update the diagram). 
+	 * Only the attributes that differ from the applied snapshot are written.
+	 * (The changes are not recorded for undo and do not appear as an edit to the diagram)
+	 * 
+	 * @param engine the engine that computed the snapshot
+	 * @param applied the snapshot that was last written to the statemachine, or null for a full refresh
+	 * @param snapshot
+	 * @param writer
+	 * (package visible so that it can be used by trace replays and measured by the benchmarks fragment)
+	 */
+	static void writeSnapshot(StatemachineAnimationEngine engine, StatemachineSnapshot applied, StatemachineSnapshot snapshot, AnimationArtifactWriter writer) {
+		writeSnapshot(engine, applied, snapshot, writer, null);
+	}
+	
+	/**
+	 * Writes the animation data attributes of the snapshot to the statemachine, deferring the changes
+	 * of elements that are not visible. Pending changes of elements that have come into view are also written.
+	 * 
+	 * @param engine the engine that computed the snapshot
+	 * @param applied the snapshot that was last written to the statemachine, or null for a full refresh
+	 * @param snapshot
+	 * @param writer
+	 * @param deferral the deferral of the diagram (after {@link ViewportDeferral#beginPass()}), or null to write all changes
+	 */
+	static void writeSnapshot(StatemachineAnimationEngine engine, StatemachineSnapshot applied, StatemachineSnapshot snapshot, AnimationArtifactWriter writer, ViewportDeferral deferral) {
+		// update states
+		List<State> states = engine.getStates();
+		if (applied == null) {
+			for (int i=0; i<states.size(); i++) {
+				writeState(states, snapshot, i, writer, deferral);
+			}
+		} else {
+			// inactive states have the same values in both snapshots, so only states active in either can differ
+			// states that are active now
+			for (int n=0; n<snapshot.getActiveCount(); n++) {
+				int i = snapshot.getActive(n);
+				if (!snapshot.sameState(applied, i)) {
+					writeState(states, snapshot, i, writer, deferral);
+				}
+			}
+			// states that were active at the last update but are not now
+			for (int n=0; n<applied.getActiveCount(); n++) {
+				int i = applied.getActive(n);
+				if (!snapshot.isActive(i) && !snapshot.sameState(applied, i)) {
+					writeState(states, snapshot, i, writer, deferral);
+				}
+			}
+		}
 
+		// set operations
+		List<Transition> transitions = engine.getTransitions();
+		if (applied == null) {
+			for (int i=0; i<transitions.size(); i++) {
+				writeOperations(transitions, snapshot, i, writer, deferral);
+			}
+		} else {
+			// transitions that are enabled now
+			for (int n=0; n<snapshot.getEnabledCount(); n++) {
+				int i = snapshot.getEnabled(n);
+				if (!snapshot.sameOperations(applied, i)) {
+					writeOperations(transitions, snapshot, i, writer, deferral);
+				}
+			}
+			// transitions that were enabled at the last update but are not now
+			for (int n=0; n<applied.getEnabledCount(); n++) {
+				int i = applied.getEnabled(n);
+				if (snapshot.getOperations(i) == null) {
+					writeOperations(transitions, snapshot, i, writer, deferral);
+				}
+			}
+		}
+		
+		if (deferral != null) {
+			// elements that have come into view since their changes were deferred
+			deferral.flush(snapshot, true, writer);
+		}
+	}
+	
+	private static void writeState(List<State> states, StatemachineSnapshot snapshot, int i, AnimationArtifactWriter writer, ViewportDeferral deferral) {
+		boolean visible = deferral == null || deferral.isStateVisible(i);
+		if (visible) {
+			writeState(states.get(i), snapshot, i, writer);
+		}
+		if (deferral != null) {
+			deferral.setStatePending(i, !visible);
+		}
+	}
+	
+	private static void writeOperations(List<Transition> transitions, StatemachineSnapshot snapshot, int i, AnimationArtifactWriter writer, ViewportDeferral deferral) {
+		boolean visible = deferral == null || deferral.isTransitionVisible(i);
+		if (visible) {
+			List<Operation_> ops = snapshot.getOperations(i);
+			writer.setOperations(transitions.get(i), ops == null ? new BasicEList<Operation_>() : ops);
+		}
+		if (deferral != null) {
+			deferral.setTransitionPending(i, !visible);
+		}
+	}
+	
+	static void writeState(State state, StatemachineSnapshot snapshot, int i, AnimationArtifactWriter writer) {
+		EList<String> ins = new BasicEList<String>();
+		if (snapshot.getLabel(i) != null) {
+			ins.add(snapshot.getLabel(i));
+		}
+		writer.setActiveInstances(state, ins);
+		writer.setActive(state, snapshot.isActive(i));
+	}
+	
 }
@@ -0,0 +1,295 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.participants;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.eclipse.draw2d.FigureCanvas;
+import org.eclipse.draw2d.IFigure;
+import org.eclipse.draw2d.geometry.Rectangle;
+import org.eclipse.emf.common.util.BasicEList;
+import org.eclipse.gef.EditPartViewer;
+import org.eclipse.gef.editparts.ZoomListener;
+import org.eclipse.gef.editparts.ZoomManager;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.widgets.Control;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Listener;
+
+import ac.soton.eventb.probsupport.data.Operation_;
+import ac.soton.eventb.statemachines.State;
+import ac.soton.eventb.statemachines.Transition;
+import ac.soton.eventb.statemachines.animation.engine.StatemachineAnimationEngine;
+import ac.soton.eventb.statemachines.animation.engine.StatemachineSnapshot;
+import ac.soton.eventb.statemachines.diagram.part.StatemachinesDiagramEditor;
+
+/**
+ * Defers the animation changes of the states and transitions of a diagram that are scrolled out of view.
+ *
+ * Changes to the elements whose figures intersect the visible part of the diagram are written immediately.
+ * The other elements are only marked as pending, and are written later from the applied snapshot: when
+ * they are scrolled into view, when the animation has been idle for a while, or before the animation stops
+ * or the diagram is saved. Elements that have no figure in the diagram are always written immediately.
+ *
+ * The pending positions are those of the engine that the deferral was created for.
+ * Visibility can only be checked in the UI thread, after {@link #beginPass()}.
+ * The visibility of each element is worked out once and kept until the diagram is scrolled, zoomed
+ * or resized, or a figure is moved, so that passes over an unchanged viewport do not visit the figures.
+ *
+ * @author cfsnook
+ *
+ */
+class ViewportDeferral {
+
+	private final StatemachinesDiagramEditor editor;
+	private final StatemachineAnimationEngine engine;
+	private final Runnable onViewportChanged;
+
+	// positions whose attributes in the statemachine differ from the applied snapshot
+	private final BitSet pendingStates = new BitSet();
+	private final BitSet pendingTransitions = new BitSet();
+
+	// the edit parts of the states and transitions
+	private DiagramEditParts parts = null;
+
+	// the visible part of the diagram in absolute coordinates
+	private Rectangle visibleArea = null;
+
+	// the visibility of each state and transition in the visible area (UNKNOWN until it is checked)
+	private static final byte UNKNOWN = 0;
+	private static final byte VISIBLE = 1;
+	private static final byte HIDDEN = 2;
+	private final byte[] stateVisibility;
+	private final byte[] transitionVisibility;
+	private boolean visibilityValid = false;
+
+	private FigureCanvas canvas = null;
+	private ZoomManager zoomManager = null;
+	private boolean viewportChangePosted = false;
+
+	private final PropertyChangeListener scrollListener = new PropertyChangeListener() {
+		@Override
+		public void propertyChange(PropertyChangeEvent evt) {
+			viewportChanged();
+		}
+	};
+
+	private final Listener resizeListener = new Listener() {
+		@Override
+		public void handleEvent(Event event) {
+			viewportChanged();
+		}
+	};
+
+	private final ZoomListener zoomListener = new ZoomListener() {
+		@Override
+		public void zoomChanged(double zoom) {
+			viewportChanged();
+		}
+	};
+
+	/**
+	 * Creates a deferral for the diagram of an editor and starts listening to its viewport.
+	 * Must be called in the UI thread.
+	 *
+	 * @param editor
+	 * @param engine the engine of the statemachine of the editor
+	 * @param onViewportChanged run (in the UI thread) when the diagram has been scrolled, zoomed or resized
+	 * 			while changes are pending
+	 */
+	ViewportDeferral(StatemachinesDiagramEditor editor, StatemachineAnimationEngine engine, Runnable onViewportChanged) {
+		this.editor = editor;
+		this.engine = engine;
+		this.onViewportChanged = onViewportChanged;
+		stateVisibility = new byte[engine.getStates().size()];
+		transitionVisibility = new byte[engine.getTransitions().size()];
+		EditPartViewer viewer = editor.getDiagramGraphicalViewer();
+		Control control = viewer == null ? null : viewer.getControl();
+		if (control instanceof FigureCanvas && !control.isDisposed()) {
+			canvas = (FigureCanvas) control;
+			canvas.getViewport().getHorizontalRangeModel().addPropertyChangeListener(scrollListener);
+			canvas.getViewport().getVerticalRangeModel().addPropertyChangeListener(scrollListener);
+			canvas.addListener(SWT.Resize, resizeListener);
+			Object zoom = viewer.getProperty(ZoomManager.class.toString());
+			if (zoom instanceof ZoomManager) {
+				zoomManager = (ZoomManager) zoom;
+				zoomManager.addZoomListener(zoomListener);
+			}
+		}
+	}
+
+	/**
+	 * @return the engine whose positions are deferred
+	 */
+	StatemachineAnimationEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * @return true if any changes have been deferred and not yet written
+	 */
+	synchronized boolean hasPending() {
+		return !pendingStates.isEmpty() || !pendingTransitions.isEmpty();
+	}
+
+	/**
+	 * Gets the visible part of the diagram, so that the visibility of elements can be checked.
+	 * The edit parts of the elements are found again if the diagram has been rebuilt, and the
+	 * visibility of the elements is checked again if the viewport or any of their figures has changed.
+	 * Must be called in the UI thread.
+	 */
+	void beginPass() {
+		if (canvas == null || canvas.isDisposed()) {
+			visibleArea = null;
+			return;
+		}
+		if (parts == null || !parts.isCurrent()) {
+			if (parts != null) parts.dispose();
+			parts = new DiagramEditParts(editor, engine);
+			visibilityValid = false;
+		}
+		if (parts.clearMoved()) {
+			visibilityValid = false;
+		}
+		if (!visibilityValid) {
+			org.eclipse.swt.graphics.Rectangle clientArea = canvas.getClientArea();
+			visibleArea = new Rectangle(clientArea.x, clientArea.y, clientArea.width, clientArea.height);
+			Arrays.fill(stateVisibility, UNKNOWN);
+			Arrays.fill(transitionVisibility, UNKNOWN);
+			visibilityValid = true;
+		}
+	}
+
+	/**
+	 * @return true if the state at position i is visible (or cannot be deferred)
+	 */
+	boolean isStateVisible(int i) {
+		if (visibleArea == null || parts == null) return true;
+		if (stateVisibility[i] == UNKNOWN) {
+			stateVisibility[i] = isVisible(parts.getStateFigure(i)) ? VISIBLE : HIDDEN;
+		}
+		return stateVisibility[i] == VISIBLE;
+	}
+
+	/**
+	 * @return true if the transition at position i is visible (or cannot be deferred)
+	 */
+	boolean isTransitionVisible(int i) {
+		if (visibleArea == null || parts == null) return true;
+		if (transitionVisibility[i] == UNKNOWN) {
+			transitionVisibility[i] = isVisible(parts.getTransitionFigure(i)) ? VISIBLE : HIDDEN;
+		}
+		return transitionVisibility[i] == VISIBLE;
+	}
+
+	/**
+	 * Records whether the attributes of the state at position i have been written or deferred
+	 */
+	synchronized void setStatePending(int i, boolean pending) {
+		pendingStates.set(i, pending);
+	}
+
+	/**
+	 * Records whether the operations of the transition at position i have been written or deferred
+	 */
+	synchronized void setTransitionPending(int i, boolean pending) {
+		pendingTransitions.set(i, pending);
+	}
+
+	/**
+	 * Writes the pending changes from the applied snapshot
+	 *
+	 * @param applied the snapshot that was last applied to the statemachine
+	 * @param visibleOnly true to write only the changes of visible elements (after {@link #beginPass()}),
+	 * 			false to write all the pending changes
+	 * @param writer
+	 */
+	synchronized void flush(StatemachineSnapshot applied, boolean visibleOnly, AnimationArtifactWriter writer) {
+		List<State> states = engine.getStates();
+		for (int i = pendingStates.nextSetBit(0); i >= 0; i = pendingStates.nextSetBit(i + 1)) {
+			if (!visibleOnly || isStateVisible(i)) {
+				StatemachineAnimationParticipant.writeState(states.get(i), applied, i, writer);
+				pendingStates.clear(i);
+			}
+		}
+		List<Transition> transitions = engine.getTransitions();
+		for (int i = pendingTransitions.nextSetBit(0); i >= 0; i = pendingTransitions.nextSetBit(i + 1)) {
+			if (!visibleOnly || isTransitionVisible(i)) {
+				List<Operation_> ops = applied.getOperations(i);
+				writer.setOperations(transitions.get(i), ops == null ? new BasicEList<Operation_>() : ops);
+				pendingTransitions.clear(i);
+			}
+		}
+	}
+
+	/**
+	 * Stops listening to the viewport and the figures. Pending changes are discarded.
+	 */
+	void dispose() {
+		synchronized (this) {
+			pendingStates.clear();
+			pendingTransitions.clear();
+		}
+		if (canvas == null) return;
+		final FigureCanvas c = canvas;
+		final ZoomManager z = zoomManager;
+		canvas = null;
+		zoomManager = null;
+		Runnable remove = new Runnable() {
+			@Override
+			public void run() {
+				if (parts != null) {
+					parts.dispose();
+					parts = null;
+				}
+				if (z != null) {
+					z.removeZoomListener(zoomListener);
+				}
+				if (c.isDisposed()) return;
+				c.getViewport().getHorizontalRangeModel().removePropertyChangeListener(scrollListener);
+				c.getViewport().getVerticalRangeModel().removePropertyChangeListener(scrollListener);
+				c.removeListener(SWT.Resize, resizeListener);
+			}
+		};
+		if (Display.getCurrent() != null) {
+			remove.run();
+		} else if (!c.isDisposed()) {
+			c.getDisplay().asyncExec(remove);
+		}
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	/**
+	 * Forgets the visibility of the elements, and runs the viewport change callback once
+	 * the current burst of scroll events has been handled
+	 */
+	private void viewportChanged() {
+		visibilityValid = false;
+		if (viewportChangePosted || !hasPending() || canvas == null) return;
+		viewportChangePosted = true;
+		canvas.getDisplay().asyncExec(new Runnable() {
+			@Override
+			public void run() {
+				viewportChangePosted = false;
+				onViewportChanged.run();
+			}
+		});
+	}
+
+	private boolean isVisible(IFigure figure) {
+		// elements that are not drawn can be written at no cost
+		Rectangle bounds = DiagramEditParts.getAbsoluteBounds(figure);
+		return bounds == null || bounds.intersects(visibleArea);
+	}
+}
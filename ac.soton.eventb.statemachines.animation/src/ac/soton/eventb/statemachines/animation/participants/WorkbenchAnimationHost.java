@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.participants;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.commands.IExecutionListener;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.ui.IEditorPart;
+import org.eclipse.ui.IEditorReference;
+import org.eclipse.ui.IPartListener2;
+import org.eclipse.ui.IWorkbenchPage;
+import org.eclipse.ui.PlatformUI;
+import org.eclipse.ui.commands.ICommandService;
+import org.eventb.core.IMachineRoot;
+import org.eventb.emf.core.EventBObject;
+import org.eventb.emf.core.machine.Machine;
+import org.eventb.emf.persistence.EventBEMFUtils;
+
+import ac.soton.eventb.emf.diagrams.util.custom.DiagramUtils;
+import ac.soton.eventb.probsupport.AnimationManager;
+import ac.soton.eventb.probsupport.data.Operation_;
+import ac.soton.eventb.statemachines.Statemachine;
+import ac.soton.eventb.statemachines.diagram.part.StatemachinesDiagramEditor;
+
+/**
+ * The ProB animation manager and the running workbench, as used by the participant
+ * that is registered with the prob support plugin.
+ *
+ * @author cfsnook
+ *
+ */
+class WorkbenchAnimationHost implements AnimationHost {
+
+	// the pages whose parts are listened to, and whether the command listener has been added
+	private final Set<IWorkbenchPage> listenedPages = Collections.synchronizedSet(new HashSet<IWorkbenchPage>());
+	private boolean commandListenerAdded = false;
+
+	/* (non-Javadoc)
+	 * @see ac.soton.eventb.statemachines.animation.participants.AnimationHost#getVariables(org.eventb.core.IMachineRoot)
+	 */
+	@Override
+	public Map<String, String> getVariables(IMachineRoot mchRoot) {
+		return AnimationManager.getCurrentState(mchRoot).getAllValues();
+	}
+
+	/* (non-Javadoc)
+	 * @see ac.soton.eventb.statemachines.animation.participants.AnimationHost#getEnabledOperations(org.eventb.core.IMachineRoot)
+	 */
+	@Override
+	public List<Operation_> getEnabledOperations(IMachineRoot mchRoot) {
+		return AnimationManager.getEnabledOperations(mchRoot);
+	}
+
+	/* (non-Javadoc)
+	 * @see ac.soton.eventb.statemachines.animation.participants.AnimationHost#getTranslationTarget(ac.soton.eventb.statemachines.Statemachine)
+	 */
+	@Override
+	public IMachineRoot getTranslationTarget(Statemachine statemachine) {
+		EventBObject target = DiagramUtils.getTranslationTarget(statemachine);
+		return (target instanceof Machine)? EventBEMFUtils.getRoot((Machine)target) : null;
+	}
+
+	/* (non-Javadoc)
+	 * @see ac.soton.eventb.statemachines.animation.participants.AnimationHost#getOpenEditors()
+	 *
+	 * (these must come from the editors as each editor has a different local copy of its statemachine)
+	 */
+	@Override
+	public List<StatemachinesDiagramEditor> getOpenEditors() {
+		List<StatemachinesDiagramEditor> editors = new ArrayList<StatemachinesDiagramEditor>();
+		for(IWorkbenchPage page : PlatformUI.getWorkbench().getActiveWorkbenchWindow().getPages()){
+	    	for(IEditorReference editorRef: page.getEditorReferences()){
+	    		IEditorPart editor = editorRef.getEditor(false);
+				if (editor instanceof StatemachinesDiagramEditor ){
+					editors.add((StatemachinesDiagramEditor) editor);
+		    	}
+	    	}
+		}
+		return editors;
+	}
+
+	/* (non-Javadoc)
+	 * @see ac.soton.eventb.statemachines.animation.participants.AnimationHost#addListeners(org.eclipse.ui.IPartListener2, org.eclipse.core.commands.IExecutionListener)
+	 */
+	@Override
+	public void addListeners(IPartListener2 partListener, IExecutionListener commandListener) {
+		for(IWorkbenchPage page : PlatformUI.getWorkbench().getActiveWorkbenchWindow().getPages()){
+			if (listenedPages.add(page)) {
+				page.addPartListener(partListener);
+			}
+		}
+		if (!commandListenerAdded) {
+			ICommandService commandService = PlatformUI.getWorkbench().getService(ICommandService.class);
+			if (commandService != null) {
+				commandService.addExecutionListener(commandListener);
+				commandListenerAdded = true;
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see ac.soton.eventb.statemachines.animation.participants.AnimationHost#removeListeners(org.eclipse.ui.IPartListener2, org.eclipse.core.commands.IExecutionListener)
+	 */
+	@Override
+	public void removeListeners(IPartListener2 partListener, IExecutionListener commandListener) {
+		synchronized (listenedPages) {
+			for (IWorkbenchPage page : listenedPages) {
+				page.removePartListener(partListener);
+			}
+			listenedPages.clear();
+		}
+		if (commandListenerAdded) {
+			ICommandService commandService = PlatformUI.getWorkbench().getService(ICommandService.class);
+			if (commandService != null) {
+				commandService.removeExecutionListener(commandListener);
+			}
+			commandListenerAdded = false;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see ac.soton.eventb.statemachines.animation.participants.AnimationHost#asyncExec(java.lang.Runnable)
+	 */
+	@Override
+	public boolean asyncExec(Runnable runnable) {
+		Display display = PlatformUI.getWorkbench().getDisplay();
+		if (display.isDisposed()) {
+			return false;
+		}
+		display.asyncExec(runnable);
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see ac.soton.eventb.statemachines.animation.participants.AnimationHost#syncExec(java.lang.Runnable)
+	 */
+	@Override
+	public boolean syncExec(Runnable runnable) {
+		Display display = PlatformUI.getWorkbench().getDisplay();
+		if (display.isDisposed()) {
+			return false;
+		}
+		display.syncExec(runnable);
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see ac.soton.eventb.statemachines.animation.participants.AnimationHost#timerExec(int, java.lang.Runnable)
+	 */
+	@Override
+	public void timerExec(int delay, Runnable runnable) {
+		Display.getCurrent().timerExec(delay, runnable);
+	}
+}
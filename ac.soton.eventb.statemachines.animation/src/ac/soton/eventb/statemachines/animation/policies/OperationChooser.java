@@ -0,0 +1,277 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.policies;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.Point;
+import org.eclipse.swt.graphics.Rectangle;
+import org.eclipse.swt.layout.GridData;
+import org.eclipse.swt.layout.GridLayout;
+import org.eclipse.swt.widgets.Button;
+import org.eclipse.swt.widgets.Control;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Listener;
+import org.eclipse.swt.widgets.Shell;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableItem;
+import org.eclipse.swt.widgets.Text;
+import org.eventb.core.IMachineRoot;
+
+import ac.soton.eventb.probsupport.data.Operation_;
+import ac.soton.eventb.statemachines.animation.participants.StatemachineAnimationParticipant;
+
+/**
+ * A popup for choosing one of the enabled operations of a transition.
+ *
+ * The operations are shown in a virtual table so that only the visible rows are rendered,
+ * and the label of an operation is only formatted when its row is first shown (or filtered).
+ * Typing in the filter field shows only the operations whose label contains the text.
+ * An operation is chosen by clicking its row, or by pressing Enter in the filter field or the table.
+ * The Random button executes a randomly chosen operation of those shown (it is disabled if none are shown).
+ *
+ * @author cfsnook
+ *
+ */
+class OperationChooser {
+
+	private static final int VISIBLE_ROWS = 15;
+	private static final int WIDTH = 400;
+	private static final Random RANDOM = new Random();
+
+	private final IMachineRoot mchRoot;
+	private final List<Operation_> operations;
+	private final String[] labels;		// lazily formatted label of each operation
+	private final String[] keys;		// lazily formatted lower case label of each operation used for filtering
+	private int[] rows;					// position in operations of each row of the table
+	private int rowCount = 0;
+	private Operation_ result = null;
+
+	private Shell shell;
+	private Table table;
+	private Text filter;
+	private Button randomButton;
+
+	/**
+	 * @param mchRoot the machine being animated
+	 * @param operations the enabled operations to choose from
+	 */
+	OperationChooser(IMachineRoot mchRoot, List<Operation_> operations) {
+		this.mchRoot = mchRoot;
+		this.operations = operations;
+		this.labels = new String[operations.size()];
+		this.keys = new String[operations.size()];
+		this.rows = new int[operations.size()];
+	}
+
+	/**
+	 * Opens the chooser at the cursor and waits until it is closed.
+	 * If the Random button is used, the randomly chosen operation is executed directly
+	 * and null is returned.
+	 *
+	 * @param parent the control that the chooser is opened from
+	 * @return the chosen operation or null if none was chosen
+	 */
+	Operation_ open(Control parent) {
+		Display display = parent.getDisplay();
+		shell = new Shell(parent.getShell(), SWT.ON_TOP | SWT.TOOL | SWT.RESIZE);
+		GridLayout layout = new GridLayout(2, false);
+		layout.marginWidth = 2;
+		layout.marginHeight = 2;
+		shell.setLayout(layout);
+
+		filter = new Text(shell, SWT.SEARCH | SWT.ICON_CANCEL);
+		filter.setMessage("Filter"); //$NON-NLS-1$
+		filter.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+
+		randomButton = new Button(shell, SWT.PUSH);
+		randomButton.setText("Random"); //$NON-NLS-1$
+		randomButton.setToolTipText("Execute a randomly chosen operation of those shown"); //$NON-NLS-1$
+
+		table = new Table(shell, SWT.VIRTUAL | SWT.SINGLE | SWT.FULL_SELECTION | SWT.V_SCROLL | SWT.H_SCROLL | SWT.BORDER);
+		GridData tableData = new GridData(SWT.FILL, SWT.FILL, true, true, 2, 1);
+		tableData.widthHint = WIDTH;
+		tableData.heightHint = Math.max(1, Math.min(VISIBLE_ROWS, operations.size())) * table.getItemHeight();
+		table.setLayoutData(tableData);
+
+		// rows are only rendered when they become visible
+		table.addListener(SWT.SetData, new Listener() {
+			@Override
+			public void handleEvent(Event event) {
+				TableItem item = (TableItem) event.item;
+				item.setText(getLabel(rows[event.index]));
+			}
+		});
+		// (only a click on a row chooses it, as the first row is selected whenever the filter changes)
+		table.addListener(SWT.MouseUp, new Listener() {
+			@Override
+			public void handleEvent(Event event) {
+				if (event.button == 1) {
+					TableItem item = table.getItem(new Point(event.x, event.y));
+					if (item != null) {
+						choose(table.indexOf(item));
+					}
+				}
+			}
+		});
+		table.addListener(SWT.DefaultSelection, new Listener() {
+			@Override
+			public void handleEvent(Event event) {
+				choose(table.getSelectionIndex());
+			}
+		});
+		filter.addListener(SWT.Modify, new Listener() {
+			@Override
+			public void handleEvent(Event event) {
+				applyFilter(filter.getText());
+			}
+		});
+		filter.addListener(SWT.DefaultSelection, new Listener() {
+			@Override
+			public void handleEvent(Event event) {
+				choose(table.getSelectionIndex());
+			}
+		});
+		filter.addListener(SWT.KeyDown, new Listener() {
+			@Override
+			public void handleEvent(Event event) {
+				if (event.keyCode == SWT.ARROW_DOWN && rowCount > 0) {
+					table.setFocus();
+					event.doit = false;
+				}
+			}
+		});
+		randomButton.addListener(SWT.Selection, new Listener() {
+			@Override
+			public void handleEvent(Event event) {
+				executeRandom();
+			}
+		});
+		Listener escape = new Listener() {
+			@Override
+			public void handleEvent(Event event) {
+				if (event.detail == SWT.TRAVERSE_ESCAPE) {
+					close();
+					event.doit = false;
+				}
+			}
+		};
+		filter.addListener(SWT.Traverse, escape);
+		table.addListener(SWT.Traverse, escape);
+		randomButton.addListener(SWT.Traverse, escape);
+		shell.addListener(SWT.Deactivate, new Listener() {
+			@Override
+			public void handleEvent(Event event) {
+				close();
+			}
+		});
+
+		applyFilter(""); //$NON-NLS-1$
+		shell.pack();
+		setLocation(display);
+		shell.open();
+		filter.setFocus();
+		while (!shell.isDisposed()) {
+			if (!display.readAndDispatch()) {
+				display.sleep();
+			}
+		}
+		return result;
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	/**
+	 * Shows only the operations whose label contains the given text (ignoring case)
+	 *
+	 * @param text
+	 */
+	private void applyFilter(String text) {
+		String key = text == null ? "" : text.trim().toLowerCase(Locale.ROOT); //$NON-NLS-1$
+		rowCount = 0;
+		for (int i = 0; i < operations.size(); i++) {
+			if (key.isEmpty() || getKey(i).contains(key)) {
+				rows[rowCount++] = i;
+			}
+		}
+		table.setItemCount(rowCount);
+		table.clearAll();
+		if (rowCount > 0) {
+			table.setSelection(0);
+		}
+		randomButton.setEnabled(rowCount > 0);
+	}
+
+	/**
+	 * Chooses the operation shown in the given row and closes the chooser
+	 *
+	 * @param row
+	 */
+	private void choose(int row) {
+		if (row >= 0 && row < rowCount) {
+			result = operations.get(rows[row]);
+			close();
+		}
+	}
+
+	/**
+	 * Closes the chooser and executes a randomly chosen operation of those shown
+	 * (nothing is done if none are shown)
+	 */
+	private void executeRandom() {
+		if (rowCount == 0) {
+			return;
+		}
+		Operation_ operation = operations.get(rows[RANDOM.nextInt(rowCount)]);
+		close();
+		StatemachineAnimationParticipant.executeOperation(mchRoot, operation);
+	}
+
+	private void close() {
+		if (shell != null && !shell.isDisposed()) {
+			shell.close();
+			shell.dispose();
+		}
+	}
+
+	/**
+	 * Positions the chooser at the cursor, keeping it on the display
+	 */
+	private void setLocation(Display display) {
+		Point cursor = display.getCursorLocation();
+		Point size = shell.getSize();
+		Rectangle bounds = display.getClientArea();
+		int x = Math.max(bounds.x, Math.min(cursor.x, bounds.x + bounds.width - size.x));
+		int y = Math.max(bounds.y, Math.min(cursor.y, bounds.y + bounds.height - size.y));
+		shell.setLocation(x, y);
+	}
+
+	/**
+	 * @return the label of the operation at position i (the name followed by the arguments if any)
+	 */
+	private String getLabel(int i) {
+		if (labels[i] == null) {
+			Operation_ operation = operations.get(i);
+			List<String> arguments = operation.getArguments();
+			labels[i] = operation.getName() +
+				(arguments == null || arguments.isEmpty() ? "" : " " + arguments.toString()); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		return labels[i];
+	}
+
+	private String getKey(int i) {
+		if (keys[i] == null) {
+			keys[i] = getLabel(i).toLowerCase(Locale.ROOT);
+		}
+		return keys[i];
+	}
+}
@@ -7,7 +7,6 @@
  */
 package ac.soton.eventb.statemachines.animation.policies;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import org.eclipse.emf.common.util.EList;
@@ -16,11 +15,9 @@ import org.eclipse.gef.EditPolicy;
 import org.eclipse.gef.editpolicies.SelectionEditPolicy;
 import org.eclipse.gmf.runtime.common.core.service.IOperation;
 import org.eclipse.gmf.runtime.common.core.service.IProviderChangeListener;
-import org.eclipse.gmf.runtime.diagram.ui.menus.PopupMenu;
 import org.eclipse.gmf.runtime.diagram.ui.services.editpolicy.CreateEditPoliciesOperation;
 import org.eclipse.gmf.runtime.diagram.ui.services.editpolicy.IEditPolicyProvider;
 import org.eclipse.gmf.runtime.notation.View;
-import org.eclipse.jface.viewers.LabelProvider;
 import org.eventb.core.IMachineRoot;
 import org.eventb.emf.core.machine.Event;
 import org.eventb.emf.core.machine.Machine;
@@ -30,6 +27,7 @@ import org.eventb.emf.persistence.EventBEMFUtils;
 import ac.soton.eventb.probsupport.AnimationManager;
 import ac.soton.eventb.probsupport.data.Operation_;
 import ac.soton.eventb.statemachines.Transition;
+import ac.soton.eventb.statemachines.animation.participants.StatemachineAnimationParticipant;
 import ac.soton.eventb.statemachines.diagram.edit.parts.TransitionEditPart;
 import ac.soton.eventb.statemachines.diagram.edit.parts.TransitionGhostEditPart;
 
@@ -48,47 +46,28 @@ public class TransitionEditPolicyProvider implements IEditPolicyProvider {
 	public void createEditPolicies(EditPart editPart) {
 		editPart.installEditPolicy(EditPolicy.SELECTION_FEEDBACK_ROLE, new SelectionEditPolicy() {
 			
+			// the machine root of the transition's events (resolved on first use)
+			private IMachineRoot machineRoot = null;
+			
 			@Override
 			protected void showSelection() {
 				Transition transition = (Transition) ((View) getHost().getModel()).getElement();
-				EList<Event> events = transition.getElaborates();
-				if (events!=null && events.size()>0) {
-					Machine machine = (Machine) events.get(0).getContaining(MachinePackage.Literals.MACHINE);
-					IMachineRoot mchRoot = EventBEMFUtils.getRoot(machine);
-					// if animation running and operations available
-					if (AnimationManager.isRunning(mchRoot)
-							&& transition.getOperations() != null 
-							&& !transition.getOperations().isEmpty()) {
-						
+				IMachineRoot mchRoot = getMachineRoot(transition);
+				// if animation running and operations available
+				//  (the operations are taken from the latest update of the diagram computed by the animation, as the
+				//   transition's operations attribute may not have been written yet, e.g. while it is off-screen)
+				StatemachineAnimationParticipant participant = StatemachineAnimationParticipant.getDefault();
+				if (mchRoot != null && participant != null && AnimationManager.isRunning(mchRoot)) {
+					List<Operation_> operations = participant.getOperations(transition);
+					if (!operations.isEmpty()) {
 						getHost().getViewer().deselectAll(); 	//de-select the transition ready for next interaction
 						
-						List<Operation_> enabledOperations = AnimationManager.getEnabledOperations(mchRoot);
-						List<Operation_> operations = new ArrayList<Operation_>();
-						for (Operation_ op : enabledOperations){
-							String opName = op.getName();
-							for (Event ev : events){
-								if (opName.equals(ev.getName()) ){
-									operations.add(op);
-								}	
-							}
-						}
-						// show selection menu
-						PopupMenu menu = new PopupMenu(operations, new LabelProvider() {
-	
-							@Override
-							public String getText(Object element) {
-								Operation_ operation = (Operation_) element;
-								List<String> arguments = operation.getArguments();
-								String text = operation.getName() +
-									(arguments == null || arguments.isEmpty() ? "" : " " + arguments.toString());
-								return text;
-							}});
-						menu.show(getHost().getViewer().getControl());
-						Object operation = menu.getResult();
+						// show a chooser (the number of operations may be large)
+						Operation_ operation = new OperationChooser(mchRoot, operations).open(getHost().getViewer().getControl());
 						
 						// execute selected
 						if (operation != null) {
-							AnimationManager.executeOperation(mchRoot, (Operation_)operation, false);
+							StatemachineAnimationParticipant.executeOperation(mchRoot, operation);
 						}
 					}
 				}
@@ -97,6 +76,24 @@ public class TransitionEditPolicyProvider implements IEditPolicyProvider {
 			@Override
 			protected void hideSelection() {
 			}
+			
+			/**
+			 * Gets the machine root of the events elaborated by the transition.
+			 * This is cached as it does not change while the edit part exists.
+			 * 
+			 * @param transition
+			 * @return the machine root or null if the transition does not elaborate any events
+			 */
+			private IMachineRoot getMachineRoot(Transition transition) {
+				if (machineRoot == null) {
+					EList<Event> events = transition.getElaborates();
+					if (events!=null && events.size()>0) {
+						Machine machine = (Machine) events.get(0).getContaining(MachinePackage.Literals.MACHINE);
+						machineRoot = machine == null ? null : EventBEMFUtils.getRoot(machine);
+					}
+				}
+				return machineRoot;
+			}
 		});
 	}
 
@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2020-2020 University of Southampton.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package ac.soton.eventb.statemachines.animation.views;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import org.eclipse.jface.action.Action;
+import org.eclipse.jface.action.IToolBarManager;
+import org.eclipse.jface.dialogs.MessageDialog;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.FileDialog;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableColumn;
+import org.eclipse.swt.widgets.TableItem;
+import org.eclipse.ui.part.ViewPart;
+
+import ac.soton.eventb.statemachines.animation.metrics.AnimationMetrics;
+import ac.soton.eventb.statemachines.animation.metrics.AnimationMetricsRegistry;
+import ac.soton.eventb.statemachines.animation.metrics.LatencyHistogram;
+
+/**
+ * A view of the animation metrics of each animated machine: the counters and the
+ * latency of each timed activity of the animation steps.
+ * The view is refreshed every second while it is open. The metrics can be reset
+ * and exported to a CSV file.
+ *
+ * @author cfsnook
+ *
+ */
+public class AnimationMetricsView extends ViewPart {
+
+	public static final String ID = "ac.soton.eventb.statemachines.animation.metricsView"; //$NON-NLS-1$
+
+	private static final int REFRESH_INTERVAL = 1000;
+	private static final String[] COLUMNS = {"Machine", "Activity", "Count", "Mean (\u00b5s)", "p50 (\u00b5s)", "p99 (\u00b5s)", "Max (\u00b5s)"};
+
+	private Table table;
+
+	private final Runnable refresher = new Runnable() {
+		@Override
+		public void run() {
+			if (table == null || table.isDisposed()) return;
+			refresh();
+			table.getDisplay().timerExec(REFRESH_INTERVAL, this);
+		}
+	};
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.ui.part.WorkbenchPart#createPartControl(org.eclipse.swt.widgets.Composite)
+	 */
+	@Override
+	public void createPartControl(Composite parent) {
+		table = new Table(parent, SWT.SINGLE | SWT.FULL_SELECTION | SWT.V_SCROLL | SWT.H_SCROLL);
+		table.setHeaderVisible(true);
+		table.setLinesVisible(true);
+		for (int i = 0; i < COLUMNS.length; i++) {
+			TableColumn column = new TableColumn(table, i < 2 ? SWT.LEFT : SWT.RIGHT);
+			column.setText(COLUMNS[i]);
+			column.setWidth(i == 0 ? 150 : i == 1 ? 140 : 90);
+		}
+
+		IToolBarManager toolBar = getViewSite().getActionBars().getToolBarManager();
+		toolBar.add(new Action("Reset") {
+			@Override
+			public void run() {
+				AnimationMetricsRegistry.getDefault().resetAll();
+				refresh();
+			}
+		});
+		toolBar.add(new Action("Export CSV...") {
+			@Override
+			public void run() {
+				exportCsv();
+			}
+		});
+
+		refresher.run();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.ui.part.WorkbenchPart#setFocus()
+	 */
+	@Override
+	public void setFocus() {
+		table.setFocus();
+	}
+
+	//////////////////////////////// private ///////////////////////////////
+
+	private void refresh() {
+		int row = 0;
+		for (AnimationMetrics metrics : AnimationMetricsRegistry.getDefault().getAllMetrics()) {
+			row = setRow(row, metrics.getMachine(), "Steps", metrics.getStepCount(), null); //$NON-NLS-1$
+			row = setRow(row, metrics.getMachine(), "Elements touched", metrics.getElementsTouched(), null); //$NON-NLS-1$
+			row = setRow(row, metrics.getMachine(), "Commands issued", metrics.getCommandsIssued(), null); //$NON-NLS-1$
+			for (AnimationMetrics.Timer timer : AnimationMetrics.Timer.values()) {
+				LatencyHistogram histogram = metrics.getTimer(timer);
+				row = setRow(row, metrics.getMachine(), timer.name(), histogram.getCount(), histogram);
+			}
+		}
+		table.setItemCount(row);
+	}
+
+	private int setRow(int row, String machine, String activity, long count, LatencyHistogram histogram) {
+		TableItem item = row < table.getItemCount() ? table.getItem(row) : new TableItem(table, SWT.NONE);
+		item.setText(0, machine);
+		item.setText(1, activity);
+		item.setText(2, Long.toString(count));
+		item.setText(3, histogram == null ? "" : micros(histogram.getMean())); //$NON-NLS-1$
+		item.setText(4, histogram == null ? "" : micros(histogram.getPercentile(50))); //$NON-NLS-1$
+		item.setText(5, histogram == null ? "" : micros(histogram.getPercentile(99))); //$NON-NLS-1$
+		item.setText(6, histogram == null ? "" : micros(histogram.getMax())); //$NON-NLS-1$
+		return row + 1;
+	}
+
+	private static String micros(double nanos) {
+		return String.format(Locale.ROOT, "%.1f", nanos / 1000.0); //$NON-NLS-1$
+	}
+
+	private void exportCsv() {
+		FileDialog dialog = new FileDialog(getSite().getShell(), SWT.SAVE);
+		dialog.setText("Export Animation Metrics");
+		dialog.setFilterExtensions(new String[] {"*.csv"}); //$NON-NLS-1$
+		dialog.setFileName("animation-metrics.csv"); //$NON-NLS-1$
+		dialog.setOverwrite(true);
+		String path = dialog.open();
+		if (path == null) return;
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8);
+			try {
+				AnimationMetricsRegistry.getDefault().writeCsv(writer);
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			MessageDialog.openError(getSite().getShell(), "Export Animation Metrics", e.getMessage());
+		}
+	}
+}